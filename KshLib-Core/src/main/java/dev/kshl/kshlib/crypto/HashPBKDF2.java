@@ -2,17 +2,31 @@ package dev.kshl.kshlib.crypto;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
 
 public class HashPBKDF2 {
     private static final int SALT_BYTES = 32;
     private static final int KEY_BYTES = 64;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+    /**
+     * SecretKeyFactory is not thread safe, and looking one up walks the security providers on every call
+     */
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = new ThreadLocal<>();
 
     public static void checkAlgorithm() throws NoSuchAlgorithmException {
-        SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        getFactory();
+    }
+
+    private static SecretKeyFactory getFactory() throws NoSuchAlgorithmException {
+        SecretKeyFactory factory = FACTORY.get();
+        if (factory == null) {
+            factory = SecretKeyFactory.getInstance(ALGORITHM);
+            FACTORY.set(factory);
+        }
+        return factory;
     }
 
     public static byte[] hash(String password, int iterationCount) throws NoSuchAlgorithmException {
@@ -26,7 +40,7 @@ public class HashPBKDF2 {
     public static byte[] hash(String password, byte[] salt, int iterationCount) throws NoSuchAlgorithmException {
         if (salt.length != SALT_BYTES) throw new IllegalArgumentException("Invalid salt length");
         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterationCount, KEY_BYTES * 8);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        SecretKeyFactory factory = getFactory();
 
         byte[] hash;
         try {
@@ -48,6 +62,6 @@ public class HashPBKDF2 {
 
         byte[] salt = new byte[SALT_BYTES];
         System.arraycopy(hash, 0, salt, 0, salt.length);
-        return Arrays.equals(hash, hash(password, salt, iterationCount));
+        return MessageDigest.isEqual(hash, hash(password, salt, iterationCount));
     }
 }
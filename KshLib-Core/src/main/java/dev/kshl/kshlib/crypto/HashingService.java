@@ -0,0 +1,86 @@
+package dev.kshl.kshlib.crypto;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs slow hashing work, such as {@link HashPBKDF2}, on a fixed pool of threads with a bounded queue, so a burst of logins can not occupy every
+ * request thread. Once the queue is full, new work is rejected with a {@link BusyException} instead of waiting.
+ */
+public class HashingService {
+    private static final AtomicInteger threadId = new AtomicInteger();
+    private static HashingService defaultService;
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param threads       The number of hashes computed at once. Hashing is CPU bound, so more threads than cores only adds latency.
+     * @param queueCapacity The number of hashes which may wait for a thread before new work is rejected
+     */
+    public HashingService(int threads, int queueCapacity) {
+        if (threads <= 0) throw new IllegalArgumentException("threads must be greater than 0");
+        if (queueCapacity <= 0) throw new IllegalArgumentException("queueCapacity must be greater than 0");
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread t = new Thread(r, "KshLib-Hashing-" + threadId.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * The shared service, with one thread per available processor and a queue of 32 per thread.
+     * Java only reports logical processors, so on machines with SMT this is twice the physical core count.
+     */
+    public static synchronized HashingService getDefault() {
+        if (defaultService == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            defaultService = new HashingService(threads, threads * 32);
+        }
+        return defaultService;
+    }
+
+    /**
+     * @return A future completed with the result of the task, or exceptionally with a {@link BusyException} if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            future.completeExceptionally(new BusyException("Hashing queue is full"));
+        }
+        return future;
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
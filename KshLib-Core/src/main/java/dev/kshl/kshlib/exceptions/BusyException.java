@@ -6,7 +6,15 @@ import javax.annotation.Nullable;
 
 public class BusyException extends Exception {
     public BusyException(@Nullable StackTraceElement[] stack, long threadID, long heldSince) {
-        this("Resource busy, currently held by " + (threadID < 0 ? "none" : ("Thread #" + threadID)) + ", held for " + (System.currentTimeMillis() - heldSince) + "ms" + //
+        this("Resource busy", stack, threadID, heldSince, null);
+    }
+
+    /**
+     * @param holderDetail A description of what the holder is doing, such as the statement it is executing
+     */
+    public BusyException(String message, @Nullable StackTraceElement[] stack, long threadID, long heldSince, @Nullable String holderDetail) {
+        this(message + ", currently held by " + (threadID < 0 ? "none" : ("Thread #" + threadID)) + (holderDetail != null ? " (" + holderDetail + ")" : "") + //
+                ", held for " + (System.currentTimeMillis() - heldSince) + "ms" + //
                 (stack != null ? ("\n" + StackUtil.format(stack, 50) + "\n==== End held by ====\n") : ""));
     }
 
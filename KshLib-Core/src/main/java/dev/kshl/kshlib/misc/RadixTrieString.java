@@ -0,0 +1,325 @@
+package dev.kshl.kshlib.misc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A compressed radix trie of Strings keyed case-insensitively, for prefix completion.
+ * Each String carries a recency, and the most recent matches of a prefix can be found without visiting every match.
+ * <br>
+ * The trie is immutable once built, and writes publish a new root which shares all untouched nodes with the old one,
+ * so reads take no locks and always see a consistent snapshot. Writes are synchronized.
+ * <br>
+ * Only the original Strings are kept. Edge labels are read back from them, so characters are compared lowercased one at a time.
+ */
+public class RadixTrieString {
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Node EMPTY_ROOT = Node.of(null, 0, NO_CHILDREN, Long.MIN_VALUE);
+
+    private volatile Node root = EMPTY_ROOT;
+    private volatile int size;
+
+    /**
+     * Adds a String, or replaces a String which is equal ignoring case, with the provided recency
+     */
+    public synchronized void put(String string, long recency) {
+        Objects.requireNonNull(string);
+        char[] key = normalize(string);
+        if (getNode(root, key) == null) size++;
+        root = insert(root, key, string, recency);
+    }
+
+    /**
+     * Adds a String only if no String equal to it ignoring case is present
+     *
+     * @return Whether the String was added
+     */
+    public synchronized boolean putIfAbsent(String string, long recency) {
+        Objects.requireNonNull(string);
+        char[] key = normalize(string);
+        if (getNode(root, key) != null) return false;
+        size++;
+        root = insert(root, key, string, recency);
+        return true;
+    }
+
+    /**
+     * Removes the String equal to this one ignoring case
+     *
+     * @return Whether a String was removed
+     */
+    public synchronized boolean remove(String string) {
+        char[] key = normalize(string);
+        if (getNode(root, key) == null) return false;
+        Node removed = remove(root, key);
+        root = removed == null ? EMPTY_ROOT : removed;
+        size--;
+        return true;
+    }
+
+    public boolean contains(String string) {
+        return getNode(root, normalize(string)) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Every String starting with the prefix, ignoring case, in case-insensitive order
+     */
+    public Set<String> getStartingWith(String prefix) {
+        Set<String> out = new LinkedHashSet<>();
+        Node subtree = findPrefix(root, normalize(prefix));
+        if (subtree != null) collect(subtree, out);
+        return out;
+    }
+
+    /**
+     * Finds the most recent Strings starting with the prefix. Only as many nodes as needed to find them are visited.
+     *
+     * @return Up to limit Strings starting with the prefix, ignoring case, most recent first
+     */
+    public List<String> getMostRecentStartingWith(String prefix, int limit) {
+        List<String> out = new ArrayList<>();
+        Node subtree = findPrefix(root, normalize(prefix));
+        if (subtree == null || limit <= 0) return out;
+
+        PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> Long.compare(b.recency(), a.recency()));
+        queue.add(new Candidate(subtree.maxRecency, subtree, false));
+        while (!queue.isEmpty() && out.size() < limit) {
+            Candidate candidate = queue.poll();
+            Node node = candidate.node();
+            if (candidate.terminal()) {
+                out.add(node.key);
+                continue;
+            }
+            if (node.isTerminal()) queue.add(new Candidate(node.recency(), node, true));
+            for (Node child : node.children) queue.add(new Candidate(child.maxRecency, child, false));
+        }
+        return out;
+    }
+
+    /**
+     * @return The approximate heap size of the trie in bytes, including its Strings
+     */
+    public long estimateMemory() {
+        return estimateMemory(root);
+    }
+
+    private static long estimateMemory(Node node) {
+        long bytes = (node instanceof BranchValue ? 40 : 32) + (node.children.length == 0 ? 0 : 16 + node.children.length * 4L);
+        if (node.isTerminal()) bytes += 24 + 16 + node.key.length();
+        for (Node child : node.children) bytes += estimateMemory(child);
+        return bytes;
+    }
+
+    /**
+     * Lowercases each character on its own, so the key has the same length as the String and its characters can be read back from the String
+     */
+    private static char[] normalize(String string) {
+        char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; i++) chars[i] = Character.toLowerCase(chars[i]);
+        return chars;
+    }
+
+    private static Node getNode(Node node, char[] key) {
+        while (node.depth < key.length) {
+            Node child = node.child(key[node.depth]);
+            if (child == null || commonPrefix(child, node.depth, key) < child.depth) return null;
+            node = child;
+        }
+        return node.isTerminal() ? node : null;
+    }
+
+    private static Node findPrefix(Node node, char[] prefix) {
+        while (node.depth < prefix.length) {
+            Node child = node.child(prefix[node.depth]);
+            if (child == null) return null;
+            int common = commonPrefix(child, node.depth, prefix);
+            if (common == prefix.length) return child; // The prefix ends within or at the end of this edge
+            if (common < child.depth) return null;
+            node = child;
+        }
+        return node;
+    }
+
+    private static void collect(Node node, Set<String> out) {
+        if (node.isTerminal()) out.add(node.key);
+        for (Node child : node.children) collect(child, out);
+    }
+
+    private static Node insert(Node node, char[] key, String value, long recency) {
+        if (node.depth == key.length) {
+            return Node.of(value, node.depth, node.children, recency);
+        }
+        int index = node.childIndex(key[node.depth]);
+        if (index < 0) {
+            Node leaf = Node.of(value, key.length, NO_CHILDREN, recency);
+            return node.withChildren(insertChild(node.children, -index - 1, leaf));
+        }
+        Node child = node.children[index];
+        int common = commonPrefix(child, node.depth, key);
+        Node replacement;
+        if (common == child.depth) {
+            replacement = insert(child, key, value, recency);
+        } else {
+            // Split the edge where the key diverges from it. The child keeps its depth, so its label now starts where the new node's ends.
+            Node middle = Node.of(null, common, new Node[]{child}, Long.MIN_VALUE);
+            replacement = insert(middle, key, value, recency);
+        }
+        Node[] children = node.children.clone();
+        children[index] = replacement;
+        return node.withChildren(children);
+    }
+
+    /**
+     * @return The node without the key, or null if it is left empty
+     */
+    private static Node remove(Node node, char[] key) {
+        Node[] children;
+        String value = node.isTerminal() ? node.key : null;
+        long recency = node.recency();
+        if (node.depth == key.length) {
+            children = node.children;
+            value = null;
+            recency = Long.MIN_VALUE;
+        } else {
+            int index = node.childIndex(key[node.depth]);
+            Node replacement = remove(node.children[index], key);
+            if (replacement == null) {
+                children = new Node[node.children.length - 1];
+                System.arraycopy(node.children, 0, children, 0, index);
+                System.arraycopy(node.children, index + 1, children, index, children.length - index);
+            } else {
+                children = node.children.clone();
+                children[index] = replacement;
+            }
+        }
+        if (value == null && children.length == 0) return null;
+        // Merge with the only child, whose label then starts where this node's did
+        if (value == null && children.length == 1 && node.depth > 0) return children[0];
+        return Node.of(value, node.depth, children, recency);
+    }
+
+    private static Node[] insertChild(Node[] children, int index, Node child) {
+        Node[] out = new Node[children.length + 1];
+        System.arraycopy(children, 0, out, 0, index);
+        out[index] = child;
+        System.arraycopy(children, index, out, index + 1, children.length - index);
+        return out;
+    }
+
+    /**
+     * @return The depth up to which the edge from a node at parentDepth to child matches the key
+     */
+    private static int commonPrefix(Node child, int parentDepth, char[] key) {
+        int max = Math.min(child.depth, key.length);
+        int i = parentDepth;
+        while (i < max && child.charAt(i) == key[i]) i++;
+        return i;
+    }
+
+    /**
+     * Edge labels are not stored. The label of the edge into a node is the lowercased characters of its key between its parent's depth and its own.
+     */
+    private static class Node {
+        /**
+         * This node's String if one ends here, or else any String in its subtree
+         */
+        final String key;
+        /**
+         * The length of the key prefix this node represents
+         */
+        final int depth;
+        /**
+         * Sorted by the first character of their labels, which are unique among siblings
+         */
+        final Node[] children;
+        /**
+         * The greatest recency of any String in this subtree
+         */
+        final long maxRecency;
+
+        private Node(String key, int depth, Node[] children, long maxRecency) {
+            this.key = key;
+            this.depth = depth;
+            this.children = children;
+            this.maxRecency = maxRecency;
+        }
+
+        static Node of(String value, int depth, Node[] children, long recency) {
+            if (value == null) recency = Long.MIN_VALUE;
+            long max = recency;
+            for (Node child : children) max = Math.max(max, child.maxRecency);
+            if (value == null) return new Node(children.length > 0 ? children[0].key : null, depth, children, max);
+            // The recency of a leaf is its maxRecency, so only a String with longer Strings below it needs its own
+            if (children.length == 0) return new Node(value, depth, children, max);
+            return new BranchValue(value, depth, children, max, recency);
+        }
+
+        /**
+         * @return The recency of this node's String, if it has one
+         */
+        long recency() {
+            return isTerminal() ? maxRecency : Long.MIN_VALUE;
+        }
+
+        /**
+         * A String in a child's subtree is longer than this node's depth, so the key ends here only if this node holds it
+         */
+        boolean isTerminal() {
+            return key != null && key.length() == depth;
+        }
+
+        Node withChildren(Node[] children) {
+            return Node.of(isTerminal() ? key : null, depth, children, recency());
+        }
+
+        char charAt(int index) {
+            return Character.toLowerCase(key.charAt(index));
+        }
+
+        Node child(char c) {
+            int index = childIndex(c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * @return The index of the child starting with c, or (-(insertion point) - 1) if there is none
+         */
+        int childIndex(char c) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midChar = children[mid].charAt(depth);
+                if (midChar < c) low = mid + 1;
+                else if (midChar > c) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+    }
+
+    private static final class BranchValue extends Node {
+        private final long recency;
+
+        private BranchValue(String key, int depth, Node[] children, long maxRecency, long recency) {
+            super(key, depth, children, maxRecency);
+            this.recency = recency;
+        }
+
+        @Override
+        long recency() {
+            return recency;
+        }
+    }
+
+    private record Candidate(long recency, Node node, boolean terminal) {
+    }
+}
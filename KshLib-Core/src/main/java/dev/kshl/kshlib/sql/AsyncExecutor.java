@@ -0,0 +1,166 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ThrowingSupplier;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs database tasks for the async methods of {@link ConnectionManager}, at most a fixed number at once.
+ * <br>
+ * With platform threads, tasks run on a fixed pool of daemon threads and wait in its queue in order of submission.
+ * With virtual threads, each task gets its own virtual thread, which waits for a permit from a fair semaphore, so permits are also handed out in order.
+ * Either way, a task submitted while the queue is full fails immediately with a {@link BusyException} rather than waiting for space.
+ * <br>
+ * Once closed, tasks which have not started fail with a {@link BusyException}, and running tasks are interrupted.
+ */
+class AsyncExecutor {
+    private static final AtomicInteger threadId = new AtomicInteger();
+    /**
+     * How long {@link #close()} waits for interrupted tasks to finish
+     */
+    private static final long CLOSE_WAIT_MILLIS = 3000L;
+
+    private final ExecutorService executor;
+    /**
+     * Limits concurrency when every task has its own virtual thread, or null if the executor's threads already limit it
+     */
+    @Nullable
+    private final Semaphore permits;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean closing;
+
+    AsyncExecutor(int concurrency, int maxQueued, boolean virtualThreads) {
+        if (concurrency <= 0) throw new IllegalArgumentException("concurrency must be > 0");
+        if (maxQueued < 0) throw new IllegalArgumentException("maxQueued must be >= 0");
+        this.maxPending = concurrency + maxQueued;
+        ExecutorService virtual = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtual != null) {
+            this.executor = virtual;
+            this.permits = new Semaphore(concurrency, true);
+        } else {
+            this.executor = Executors.newFixedThreadPool(concurrency, r -> {
+                Thread t = new Thread(r, "KshLib-Async-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            this.permits = null;
+        }
+    }
+
+    /**
+     * @return An executor which starts a virtual thread per task, or null if the runtime is older than Java 21
+     */
+    @Nullable
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    boolean isVirtual() {
+        return permits != null;
+    }
+
+    <T> CompletableFuture<T> submit(ThrowingSupplier<T, Exception> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closing) {
+            future.completeExceptionally(new BusyException("Async executor closing"));
+            return future;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            future.completeExceptionally(new BusyException("Async queue full"));
+            return future;
+        }
+        try {
+            executor.execute(new Task<>(task, future));
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            future.completeExceptionally(new BusyException("Async executor closing"));
+        }
+        return future;
+    }
+
+    private final class Task<T> implements Runnable {
+        private final ThrowingSupplier<T, Exception> task;
+        private final CompletableFuture<T> future;
+
+        Task(ThrowingSupplier<T, Exception> task, CompletableFuture<T> future) {
+            this.task = task;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            T result = null;
+            Throwable failure = null;
+            try {
+                if (permits != null) permits.acquire();
+                try {
+                    result = task.get();
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    if (permits != null) permits.release();
+                }
+            } catch (InterruptedException e) {
+                failure = new BusyException(closing ? "Async executor closing" : "Interrupted");
+            }
+            // No longer pending by the time anything waiting on the future runs
+            pending.decrementAndGet();
+            if (failure == null) future.complete(result);
+            else future.completeExceptionally(failure);
+        }
+
+        /**
+         * Fails a task which was never run
+         */
+        void cancel() {
+            pending.decrementAndGet();
+            future.completeExceptionally(new BusyException("Async executor closing"));
+        }
+    }
+
+    /**
+     * @return The number of tasks submitted which have not completed
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return The number of tasks which failed because the queue was full
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Fails every task which has not started, interrupts those running, and waits briefly for them to finish
+     */
+    void close() {
+        closing = true;
+        for (Runnable runnable : executor.shutdownNow()) {
+            if (runnable instanceof Task<?> task) task.cancel();
+        }
+        try {
+            executor.awaitTermination(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
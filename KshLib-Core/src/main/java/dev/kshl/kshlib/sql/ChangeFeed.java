@@ -0,0 +1,207 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.function.ThrowingRunnable;
+import dev.kshl.kshlib.function.ThrowingSupplier;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Publishes committed changes to tables, so caches of a table can be kept indefinitely and invalidated only when it changes.
+ * <br>
+ * On SQLite, every row inserted, updated, or deleted on the write Connection is reported by the driver's update hook, with its rowid.
+ * Rows which the hook does not report, such as those deleted by a REPLACE conflict or by a DELETE without a WHERE clause, are published
+ * as a change to the whole table. On MySQL, changes are published per statement executed through the {@link ConnectionManager}, for the whole table.
+ * <br>
+ * Changes are published once their transaction commits, on the thread which committed it, and discarded if it is rolled back.
+ * Changes to a table are coalesced until they are published, so beyond {@link #MAX_ROW_CHANGES} rows, a transaction's changes to it are published as
+ * one change to the whole table.
+ * Changes made by other processes are only published if {@link ConnectionManager#enableChangeLog(long, long)} is enabled in both.
+ */
+public class ChangeFeed {
+    /**
+     * The number of changed rows of a table kept individually before they are coalesced into one change to the whole table
+     */
+    static final int MAX_ROW_CHANGES = 64;
+
+    private final Map<String, CopyOnWriteArrayList<Consumer<TableChange>>> subscribers = new ConcurrentHashMap<>();
+    private final ThreadLocal<Object> source = new ThreadLocal<>();
+    private final ThreadLocal<Changes> uncommitted = ThreadLocal.withInitial(Changes::new);
+    private final ThreadLocal<Changes> committed = ThreadLocal.withInitial(Changes::new);
+    private final Consumer<String> debug;
+
+    /**
+     * @param debug Handles failures of subscribers
+     */
+    ChangeFeed(Consumer<String> debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * @param table      The table to receive changes of, ignoring case
+     * @param subscriber Called with each change, on the thread which committed it. This must not block or use a Connection.
+     *                   Subscribing the same subscriber again has no effect.
+     */
+    public void subscribe(String table, Consumer<TableChange> subscriber) {
+        subscribers.computeIfAbsent(table.toLowerCase(Locale.ROOT), t -> new CopyOnWriteArrayList<>()).addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(String table, Consumer<TableChange> subscriber) {
+        subscribers.computeIfPresent(table.toLowerCase(Locale.ROOT), (t, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Runs a change as the provided source, which is attached to every change it makes so a subscriber can ignore changes it made itself
+     */
+    public <T, E extends Exception> T changeAs(Object source, ThrowingSupplier<T, E> change) throws E {
+        Object previous = this.source.get();
+        this.source.set(source);
+        try {
+            return change.get();
+        } finally {
+            if (previous == null) this.source.remove();
+            else this.source.set(previous);
+        }
+    }
+
+    public <E extends Exception> void changeAs(Object source, ThrowingRunnable<E> change) throws E {
+        changeAs(source, () -> {
+            change.run();
+            return null;
+        });
+    }
+
+    @Nullable
+    Object getSource() {
+        return source.get();
+    }
+
+    /**
+     * Records a change made on this thread in the current transaction
+     */
+    void record(TableChange change) {
+        if (!subscribers.containsKey(change.table())) return;
+        uncommitted.get().add(change);
+    }
+
+    /**
+     * Records a change to a single row made on this thread in the current transaction
+     */
+    void recordRow(String table, TableChange.Type type, long rowId) {
+        table = table.toLowerCase(Locale.ROOT);
+        if (!subscribers.containsKey(table)) return;
+        uncommitted.get().add(new TableChange(table, type, rowId, source.get()));
+    }
+
+    /**
+     * Marks the changes recorded on this thread as committed, to be published by {@link #publish()}
+     */
+    void commit() {
+        Changes uncommitted = this.uncommitted.get();
+        if (uncommitted.isEmpty()) return;
+        Changes committed = this.committed.get();
+        uncommitted.forEach(committed::add);
+        uncommitted.clear();
+    }
+
+    void rollback() {
+        uncommitted.get().clear();
+    }
+
+    /**
+     * Discards every change recorded on this thread, committed or not
+     */
+    void discard() {
+        uncommitted.get().clear();
+        committed.get().clear();
+    }
+
+    /**
+     * Publishes the committed changes recorded on this thread. Must be called once they are visible to other Connections.
+     */
+    void publish() {
+        Changes committed = this.committed.get();
+        if (committed.isEmpty()) return;
+        this.committed.set(new Changes());
+        committed.forEach(this::publish);
+    }
+
+    /**
+     * Publishes changes made elsewhere, coalesced as if they were committed together
+     */
+    void publishAll(Collection<TableChange> changes) {
+        Changes coalesced = new Changes();
+        for (TableChange change : changes) {
+            if (subscribers.containsKey(change.table())) coalesced.add(change);
+        }
+        coalesced.forEach(this::publish);
+    }
+
+    void publish(TableChange change) {
+        List<Consumer<TableChange>> subscribers = this.subscribers.get(change.table());
+        if (subscribers == null) return;
+        for (Consumer<TableChange> subscriber : subscribers) {
+            try {
+                subscriber.accept(change);
+            } catch (RuntimeException e) {
+                debug.accept("Subscriber to changes of " + change.table() + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * The changes recorded on one thread, by table. Repeated changes are kept once, and once a table has more than {@link #MAX_ROW_CHANGES},
+     * or any change to the whole table, its changes are merged into one change to the whole table.
+     */
+    private static final class Changes {
+        private final Map<String, List<TableChange>> byTable = new LinkedHashMap<>();
+
+        void add(TableChange change) {
+            List<TableChange> changes = byTable.computeIfAbsent(change.table(), t -> new ArrayList<>(1));
+            if (changes.size() == 1 && !changes.get(0).isRowKnown()) {
+                changes.set(0, merge(changes.get(0), change));
+                return;
+            }
+            if (changes.contains(change)) return;
+            changes.add(change);
+            if (changes.size() > MAX_ROW_CHANGES || !change.isRowKnown()) {
+                TableChange merged = changes.get(0);
+                for (int i = 1; i < changes.size(); i++) merged = merge(merged, changes.get(i));
+                changes.clear();
+                changes.add(new TableChange(merged.table(), merged.type(), null, merged.source()));
+            }
+        }
+
+        private static TableChange merge(TableChange a, TableChange b) {
+            TableChange.Type type = a.type() == b.type() ? a.type() : TableChange.Type.UNKNOWN;
+            return new TableChange(a.table(), type, null, a.source() == b.source() ? a.source() : null);
+        }
+
+        boolean isEmpty() {
+            return byTable.isEmpty();
+        }
+
+        void clear() {
+            byTable.clear();
+        }
+
+        void forEach(Consumer<TableChange> action) {
+            for (List<TableChange> changes : byTable.values()) changes.forEach(action);
+        }
+    }
+}
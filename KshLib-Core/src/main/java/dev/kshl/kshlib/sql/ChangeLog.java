@@ -0,0 +1,133 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares table changes between processes through a table which every write appends to, in the same transaction, and every process polls.
+ * <br>
+ * IDs are assigned when a row is inserted but become visible when its transaction commits, so a later ID may be seen before an earlier one.
+ * Changes are tracked by ID until they are {@link #SETTLE_MILLIS} old, by which point any transaction which could still commit an earlier ID is assumed to have ended.
+ */
+class ChangeLog implements AutoCloseable {
+    static final String TABLE = "kshlib_change_log";
+    private static final long SETTLE_MILLIS = 10_000L;
+    private static final long PRUNE_INTERVAL_MILLIS = 60_000L;
+    private static final int POLL_LIMIT = 10_000;
+    private static final AtomicInteger threadId = new AtomicInteger();
+
+    private final ConnectionManager sql;
+    private final String origin = UUID.randomUUID().toString();
+    private final long retentionMillis;
+    private final ScheduledExecutorService executor;
+    /**
+     * Every change at or below this ID has been seen
+     */
+    private long floor;
+    /**
+     * Changes above the floor which have been seen
+     */
+    private final Set<Long> seen = new HashSet<>();
+    private long lastPrune;
+
+    ChangeLog(ConnectionManager sql, long pollMillis, long retentionMillis) throws SQLException, BusyException {
+        if (pollMillis <= 0) throw new IllegalArgumentException("pollMillis must be greater than 0");
+        if (retentionMillis < SETTLE_MILLIS) throw new IllegalArgumentException("retentionMillis must be at least " + SETTLE_MILLIS);
+        this.sql = sql;
+        this.retentionMillis = retentionMillis;
+        sql.execute(String.format("""
+                CREATE TABLE IF NOT EXISTS %s (
+                    id INTEGER PRIMARY KEY %s,
+                    origin VARCHAR(36),
+                    table_name VARCHAR(64),
+                    op VARCHAR(8),
+                    time BIGINT
+                )""", TABLE, sql.autoincrement()), 3000L);
+        this.floor = sql.query("SELECT MAX(id) FROM " + TABLE, rs -> rs.next() ? rs.getLong(1) : 0L, 3000L);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "KshLib-ChangeLog-" + threadId.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::pollSafely, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a change on the Connection which made it, so it is committed or rolled back along with it
+     */
+    void append(Connection connection, TableChange change) throws SQLException {
+        if (change.table().equals(TABLE)) return;
+        String statement = "INSERT INTO " + TABLE + " (origin,table_name,op,time) VALUES (?,?,?,?)";
+        try (StatementCache.Lease lease = sql.getConnectionPool().prepareStatement(connection, statement, false)) {
+            PreparedStatement preparedStatement = lease.statement();
+            preparedStatement.setString(1, origin);
+            preparedStatement.setString(2, change.table());
+            preparedStatement.setString(3, change.type().name());
+            preparedStatement.setLong(4, System.currentTimeMillis());
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+        } catch (SQLException | BusyException | RuntimeException e) {
+            if (sql.isClosed()) return;
+            sql.debugIfEnabled("Failed to poll " + TABLE + ": " + e);
+        }
+    }
+
+    synchronized void poll() throws SQLException, BusyException {
+        List<Entry> entries = sql.query("SELECT id,origin,table_name,op,time FROM " + TABLE + " WHERE id>? ORDER BY id LIMIT ?", rs -> {
+            List<Entry> out = new ArrayList<>();
+            while (rs.next()) out.add(new Entry(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getLong(5)));
+            return out;
+        }, 3000L, floor, POLL_LIMIT);
+
+        long now = System.currentTimeMillis();
+        boolean settled = true;
+        List<TableChange> changes = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (seen.add(entry.id()) && !origin.equals(entry.origin())) {
+                changes.add(new TableChange(entry.table(), parseType(entry.op()), null, null));
+            }
+            settled &= now - entry.time() >= SETTLE_MILLIS;
+            if (settled) floor = entry.id();
+        }
+        seen.removeIf(id -> id <= floor);
+        sql.getChangeFeed().publishAll(changes);
+
+        if (now - lastPrune >= PRUNE_INTERVAL_MILLIS) {
+            lastPrune = now;
+            sql.execute("DELETE FROM " + TABLE + " WHERE time<?", 3000L, now - retentionMillis);
+        }
+    }
+
+    private static TableChange.Type parseType(String op) {
+        try {
+            return TableChange.Type.valueOf(op);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return TableChange.Type.UNKNOWN;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private record Entry(long id, String origin, String table, String op, long time) {
+    }
+}
@@ -0,0 +1,594 @@
+package dev.kshl.kshlib.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * A variant of {@link ResultMap} which stores each column in a single array instead of each row in a list of boxed values.
+ * <br>
+ * Integer columns are stored as int[] or long[], floating point columns as double[], and text columns as int[] codes into a dictionary of
+ * the distinct strings in that column. Nulls are tracked in a bitmap. Other columns are stored as Objects, as {@link ResultMap} does,
+ * including DECIMAL and NUMERIC, which would lose precision as doubles.
+ * Values are read according to the column's declared type, so on SQLite a value which does not match its column's type may be converted.
+ * Values are boxed as the class {@link ResultSet#getObject(int)} returns for the column, such as Long for MySQL's INT UNSIGNED.
+ * <br>
+ * Rows are views created on access, and boxed values are only created by {@link Result#getValue(int)} and friends.
+ */
+public class ColumnarResultMap {
+    private final Map<String, Integer> labelMap;
+    private final List<String> labels;
+    private final Column[] columns;
+    private final int rows;
+
+    public ColumnarResultMap(ConnectionManager sql, ResultSet rs) throws SQLException {
+        final ResultSetMetaData meta = rs.getMetaData();
+        final int columnCount = meta.getColumnCount();
+
+        final Map<String, Integer> labelMap = new HashMap<>();
+        final List<String> labels = new ArrayList<>();
+        final Builder[] builders = new Builder[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            String name = meta.getColumnName(i + 1);
+            labelMap.putIfAbsent(name, i);
+            labels.add(name);
+            builders[i] = Builder.of(sql, meta, i + 1);
+        }
+        this.labelMap = Collections.unmodifiableMap(labelMap);
+        this.labels = Collections.unmodifiableList(labels);
+
+        int rows = 0;
+        while (rs.next()) {
+            for (int i = 0; i < columnCount; i++) builders[i].read(rs, i + 1, rows);
+            rows++;
+        }
+        this.rows = rows;
+        this.columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) columns[i] = builders[i].build(labels.get(i), rows);
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * @return A view of each row
+     */
+    public List<Result> getResults() {
+        return new AbstractList<>() {
+            @Override
+            public Result get(int index) {
+                checkRow(index);
+                return new Result(index);
+            }
+
+            @Override
+            public int size() {
+                return rows;
+            }
+        };
+    }
+
+    public Column getColumn(int index) throws IndexOutOfBoundsException {
+        if (index >= columns.length || index < 0)
+            throw new IndexOutOfBoundsException("Specified index " + index + " for size " + columns.length);
+        return columns[index];
+    }
+
+    public Column getColumn(String columnName) throws NoSuchElementException {
+        return columns[indexOf(columnName)];
+    }
+
+    public List<Column> getColumns() {
+        return List.of(columns);
+    }
+
+    /**
+     * @return The approximate heap size of the stored values in bytes
+     */
+    public long estimateMemory() {
+        long bytes = 16L + columns.length * 4L;
+        for (Column column : columns) bytes += column.estimateMemory();
+        return bytes;
+    }
+
+    private int indexOf(String columnName) throws NoSuchElementException {
+        Integer index = labelMap.get(columnName);
+        if (index == null) throw new NoSuchElementException("Unknown column: " + columnName);
+        return index;
+    }
+
+    private void checkRow(int row) {
+        if (row >= rows || row < 0) throw new IndexOutOfBoundsException("Specified row " + row + " for size " + rows);
+    }
+
+    public class Result {
+        private final int row;
+
+        private Result(int row) {
+            this.row = row;
+        }
+
+        public <T> T getValue(Class<T> clazz, int index) throws ClassCastException, IndexOutOfBoundsException {
+            return clazz.cast(getValue(index));
+        }
+
+        public Object getValue(int index) throws IndexOutOfBoundsException {
+            return getColumn(index).get(row);
+        }
+
+        public <T> T getValue(Class<T> clazz, String columnName) throws ClassCastException, NoSuchElementException {
+            return clazz.cast(getValue(columnName));
+        }
+
+        public Object getValue(String columnName) throws NoSuchElementException {
+            return getColumn(columnName).get(row);
+        }
+
+        public List<Object> getValues() {
+            List<Object> values = new ArrayList<>(columns.length);
+            for (Column column : columns) values.add(column.get(row));
+            return Collections.unmodifiableList(values);
+        }
+
+        public boolean isNull(int index) {
+            return getColumn(index).isNull(row);
+        }
+
+        public int getInt(int index) {
+            return getColumn(index).getInt(row);
+        }
+
+        public long getLong(int index) {
+            return getColumn(index).getLong(row);
+        }
+
+        public double getDouble(int index) {
+            return getColumn(index).getDouble(row);
+        }
+
+        public int getInt(String columnName) {
+            return getColumn(columnName).getInt(row);
+        }
+
+        public long getLong(String columnName) {
+            return getColumn(columnName).getLong(row);
+        }
+
+        public double getDouble(String columnName) {
+            return getColumn(columnName).getDouble(row);
+        }
+    }
+
+    /**
+     * The values of one column, by row. The primitive getters return 0 for null values, as {@link ResultSet} does.
+     */
+    public static abstract class Column implements Iterable<Object> {
+        private final String label;
+        final int rows;
+        private final long[] nulls;
+
+        private Column(String label, int rows, long[] nulls) {
+            this.label = label;
+            this.rows = rows;
+            this.nulls = nulls;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int size() {
+            return rows;
+        }
+
+        public boolean isNull(int row) {
+            checkRow(row);
+            return nulls != null && (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        /**
+         * @return The value as {@link ResultSet#getObject(int)} would have returned it, or null
+         */
+        public Object get(int row) {
+            if (isNull(row)) return null;
+            return getNonNull(row);
+        }
+
+        abstract Object getNonNull(int row);
+
+        public int getInt(int row) {
+            return (int) getLong(row);
+        }
+
+        public long getLong(int row) {
+            Object value = get(row);
+            return value instanceof Number number ? number.longValue() : 0;
+        }
+
+        public double getDouble(int row) {
+            Object value = get(row);
+            return value instanceof Number number ? number.doubleValue() : 0;
+        }
+
+        public IntStream ints() {
+            return IntStream.range(0, rows).map(this::getInt);
+        }
+
+        public LongStream longs() {
+            return IntStream.range(0, rows).mapToLong(this::getLong);
+        }
+
+        public DoubleStream doubles() {
+            return IntStream.range(0, rows).mapToDouble(this::getDouble);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<>() {
+                private int row;
+
+                @Override
+                public boolean hasNext() {
+                    return row < rows;
+                }
+
+                @Override
+                public Object next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return get(row++);
+                }
+            };
+        }
+
+        long estimateMemory() {
+            return 32L + (nulls == null ? 0 : 16L + nulls.length * 8L);
+        }
+
+        void checkRow(int row) {
+            if (row >= rows || row < 0) throw new IndexOutOfBoundsException("Specified row " + row + " for size " + rows);
+        }
+    }
+
+    /**
+     * How an integer column's values are boxed, to match {@link ResultSet#getObject(int)}
+     */
+    private enum Boxing {
+        INTEGER,
+        LONG,
+        /**
+         * Integer if the value fits, otherwise Long, as SQLite does
+         */
+        BY_SIZE;
+
+        Object box(long value) {
+            if (this == LONG || value != (int) value) return value;
+            return (int) value;
+        }
+    }
+
+    private static final class IntColumn extends Column {
+        private final int[] values;
+        private final Boxing boxing;
+
+        private IntColumn(String label, int rows, long[] nulls, int[] values, Boxing boxing) {
+            super(label, rows, nulls);
+            this.values = values;
+            this.boxing = boxing;
+        }
+
+        @Override
+        Object getNonNull(int row) {
+            return boxing.box(values[row]);
+        }
+
+        @Override
+        public int getInt(int row) {
+            checkRow(row);
+            return values[row];
+        }
+
+        @Override
+        public long getLong(int row) {
+            return getInt(row);
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return getInt(row);
+        }
+
+        @Override
+        public IntStream ints() {
+            return Arrays.stream(values, 0, rows);
+        }
+
+        @Override
+        long estimateMemory() {
+            return super.estimateMemory() + 16L + values.length * 4L;
+        }
+    }
+
+    private static final class LongColumn extends Column {
+        private final long[] values;
+        private final Boxing boxing;
+
+        private LongColumn(String label, int rows, long[] nulls, long[] values, Boxing boxing) {
+            super(label, rows, nulls);
+            this.values = values;
+            this.boxing = boxing;
+        }
+
+        @Override
+        Object getNonNull(int row) {
+            return boxing.box(values[row]);
+        }
+
+        @Override
+        public long getLong(int row) {
+            checkRow(row);
+            return values[row];
+        }
+
+        @Override
+        public double getDouble(int row) {
+            return getLong(row);
+        }
+
+        @Override
+        public LongStream longs() {
+            return Arrays.stream(values, 0, rows);
+        }
+
+        @Override
+        long estimateMemory() {
+            return super.estimateMemory() + 16L + values.length * 8L;
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+        private final double[] values;
+        /**
+         * Whether values are boxed as Float, which converts to double and back exactly
+         */
+        private final boolean isFloat;
+
+        private DoubleColumn(String label, int rows, long[] nulls, double[] values, boolean isFloat) {
+            super(label, rows, nulls);
+            this.values = values;
+            this.isFloat = isFloat;
+        }
+
+        @Override
+        Object getNonNull(int row) {
+            if (isFloat) return (float) values[row];
+            return values[row];
+        }
+
+        @Override
+        public long getLong(int row) {
+            return (long) getDouble(row);
+        }
+
+        @Override
+        public double getDouble(int row) {
+            checkRow(row);
+            return values[row];
+        }
+
+        @Override
+        public DoubleStream doubles() {
+            return Arrays.stream(values, 0, rows);
+        }
+
+        @Override
+        long estimateMemory() {
+            return super.estimateMemory() + 16L + values.length * 8L;
+        }
+    }
+
+    private static final class StringColumn extends Column {
+        private final int[] codes;
+        private final String[] dictionary;
+
+        private StringColumn(String label, int rows, long[] nulls, int[] codes, String[] dictionary) {
+            super(label, rows, nulls);
+            this.codes = codes;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        Object getNonNull(int row) {
+            return dictionary[codes[row]];
+        }
+
+        /**
+         * @return The number of distinct strings in the column
+         */
+        public int getDistinctCount() {
+            return dictionary.length;
+        }
+
+        @Override
+        long estimateMemory() {
+            long bytes = super.estimateMemory() + 16L + codes.length * 4L + 16L + dictionary.length * 4L;
+            for (String string : dictionary) bytes += 40L + string.length();
+            return bytes;
+        }
+    }
+
+    private static final class ObjectColumn extends Column {
+        private final Object[] values;
+
+        private ObjectColumn(String label, int rows, long[] nulls, Object[] values) {
+            super(label, rows, nulls);
+            this.values = values;
+        }
+
+        @Override
+        Object getNonNull(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateMemory() {
+            // The values themselves are not counted, as their size depends on their type
+            return super.estimateMemory() + 16L + values.length * 4L;
+        }
+    }
+
+    /**
+     * Accumulates one column while the ResultSet is read, growing its array by doubling
+     */
+    private static abstract class Builder {
+        long[] nulls;
+
+        static Builder of(ConnectionManager sql, ResultSetMetaData meta, int column) throws SQLException {
+            int type = meta.getColumnType(column);
+            // SQLite boxes by the stored value rather than the declared type
+            String className = sql.isMySQL() ? meta.getColumnClassName(column) : null;
+            return switch (type) {
+                case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> {
+                    if (className == null) yield new IntegerBuilder(Boxing.BY_SIZE);
+                    if (className.equals(Integer.class.getName())) yield new IntegerBuilder(Boxing.INTEGER);
+                    if (className.equals(Long.class.getName())) yield new IntegerBuilder(Boxing.LONG);
+                    yield new ObjectBuilder(sql, type); // Such as BIGINT UNSIGNED, as BigInteger
+                }
+                case Types.FLOAT, Types.REAL, Types.DOUBLE -> new DoubleBuilder(Float.class.getName().equals(className));
+                case Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR -> new TextBuilder();
+                default -> new ObjectBuilder(sql, type);
+            };
+        }
+
+        abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+        abstract Column build(String label, int rows);
+
+        void setNull(int row) {
+            if (nulls == null) nulls = new long[Math.max(1, (row >>> 6) + 1) * 2];
+            else if ((row >>> 6) >= nulls.length) nulls = Arrays.copyOf(nulls, Math.max(nulls.length * 2, (row >>> 6) + 1));
+            nulls[row >>> 6] |= 1L << row;
+        }
+
+        long[] trimNulls(int rows) {
+            return nulls == null ? null : Arrays.copyOf(nulls, (rows + 63) >>> 6);
+        }
+    }
+
+    private static final class IntegerBuilder extends Builder {
+        private final Boxing boxing;
+        private long[] values = new long[16];
+        private boolean exceedsInt;
+
+        private IntegerBuilder(Boxing boxing) {
+            this.boxing = boxing;
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException {
+            if (row >= values.length) values = Arrays.copyOf(values, values.length * 2);
+            long value = rs.getLong(index);
+            if (rs.wasNull()) setNull(row);
+            else if (value != (int) value) exceedsInt = true;
+            values[row] = value;
+        }
+
+        @Override
+        Column build(String label, int rows) {
+            if (exceedsInt) return new LongColumn(label, rows, trimNulls(rows), Arrays.copyOf(values, rows), boxing);
+            int[] ints = new int[rows];
+            for (int i = 0; i < rows; i++) ints[i] = (int) values[i];
+            return new IntColumn(label, rows, trimNulls(rows), ints, boxing);
+        }
+    }
+
+    private static final class DoubleBuilder extends Builder {
+        private final boolean isFloat;
+        private double[] values = new double[16];
+
+        private DoubleBuilder(boolean isFloat) {
+            this.isFloat = isFloat;
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException {
+            if (row >= values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[row] = rs.getDouble(index);
+            if (rs.wasNull()) setNull(row);
+        }
+
+        @Override
+        Column build(String label, int rows) {
+            return new DoubleColumn(label, rows, trimNulls(rows), Arrays.copyOf(values, rows), isFloat);
+        }
+    }
+
+    private static final class TextBuilder extends Builder {
+        private final Map<String, Integer> codesByString = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+        private int[] codes = new int[16];
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException {
+            if (row >= codes.length) codes = Arrays.copyOf(codes, codes.length * 2);
+            String value = rs.getString(index);
+            if (value == null) {
+                setNull(row);
+                return;
+            }
+            Integer code = codesByString.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                codesByString.put(value, code);
+                dictionary.add(value);
+            }
+            codes[row] = code;
+        }
+
+        @Override
+        Column build(String label, int rows) {
+            return new StringColumn(label, rows, trimNulls(rows), Arrays.copyOf(codes, rows), dictionary.toArray(new String[0]));
+        }
+    }
+
+    private static final class ObjectBuilder extends Builder {
+        private final ConnectionManager sql;
+        private final int type;
+        private Object[] values = new Object[16];
+
+        private ObjectBuilder(ConnectionManager sql, int type) {
+            this.sql = sql;
+            this.type = type;
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException {
+            if (row >= values.length) values = Arrays.copyOf(values, values.length * 2);
+            Object value = type == Types.BLOB ? sql.getBlob(rs, index) : rs.getObject(index);
+            if (rs.wasNull() || value == null) setNull(row);
+            else values[row] = value;
+        }
+
+        @Override
+        Column build(String label, int rows) {
+            return new ObjectColumn(label, rows, trimNulls(rows), Arrays.copyOf(values, rows));
+        }
+    }
+}
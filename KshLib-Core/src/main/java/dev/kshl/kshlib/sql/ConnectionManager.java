@@ -30,21 +30,39 @@ import java.sql.Savepoint;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public abstract class ConnectionManager implements Closeable, AutoCloseable {
+    private static final int DEFAULT_CHECKSUM_CHUNK_ROWS = 10_000;
+    private static final int DEFAULT_CHECKSUM_PARALLELISM = 4;
+    /**
+     * The number of rows executed at once by {@link #executeBatch(Connection, String, Iterator, ThrowingFunction)}
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * An INSERT or REPLACE with a single VALUES row of only parameters, optionally followed by a clause without parameters such as ON CONFLICT
+     */
+    private static final Pattern MULTI_ROW_INSERT = Pattern.compile("(?is)(\\s*(?:INSERT|REPLACE)\\b[^?]*?\\bVALUES\\s*)(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))([^?]*?)\\s*;?\\s*");
+
     @Getter(AccessLevel.PACKAGE)
     private final ConnectionPool connectionPool;
     @Getter
@@ -53,15 +71,53 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
     private boolean ready;
     private boolean shuttingDown;
     private final CompletableFuture<Void> readyCompletable = new CompletableFuture<>();
+    private WriteQueue writeQueue;
+    private AsyncExecutor asyncExecutor;
+    /**
+     * The cache used by {@link StatementBuilder#cached()} statements, or null if it is not enabled
+     */
+    @Getter
+    @Nullable
+    private volatile QueryCache queryCache;
+    @Nullable
+    private volatile ChangeLog changeLog;
+    /**
+     * The policy the built-in managers retry their transactions under, shared so they draw from one retry budget
+     */
+    @Getter
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    /**
+     * How deeply the current thread is nested in {@link #execute(ConnectionFunction, long)}
+     */
+    private final ThreadLocal<int[]> executeDepth = ThreadLocal.withInitial(() -> new int[1]);
 
     public ConnectionManager(File sqliteFile) throws IOException, SQLException, ClassNotFoundException {
         this(sqliteFile, null, null, null, null, 0);
     }
 
+    /**
+     * Opens a SQLite database with the provided read pool size, pragmas, and checkpointing
+     */
+    public ConnectionManager(File sqliteFile, SQLiteTuning tuning) throws IOException, SQLException, ClassNotFoundException {
+        this.connectionPool = new ConnectionPoolSQLite(sqliteFile, tuning);
+        connectionPool.setDebug(this::debugIfEnabled);
+    }
+
     public ConnectionManager(String uri, String database, String user, String password, int poolSize) throws IOException, SQLException, ClassNotFoundException {
         this(null, uri, database, user, password, poolSize);
     }
 
+    /**
+     * Connects to a MySQL primary and sends read-only work to a read replica of it.
+     *
+     * @param replicaUri      The host and port of the replica, or null to send all work to the primary
+     * @param replicaPoolSize The maximum number of Connections to the replica
+     */
+    public ConnectionManager(String uri, String database, String user, String password, int poolSize, @Nullable String replicaUri, int replicaPoolSize) throws ClassNotFoundException {
+        this.connectionPool = new ConnectionPoolHikari(uri, database, user, password, poolSize, replicaUri, replicaPoolSize);
+        connectionPool.setDebug(this::debugIfEnabled);
+    }
+
     public ConnectionManager(@Nullable File sqliteFile, @Nullable String hostAndPort, @Nullable String database, @Nullable String user, @Nullable String password, int poolSize) throws ClassNotFoundException, SQLException, IOException {
         if (sqliteFile != null) {
             this.connectionPool = new ConnectionPoolSQLite(sqliteFile);
@@ -70,6 +126,7 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         } else {
             throw new NullPointerException("sqliteFile or hostAndPort must be not null");
         }
+        connectionPool.setDebug(this::debugIfEnabled);
     }
 
     @SuppressWarnings("unused")
@@ -116,6 +173,9 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
             connectionPool.consume(this::init, 1000000L);
         } catch (BusyException ignored) {
             // impossible (ready not marked true until after this)
+        } finally {
+            // Nothing could have been cached from the tables before they were initialized
+            connectionPool.getChangeFeed().discard();
         }
         ready = true;
         readyCompletable.complete(null);
@@ -140,6 +200,18 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
     @Override
     public void close() {
         if (closed) return;
+        WriteQueue writeQueue;
+        AsyncExecutor asyncExecutor;
+        ChangeLog changeLog;
+        synchronized (this) {
+            writeQueue = this.writeQueue;
+            asyncExecutor = this.asyncExecutor;
+            changeLog = this.changeLog;
+        }
+        // Closed outside the lock, since pending writes and tasks may call synchronized methods while they are waited for
+        if (writeQueue != null) writeQueue.close();
+        if (asyncExecutor != null) asyncExecutor.close();
+        if (changeLog != null) changeLog.close();
         closed = true;
 
         connectionPool.close();
@@ -179,6 +251,13 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return applyResultSet(stmt, rs -> new ResultMap(this, rs)).args(args).executeQuery(wait);
     }
 
+    /**
+     * @see ColumnarResultMap
+     */
+    public final ColumnarResultMap executeReturnColumnarMap(String stmt, long wait, Object... args) throws SQLException, BusyException {
+        return applyResultSet(stmt, rs -> new ColumnarResultMap(this, rs)).args(args).executeQuery(wait);
+    }
+
     //
     //   EXECUTE
     //
@@ -207,15 +286,30 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         if (closed) throw new IllegalStateException("closed");
         if (!ready) throw new IllegalStateException("Not yet initialized");
         checkAsync_();
+        int[] depth = executeDepth.get();
+        depth[0]++;
         try {
             return connectionPool.executeWithException(task::apply, wait, readOnly);
         } catch (SQLException | BusyException | RuntimeException e) {
             throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            if (--depth[0] == 0) onConnectionReleased();
         }
     }
 
+    /**
+     * Called once the current thread has returned its Connection, so any transaction it made has ended and is visible to other Connections
+     */
+    private void onConnectionReleased() {
+        QueryCache queryCache = this.queryCache;
+        if (queryCache != null) queryCache.onTransactionEnd();
+        ChangeFeed changeFeed = connectionPool.getChangeFeed();
+        changeFeed.commit();
+        changeFeed.publish();
+    }
+
 
     /**
      * Same as {@link ConnectionManager#execute(ConnectionFunction, long)} with no return
@@ -240,6 +334,78 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return execute((ConnectionFunction<T>) connection -> executeTransaction(connection, () -> task.apply(connection)), wait);
     }
 
+    /**
+     * Same as {@link ConnectionManager#executeTransaction(ConnectionFunction, long, RetryPolicy)} with no return
+     */
+    public final void executeTransaction(ConnectionConsumer task, long wait, RetryPolicy retryPolicy) throws SQLException, BusyException {
+        executeTransaction(connection -> {
+            task.accept(connection);
+            return null;
+        }, wait, retryPolicy);
+    }
+
+    /**
+     * Same as {@link ConnectionManager#executeTransaction(ConnectionFunction, long)}, but retries the transaction if it fails due to contention
+     * with another transaction, as allowed by the retry policy. The Connection is released while waiting to retry.
+     * <br>
+     * If the current thread is already in a transaction, the task joins it and is not retried, as the failure may have rolled back the entire transaction.
+     */
+    public final <T> T executeTransaction(ConnectionFunction<T> task, long wait, RetryPolicy retryPolicy) throws SQLException, BusyException {
+        retryPolicy.onTransaction();
+        for (int attempt = 1; ; attempt++) {
+            boolean[] retryable = new boolean[1];
+            try {
+                return execute((ConnectionFunction<T>) connection -> {
+                    retryable[0] = connection.getAutoCommit();
+                    return executeTransaction(connection, () -> task.apply(connection));
+                }, wait);
+            } catch (SQLException e) {
+                if (!retryable[0] || !retryPolicy.tryRetry(e, attempt)) throw e;
+                sleepBeforeRetry(retryPolicy, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link ConnectionManager#executeTransaction(Connection, RetryPolicy, ThrowingSupplier)} with no return
+     */
+    public final void executeTransaction(Connection connection, RetryPolicy retryPolicy, ThrowingRunnable<SQLException> task) throws SQLException {
+        executeTransaction(connection, retryPolicy, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Same as {@link ConnectionManager#executeTransaction(Connection, ThrowingSupplier)}, but retries the transaction if it fails due to contention
+     * with another transaction, as allowed by the retry policy. The Connection remains held while waiting to retry, which on SQLite keeps the write lock,
+     * so prefer {@link #executeTransaction(ConnectionFunction, long, RetryPolicy)} where the Connection is not already held.
+     * <br>
+     * If the Connection is already in a transaction, the task joins it and is not retried, as the failure may have rolled back the entire transaction.
+     */
+    public <T> T executeTransaction(Connection connection, RetryPolicy retryPolicy, ThrowingSupplier<T, SQLException> task) throws SQLException {
+        if (!connection.getAutoCommit()) return executeTransaction(connection, task);
+        retryPolicy.onTransaction();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeTransaction(connection, task);
+            } catch (SQLException e) {
+                if (!retryPolicy.tryRetry(e, attempt)) throw e;
+                sleepBeforeRetry(retryPolicy, attempt, e);
+            }
+        }
+    }
+
+    private static void sleepBeforeRetry(RetryPolicy retryPolicy, int attempt, SQLException cause) throws SQLException {
+        try {
+            Thread.sleep(retryPolicy.getDelayMillis(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cause.addSuppressed(e);
+            throw cause;
+        }
+    }
+
     /**
      * Same as {@link ConnectionManager#execute(ConnectionFunction, long)} with no return
      */
@@ -300,6 +466,10 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
             throw new RuntimeException(e);
         } finally {
             if (beganTransaction) {
+                QueryCache queryCache = this.queryCache;
+                if (queryCache != null) queryCache.onTransactionEnd();
+                if (throwable == null) connectionPool.getChangeFeed().commit();
+                else connectionPool.getChangeFeed().rollback();
                 try {
                     connection.setAutoCommit(true);
                 } catch (SQLException e) {
@@ -334,26 +504,250 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         execute(stmt).args(args).executeQuery(connection);
     }
 
-    public <T> void executeBatch(String statement, Collection<T> collection, ThrowingFunction<T, List<?>, SQLException> valueFunction, long wait) throws SQLException, BusyException {
-        execute((ConnectionConsumer) connection -> executeBatch(connection, statement, collection, valueFunction), wait);
+    public <T> void executeBatch(String statement, Iterable<T> elements, ThrowingFunction<T, List<?>, SQLException> valueFunction, long wait) throws SQLException, BusyException {
+        execute((ConnectionConsumer) connection -> executeBatch(connection, statement, elements, valueFunction), wait);
+    }
+
+    public <T> void executeBatch(Connection connection, String statement, Iterable<T> elements, ThrowingFunction<T, List<?>, SQLException> valueFunction) throws SQLException {
+        executeBatch(connection, statement, elements.iterator(), valueFunction);
     }
 
-    public <T> void executeBatch(Connection connection, String statement, Collection<T> collection, ThrowingFunction<T, List<?>, SQLException> valueFunction) throws SQLException {
+    /**
+     * Executes the statement once for each element within a single transaction. Elements are read from the iterator as they are executed.
+     * <br>
+     * A simple INSERT or REPLACE statement whose only parameters are one VALUES (?,...) row is rewritten to insert many rows per execution,
+     * up to the driver's parameter limit. Other statements are executed as JDBC batches of {@link #BATCH_SIZE} elements.
+     */
+    public <T> void executeBatch(Connection connection, String statement, Iterator<T> elements, ThrowingFunction<T, List<?>, SQLException> valueFunction) throws SQLException {
         executeTransaction(connection, () -> {
+            Matcher matcher = MULTI_ROW_INSERT.matcher(statement);
+            if (matcher.matches()) {
+                executeMultiRow(connection, matcher, elements, valueFunction);
+                onWrite(connection, statement);
+                return;
+            }
             try (PreparedStatement ps = connection.prepareStatement(statement)) {
-                for (T element : collection) {
-                    List<?> values = valueFunction.apply(element);
+                int batched = 0;
+                while (elements.hasNext()) {
+                    List<?> values = valueFunction.apply(elements.next());
                     for (int i = 0; i < values.size(); i++) {
                         Object value = values.get(i);
                         prepare(ps, i + 1, value);
                     }
                     ps.addBatch();
+                    if (++batched >= BATCH_SIZE) {
+                        ps.executeBatch();
+                        batched = 0;
+                    }
                 }
-                ps.executeBatch();
+                if (batched > 0) ps.executeBatch();
             }
+            onWrite(connection, statement);
         });
     }
 
+    private <T> void executeMultiRow(Connection connection, Matcher insert, Iterator<T> elements, ThrowingFunction<T, List<?>, SQLException> valueFunction) throws SQLException {
+        String row = insert.group(2);
+        int columns = row.length() - row.replace("?", "").length();
+        int rowsPerStatement = Math.max(1, Math.min(BATCH_SIZE, getMaxParameters() / columns));
+
+        Object[] buffer = new Object[rowsPerStatement * columns];
+        PreparedStatement full = null;
+        try {
+            int rows = 0;
+            while (elements.hasNext()) {
+                List<?> values = valueFunction.apply(elements.next());
+                if (values.size() != columns) {
+                    throw new IllegalArgumentException("Expected " + columns + " values per row, got " + values.size());
+                }
+                for (int i = 0; i < columns; i++) buffer[rows * columns + i] = values.get(i);
+                if (++rows < rowsPerStatement) continue;
+
+                if (full == null) full = connection.prepareStatement(multiRowStatement(insert, rowsPerStatement));
+                prepare(full, buffer);
+                full.executeUpdate();
+                rows = 0;
+            }
+            if (rows > 0) {
+                try (PreparedStatement partial = connection.prepareStatement(multiRowStatement(insert, rows))) {
+                    prepare(partial, Arrays.copyOf(buffer, rows * columns));
+                    partial.executeUpdate();
+                }
+            }
+        } finally {
+            if (full != null) full.close();
+        }
+    }
+
+    private static String multiRowStatement(Matcher insert, int rows) {
+        String row = insert.group(2);
+        StringBuilder builder = new StringBuilder(insert.group(1).length() + rows * (row.length() + 1) + insert.group(3).length());
+        builder.append(insert.group(1));
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(row);
+        }
+        return builder.append(insert.group(3)).toString();
+    }
+
+    /**
+     * @return The maximum number of parameters in a single statement
+     */
+    protected int getMaxParameters() {
+        // SQLite's default SQLITE_MAX_VARIABLE_NUMBER since 3.32, and MySQL's limit of placeholders per prepared statement
+        return isMySQL() ? 65535 : 32766;
+    }
+
+    /**
+     * Configures the queue used by {@link #submitWrite(ConnectionConsumer)}. Must be called before the first write is submitted.
+     *
+     * @param maxBatchSize   The maximum number of writes committed in a single transaction
+     * @param maxDelayMillis The maximum time to wait for more writes after the first write of a batch arrives
+     */
+    public void configureWriteQueue(int maxBatchSize, long maxDelayMillis) {
+        configureWriteQueue(maxBatchSize, maxDelayMillis, 10_000);
+    }
+
+    /**
+     * @param maxPending The maximum number of writes waiting to be flushed, beyond which writes fail immediately with a {@link BusyException}
+     * @see #configureWriteQueue(int, long)
+     */
+    public synchronized void configureWriteQueue(int maxBatchSize, long maxDelayMillis, int maxPending) {
+        if (writeQueue != null) throw new IllegalStateException("Write queue already started");
+        writeQueue = new WriteQueue(this, maxBatchSize, maxDelayMillis, maxPending, 10000L);
+    }
+
+    /**
+     * Queues a write to be executed asynchronously on a dedicated thread. Pending writes are grouped into a single transaction per flush,
+     * which is considerably faster than committing each write separately, especially on SQLite where every commit is a WAL sync.
+     * <br>
+     * Each write runs within its own savepoint, so a write which throws only fails its own future.
+     * The returned future completes once the transaction containing the write has been committed.
+     *
+     * @param task The write to execute. This must not block on other submitted writes.
+     * @return A future completed after commit, or completed exceptionally if the write or the commit failed, or with a {@link BusyException} if the queue is full
+     */
+    public CompletableFuture<Void> submitWrite(ConnectionConsumer task) {
+        if (closed) throw new IllegalStateException("closed");
+        if (!ready) throw new IllegalStateException("Not yet initialized");
+        WriteQueue queue;
+        synchronized (this) {
+            if (writeQueue == null) writeQueue = new WriteQueue(this, 256, 10L, 10_000, 10000L);
+            queue = writeQueue;
+        }
+        return queue.submit(task);
+    }
+
+    /**
+     * @return The number of writes submitted via {@link #submitWrite(ConnectionConsumer)} which are waiting to be flushed
+     */
+    public synchronized int getPendingWrites() {
+        return writeQueue == null ? 0 : writeQueue.getPending();
+    }
+
+    /**
+     * @return The number of writes submitted via {@link #submitWrite(ConnectionConsumer)} which failed immediately because the queue was full
+     */
+    public synchronized long getRejectedWrites() {
+        return writeQueue == null ? 0 : writeQueue.getRejected();
+    }
+
+    /**
+     * Configures the executor used by the async methods, such as {@link #executeAsync(ConnectionFunction, long)}. Must be called before the first async task is submitted.
+     *
+     * @param concurrency    The maximum number of tasks run at once. There is no benefit to exceeding the number of Connections in the pool.
+     * @param maxQueued      The maximum number of tasks waiting to run, beyond which tasks fail immediately with a {@link BusyException}
+     * @param virtualThreads Whether to run each task on its own virtual thread, if the runtime is Java 21 or newer. Otherwise a fixed pool of platform threads is used.
+     */
+    public synchronized void configureAsync(int concurrency, int maxQueued, boolean virtualThreads) {
+        if (asyncExecutor != null) throw new IllegalStateException("Async executor already started");
+        asyncExecutor = new AsyncExecutor(concurrency, maxQueued, virtualThreads);
+    }
+
+    private <T> CompletableFuture<T> submitAsync(ThrowingSupplier<T, Exception> task) {
+        if (closed) throw new IllegalStateException("closed");
+        if (!ready) throw new IllegalStateException("Not yet initialized");
+        AsyncExecutor executor;
+        synchronized (this) {
+            if (asyncExecutor == null) asyncExecutor = new AsyncExecutor(8, 1024, false);
+            executor = asyncExecutor;
+        }
+        return executor.submit(task);
+    }
+
+    /**
+     * Runs {@link #execute(ConnectionFunction, long)} on the async executor, so the caller never blocks. The future is completed on the executor's thread,
+     * so dependent stages which block should use the async variants of {@link CompletableFuture}'s methods.
+     *
+     * @return A future of the value returned by the task, completed exceptionally with a {@link BusyException} if the async queue is full or the lock wait is exceeded
+     */
+    public <T> CompletableFuture<T> executeAsync(ConnectionFunction<T> task, long wait) {
+        return submitAsync(() -> execute(task, wait));
+    }
+
+    /**
+     * Same as {@link ConnectionManager#executeAsync(ConnectionFunction, long)} with no return
+     */
+    public CompletableFuture<Void> executeAsync(ConnectionConsumer task, long wait) {
+        return submitAsync(() -> {
+            execute(task, wait);
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@link #execute(String, long, Object...)} on the async executor
+     *
+     * @see #executeAsync(ConnectionFunction, long)
+     */
+    public CompletableFuture<Void> executeAsync(String statement, long wait, Object... args) {
+        return submitAsync(() -> {
+            execute(statement, wait, args);
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@link #query(String, ResultSetFunction, long, Object...)} on the async executor
+     *
+     * @see #executeAsync(ConnectionFunction, long)
+     */
+    public <T> CompletableFuture<T> queryAsync(String statement, ResultSetFunction<T> resultSetFunction, long wait, Object... args) {
+        return submitAsync(() -> query(statement, resultSetFunction, wait, args));
+    }
+
+    /**
+     * Runs {@link #executeTransaction(ConnectionFunction, long)} on the async executor
+     *
+     * @see #executeAsync(ConnectionFunction, long)
+     */
+    public <T> CompletableFuture<T> executeTransactionAsync(ConnectionFunction<T> task, long wait) {
+        return submitAsync(() -> executeTransaction(task, wait));
+    }
+
+    /**
+     * Runs {@link #executeTransaction(ConnectionFunction, long, RetryPolicy)} on the async executor. The executor's thread is held while waiting to retry.
+     *
+     * @see #executeAsync(ConnectionFunction, long)
+     */
+    public <T> CompletableFuture<T> executeTransactionAsync(ConnectionFunction<T> task, long wait, RetryPolicy retryPolicy) {
+        return submitAsync(() -> executeTransaction(task, wait, retryPolicy));
+    }
+
+    /**
+     * @return The number of async tasks which have been submitted but not completed
+     */
+    public synchronized int getPendingAsync() {
+        return asyncExecutor == null ? 0 : asyncExecutor.getPending();
+    }
+
+    /**
+     * @return The number of async tasks which failed immediately because the async queue was full
+     */
+    public synchronized long getRejectedAsync() {
+        return asyncExecutor == null ? 0 : asyncExecutor.getRejected();
+    }
+
     //
     // QUERY
     //
@@ -408,6 +802,82 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return stream.build();
     }
 
+    /**
+     * A lazy alternative to {@link #queryAll(String, ResultSetFunction, long, Object...)} for large scans.
+     * Rows are pulled from the database as the Stream is consumed, with the driver fetching {@code fetchSize} rows at a time
+     * (on MySQL, one row at a time, streamed over the Stream's own Connection), so memory use stays flat regardless of the size of the result.
+     * <br>
+     * The read Connection is held until the Stream is closed, so it must be used in a try-with-resources block. It may be closed by any thread.
+     * On SQLite, writes wait for the Stream to be closed, so they can not be made from the thread which opened it while it is open,
+     * and closing the ConnectionManager waits a few seconds for it before closing its Connection regardless.
+     *
+     * @param statement         The SQL statement
+     * @param resultSetFunction The function to convert the current row of the ResultSet to ONE instance of {@link T}
+     * @param fetchSize         How many rows the driver should fetch at a time. Only applies to SQLite, as MySQL always streams one row at a time
+     * @param wait              How long to wait for a Connection
+     * @param args              SQL parameters
+     * @param <T>               The type of object
+     */
+    @CheckReturnValue
+    public final <T> Stream<T> streamAll(String statement, ResultSetFunction<T> resultSetFunction, int fetchSize, long wait, Object... args) throws SQLException, BusyException {
+        if (closed) throw new IllegalStateException("closed");
+        if (!ready) throw new IllegalStateException("Not yet initialized");
+        if (fetchSize <= 0) throw new IllegalArgumentException("fetchSize must be > 0");
+        checkAsync_();
+        debugSQLStatement("[STREAM] " + statement, args);
+
+        final ConnectionPool.BorrowedConnection borrowed;
+        try {
+            borrowed = connectionPool.borrowReadOnly(statement, args, wait);
+        } catch (SQLException | BusyException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        PreparedStatement preparedStatement = null;
+        final ResultSet rs;
+        try {
+            preparedStatement = borrowed.connection().prepareStatement(statement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            connectionPool.setStreamingFetchSize(preparedStatement, fetchSize);
+            prepare(preparedStatement, args);
+            checkEnoughArguments(preparedStatement, args);
+            rs = preparedStatement.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            if (preparedStatement != null) {
+                try {
+                    preparedStatement.close();
+                } catch (SQLException e1) {
+                    e.addSuppressed(e1);
+                }
+            }
+            borrowed.close();
+            throw e;
+        }
+
+        final PreparedStatement preparedStatement_ = preparedStatement;
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!rs.next()) return false;
+                    action.accept(resultSetFunction.apply(rs));
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            //noinspection EmptyTryBlock
+            try (rs; preparedStatement_) {
+            } catch (SQLException ignored) {
+            } finally {
+                borrowed.close();
+            }
+        });
+    }
+
     @SuppressWarnings("unused")
     public final byte[] getBlob(ResultSet rs, String key) throws SQLException {
         if (isMySQL()) {
@@ -460,47 +930,50 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return execute((ConnectionFunction<Integer>) connection -> count(connection, table), wait);
     }
 
+    /**
+     * @param orderByColumn The column to split the table into chunks by. Should be indexed, ideally the primary key.
+     * @return A digest of the table, which does not depend on the order of its rows
+     * @see #checksum(String, String, Predicate, int, int, long)
+     */
     public long hash(String table, String orderByColumn, Predicate<String> doIncludeColumn) throws SQLException, BusyException {
-        return query("SELECT * FROM " + table + " ORDER BY " + orderByColumn, rs -> {
-            List<String> columns = new ArrayList<>();
-            for (int i = 0; i < rs.getMetaData().getColumnCount(); i++) {
-                String columnName = rs.getMetaData().getColumnName(i + 1);
-                if (!doIncludeColumn.test(columnName)) continue;
-                columns.add(columnName);
-            }
-            columns.sort(String::compareTo);
-            long hash = 0;
-            for (String column : columns) hash = hash * 31 + column.hashCode();
-
-            while (rs.next()) {
-                for (String column : columns) {
-                    hash *= 31;
-                    hash += Objects.hash(rs.getObject(column));
-                }
-            }
-            return hash;
-        }, 10000L);
+        return checksum(table, orderByColumn, doIncludeColumn, DEFAULT_CHECKSUM_CHUNK_ROWS, DEFAULT_CHECKSUM_PARALLELISM, 10000L).getDigest();
     }
 
+    /**
+     * @param orderByColumn The column to split the table into chunks by. Should be indexed, ideally the primary key.
+     * @return A digest of each column of the table, by column name in alphabetical order
+     * @see #checksum(String, String, Predicate, int, int, long)
+     */
     public List<Map.Entry<String, AtomicLong>> hashEachColumn(String table, String orderByColumn) throws SQLException, BusyException {
-        return query("SELECT * FROM " + table + " ORDER BY " + orderByColumn, rs -> {
-            List<String> columns = new ArrayList<>();
-            for (int i = 0; i < rs.getMetaData().getColumnCount(); i++) {
-                columns.add(rs.getMetaData().getColumnName(i + 1));
-            }
-            columns.sort(String::compareTo);
-            Map<String, AtomicLong> hash = new HashMap<>();
-            while (rs.next()) {
-                for (String column : columns) {
-                    AtomicLong columnHash = hash.computeIfAbsent(column, c -> new AtomicLong());
-                    Object value = rs.getObject(column);
-                    columnHash.getAndUpdate(l -> l * 31 + Objects.hash(value));
-                }
-            }
-            var out = new ArrayList<>(hash.entrySet());
-            out.sort(Map.Entry.comparingByKey());
-            return out;
-        }, 10000L);
+        List<Map.Entry<String, AtomicLong>> out = new ArrayList<>();
+        checksum(table, orderByColumn, c -> true, DEFAULT_CHECKSUM_CHUNK_ROWS, DEFAULT_CHECKSUM_PARALLELISM, 10000L).getColumnDigests()
+                .forEach((column, digest) -> out.add(Map.entry(column, new AtomicLong(digest))));
+        return out;
+    }
+
+    /**
+     * Computes a checksum of a table in chunks of chunkRows consecutive keys, hashing up to parallelism chunks at once, each on its own connection.
+     *
+     * @param keyColumn The column to split the table into chunks by. Should be indexed, ideally the primary key.
+     * @param wait      The maximum time to wait for each connection
+     */
+    public TableChecksum checksum(String table, String keyColumn, Predicate<String> doIncludeColumn, int chunkRows, int parallelism, long wait) throws SQLException, BusyException {
+        validateTableName(table);
+        validateTableName(keyColumn);
+        List<Object> boundaries = TableChecksum.findBoundaries(this, table, keyColumn, chunkRows, wait);
+        return TableChecksum.compute(this, table, keyColumn, doIncludeColumn, boundaries, parallelism, wait);
+    }
+
+    /**
+     * Computes a checksum of a table split at the boundaries of another checksum, such as of the same table on another database,
+     * so the two can be {@link TableChecksum#diff(TableChecksum) diffed}.
+     *
+     * @see #checksum(String, String, Predicate, int, int, long)
+     */
+    public TableChecksum checksum(String table, String keyColumn, Predicate<String> doIncludeColumn, TableChecksum boundariesOf, int parallelism, long wait) throws SQLException, BusyException {
+        validateTableName(table);
+        validateTableName(keyColumn);
+        return TableChecksum.compute(this, table, keyColumn, doIncludeColumn, boundariesOf.getBoundaries(), parallelism, wait);
     }
 
     public List<String> listTables() throws SQLException, BusyException {
@@ -602,13 +1075,24 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         throw new IllegalStateException("Synchronous call to database.");
     }
 
+    void debugIfEnabled(String line) {
+        if (isDebug()) debug(line);
+    }
+
     protected void debugSQLStatement(String stmt, Object... args) {
         if (!isDebug()) return;
+        debug(formatStatement(stmt, args, Objects::toString));
+    }
+
+    /**
+     * Substitutes each argument into the statement in place of its parameter, or lists them after it if they can not be substituted
+     */
+    static String formatStatement(String stmt, @Nullable Object[] args, Function<Object, String> formatArgument) {
         final String originalStmt = stmt;
         if (args == null) args = new Object[0];
         try {
             for (Object arg : args) {
-                stmt = stmt.replaceFirst("\\?", Objects.toString(arg).replace("\\", "\\\\"));
+                stmt = stmt.replaceFirst("\\?", formatArgument.apply(arg).replace("\\", "\\\\"));
             }
         } catch (Exception e) {
             stmt = originalStmt + ": ";
@@ -617,11 +1101,18 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
             for (Object o : args) {
                 if (first) first = false;
                 else stmtBuilder.append(", ");
-                stmtBuilder.append(o);
+                stmtBuilder.append(formatArgument.apply(o));
             }
             stmt = stmtBuilder.toString();
         }
-        debug(stmt);
+        return stmt;
+    }
+
+    /**
+     * Formats an argument as its type, so statements can be logged without their values
+     */
+    static String redactArgument(@Nullable Object arg) {
+        return arg == null ? "NULL" : "<" + arg.getClass().getSimpleName() + ">";
     }
 
     public final boolean isMySQL() {
@@ -818,6 +1309,20 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return connectionPool.getUsageTimeRatios();
     }
 
+    /**
+     * The [p50, p99, p99.9] time in milliseconds spent waiting to acquire a Connection over the past minute
+     */
+    public double[] getWaitTimePercentiles() {
+        return connectionPool.getWaitTimePercentiles();
+    }
+
+    /**
+     * The [p50, p99, p99.9] time in milliseconds Connections were held for over the past minute
+     */
+    public double[] getHoldTimePercentiles() {
+        return connectionPool.getHoldTimePercentiles();
+    }
+
     public int getActiveConnections() {
         return connectionPool.getActiveConnections();
     }
@@ -826,6 +1331,127 @@ public abstract class ConnectionManager implements Closeable, AutoCloseable {
         return connectionPool.getAllEstablishedConnections();
     }
 
+    boolean isConnectionHeldByCurrentThread() {
+        return connectionPool.isConnectionHeldByCurrentThread();
+    }
+
+    public int getActiveReadConnections() {
+        return connectionPool.getActiveReadConnections();
+    }
+
+    public int getAllEstablishedReadConnections() {
+        return connectionPool.getAllEstablishedReadConnections();
+    }
+
+    /**
+     * Sets the maximum number of prepared statements cached per Connection. 0 disables the cache.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) throw new IllegalArgumentException("statementCacheSize must be >= 0");
+        connectionPool.setStatementCacheSize(statementCacheSize);
+    }
+
+    /**
+     * Enables caching the results of {@link StatementBuilder#cached()} statements, up to an estimated total size.
+     * Cached results are invalidated by writes to the tables they read, made through this ConnectionManager.
+     *
+     * @param maxBytes The maximum estimated size of all cached results. The least recently used results are evicted beyond this.
+     * @see QueryCache
+     */
+    public void enableQueryCache(long maxBytes) {
+        queryCache = new QueryCache(maxBytes);
+    }
+
+    public void disableQueryCache() {
+        queryCache = null;
+    }
+
+    /**
+     * Invalidates cached results which read the tables written by the statement, and records the change it made
+     */
+    void onWrite(Connection connection, String statement) throws SQLException {
+        QueryCache queryCache = this.queryCache;
+        if (queryCache != null) queryCache.onWrite(connection, statement);
+
+        ChangeFeed changeFeed = connectionPool.getChangeFeed();
+        ChangeLog changeLog = this.changeLog;
+        if (changeLog == null && !changeFeed.hasSubscribers()) return;
+        TableChange change = TableChange.fromStatement(statement, changeFeed.getSource());
+        if (change == null) return;
+        if (changeLog != null) changeLog.append(connection, change);
+        if (!connectionPool.recordsRowChanges() || !TableChange.isReportedByUpdateHook(statement, change)) {
+            changeFeed.record(change);
+            if (connection.getAutoCommit()) changeFeed.commit();
+        }
+    }
+
+    /**
+     * @return The feed of committed changes to this database's tables
+     */
+    public ChangeFeed getChangeFeed() {
+        return connectionPool.getChangeFeed();
+    }
+
+    /**
+     * Shares changes with other processes using the same database, through a change log table which every write made through this
+     * ConnectionManager is appended to, and which is polled for changes made by other processes. Remote changes are published to the
+     * {@link #getChangeFeed() change feed} as changes to the whole table, on the polling thread.
+     * <br>
+     * Writes made by other processes are only seen if they enabled the change log as well.
+     *
+     * @param pollMillis      How often to poll for changes made by other processes
+     * @param retentionMillis How long changes are kept in the log, which must exceed the longest time a process may go without polling
+     */
+    public synchronized void enableChangeLog(long pollMillis, long retentionMillis) throws SQLException, BusyException {
+        if (changeLog != null) throw new IllegalStateException("Change log already enabled");
+        changeLog = new ChangeLog(this, pollMillis, retentionMillis);
+    }
+
+    /**
+     * Sets how long a Connection may be held before the hold is recorded in {@link #getSlowHolds()}, with the thread's stack
+     */
+    public void setSlowHoldThresholdMillis(long slowHoldThresholdMillis) {
+        if (slowHoldThresholdMillis < 0) throw new IllegalArgumentException("slowHoldThresholdMillis must be >= 0");
+        connectionPool.getHoldTracker().thresholdMillis = slowHoldThresholdMillis;
+    }
+
+    /**
+     * Sets the number of holds kept by {@link #getSlowHolds()}
+     */
+    public void setSlowHoldLogSize(int slowHoldLogSize) {
+        if (slowHoldLogSize < 0) throw new IllegalArgumentException("slowHoldLogSize must be >= 0");
+        connectionPool.getHoldTracker().setLogSize(slowHoldLogSize);
+    }
+
+    /**
+     * @return The slowest Connection holds of the past hour which exceeded the slow hold threshold, slowest first
+     */
+    public List<SlowHold> getSlowHolds() {
+        return connectionPool.getHoldTracker().getSlowHolds();
+    }
+
+    /**
+     * Copies the database to a file without stopping writes, see {@link SQLiteBackup}
+     *
+     * @return The size of the backup in bytes
+     */
+    public long backup(File destination, SQLiteBackup options) throws SQLException, IOException {
+        if (!(connectionPool instanceof ConnectionPoolSQLite sqlite)) throw new IllegalStateException("Online backup is only supported on SQLite");
+        return sqlite.backup(destination, options);
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Objects.requireNonNull(retryPolicy, "retryPolicy");
+    }
+
+    public long getStatementCacheHits() {
+        return connectionPool.getStatementCacheHits();
+    }
+
+    public long getStatementCacheMisses() {
+        return connectionPool.getStatementCacheMisses();
+    }
+
     void checkEnoughArguments(PreparedStatement preparedStatement, Object... args) throws SQLException {
         int parameters = -1;
         try {
@@ -4,24 +4,58 @@ import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.function.ConnectionConsumer;
 import dev.kshl.kshlib.function.ConnectionFunction;
 import dev.kshl.kshlib.function.ConnectionFunctionWithException;
+import dev.kshl.kshlib.function.ResultSetFunction;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 
+import javax.annotation.Nullable;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public abstract class ConnectionPool {
     @Getter
     private boolean closing;
-    private final Map<Long, Long> usage = new HashMap<>();
+    private final UsageRecorder usage = new UsageRecorder();
+    /**
+     * Handles failures on background threads, set by the owning {@link ConnectionManager} to its debug output
+     */
+    @Setter(AccessLevel.PACKAGE)
+    private volatile Consumer<String> debug = line -> {
+    };
+    @Getter
+    private final ChangeFeed changeFeed = new ChangeFeed(line -> debug.accept(line));
+    @Getter(AccessLevel.PACKAGE)
+    private final HoldTracker holdTracker = new HoldTracker();
+
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+    private final AtomicInteger schemaGeneration = new AtomicInteger();
+    private final AtomicBoolean schemaChanged = new AtomicBoolean();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    /**
+     * The maximum number of prepared statements kept per Connection. 0 disables the cache.
+     */
+    @Getter
+    @Setter
+    private volatile int statementCacheSize = 64;
 
     protected ConnectionPool() throws ClassNotFoundException {
         checkDriver();
     }
 
+    protected void debug(String line) {
+        debug.accept(line);
+    }
+
     protected boolean testConnection(Connection connection) {
         try {
             return connection.isValid(2);
@@ -50,81 +84,196 @@ public abstract class ConnectionPool {
     protected abstract <T> T executeWithException_(ConnectionFunctionWithException<T> task, long wait, boolean readOnly) throws Exception;
 
     public <T> T executeWithException(ConnectionFunctionWithException<T> task, long wait, boolean readOnly) throws Exception {
+        final long requested = usage.now();
         return executeWithException_(connection -> {
-            long start = nanoTime();
-            synchronized (usage) {
-                usage.put(start, null);
-            }
+            long start = usage.start(requested);
+            HoldTracker.Hold hold = holdTracker.start(readOnly);
             try {
                 return task.apply(connection);
             } finally {
-                long end = nanoTime();
-                synchronized (usage) {
-                    usage.put(start, end);
-                    usage.values().removeIf(p -> p != null && end - p > TimeUnit.MINUTES.toNanos(30));
+                holdTracker.end(hold);
+                if (schemaChanged.getAndSet(false)) {
+                    // Bumped again once the task (and any transaction within it) is complete, so statements prepared against the old schema in the meantime are discarded
+                    schemaGeneration.incrementAndGet();
                 }
+                usage.end(start);
             }
         }, wait, readOnly);
     }
 
+    protected abstract BorrowedConnection borrowReadOnly_(long wait) throws Exception;
+
+    /**
+     * Sets how many rows a statement opened by {@link ConnectionManager#streamAll(String, ResultSetFunction, int, long, Object...)} fetches at a time
+     */
+    protected void setStreamingFetchSize(PreparedStatement preparedStatement, int fetchSize) throws SQLException {
+        preparedStatement.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Borrows a read-only Connection beyond the scope of a single task, such as for the lifetime of a Stream.
+     * The returned {@link BorrowedConnection} may be closed by any thread.
+     *
+     * @param statement The statement the Connection is borrowed to execute, reported if it is held too long
+     */
+    BorrowedConnection borrowReadOnly(String statement, @Nullable Object[] args, long wait) throws Exception {
+        final long requested = usage.now();
+        BorrowedConnection borrowed = borrowReadOnly_(wait);
+        long start = usage.start(requested);
+        HoldTracker.Hold hold = holdTracker.startDetached(true);
+        hold.statement(statement, args);
+        return new BorrowedConnection(borrowed.connection(), () -> {
+            try {
+                holdTracker.end(hold);
+                borrowed.close();
+            } finally {
+                usage.end(start);
+            }
+        });
+    }
+
     /**
      * The ratio of time this pool has been actively accessing the database in the past [5 minutes], [1 minute], and [5 seconds]
      * Note: This may be >1 if there are multiple Connections
      */
     public double[] getUsageTimeRatios() {
-        synchronized (usage) {
-            return new double[]{
-                    calculateUsage(5, TimeUnit.MINUTES),
-                    calculateUsage(1, TimeUnit.MINUTES),
-                    calculateUsage(5, TimeUnit.SECONDS)
-            };
-        }
+        return new double[]{
+                usage.getUsageRatio(5, TimeUnit.MINUTES),
+                usage.getUsageRatio(1, TimeUnit.MINUTES),
+                usage.getUsageRatio(5, TimeUnit.SECONDS)
+        };
     }
 
-    private double calculateUsage(long duration, TimeUnit timeUnit) {
-        long durationNanos = timeUnit.toNanos(duration);
-        long now = nanoTime();
-        long startWindow = now - durationNanos;
-        long total = 0;
-        synchronized (usage) {
-            for (Map.Entry<Long, Long> entry : usage.entrySet()) {
-                long start = entry.getKey();
-                long end = Optional.ofNullable(entry.getValue()).orElse(now);
-                if (end < startWindow) continue;
-                total += end - Math.max(start, startWindow);
-            }
-        }
-        return total / (double) durationNanos;
+    /**
+     * The [p50, p99, p99.9] time in milliseconds spent waiting to acquire a Connection from this pool over the past minute
+     */
+    public double[] getWaitTimePercentiles() {
+        return usage.getWaitTimePercentiles();
     }
 
-    private long lastNanoTime;
-    private final Object nanoTimeLock = new Object();
+    /**
+     * The [p50, p99, p99.9] time in milliseconds Connections from this pool were held for over the past minute
+     */
+    public double[] getHoldTimePercentiles() {
+        return usage.getHoldTimePercentiles();
+    }
 
-    private long nanoTime() {
-        synchronized (nanoTimeLock) {
-            long time = System.nanoTime();
-            if (time > lastNanoTime) {
-                return lastNanoTime = time;
+    /**
+     * @return An exception naming the thread holding the Connection the current thread is waiting for, and what it is executing
+     */
+    protected BusyException busy(String message) {
+        return holdTracker.busy(message);
+    }
+
+    /**
+     * Prepares a statement on the provided Connection, reusing a cached statement for the same SQL if one is idle.
+     * The returned lease must be closed to return the statement to the cache.
+     */
+    StatementCache.Lease prepareStatement(Connection connection, String statement, boolean generatedKeys) throws SQLException {
+        StatementCache.Key key = new StatementCache.Key(statement, generatedKeys);
+        if (statementCacheSize <= 0 || !StatementCache.isCacheable(statement)) {
+            if (StatementCache.isSchemaChange(statement)) {
+                schemaGeneration.incrementAndGet();
+                schemaChanged.set(true);
             }
-            return ++lastNanoTime;
+            return new StatementCache.Lease(this, null, key, StatementCache.prepare(connection, key));
         }
+        Connection physical = getPhysicalConnection(connection);
+        StatementCache cache = statementCaches.get(physical);
+        if (cache == null) {
+            statementCaches.values().removeIf(StatementCache::isConnectionClosed);
+            cache = statementCaches.computeIfAbsent(physical, c -> new StatementCache(c, schemaGeneration.get()));
+        }
+        PreparedStatement preparedStatement = cache.take(key, schemaGeneration.get());
+        if (preparedStatement != null) {
+            statementCacheHits.increment();
+        } else {
+            statementCacheMisses.increment();
+            preparedStatement = cache.prepare(key);
+        }
+        return new StatementCache.Lease(this, cache, key, preparedStatement);
+    }
+
+    void release(StatementCache cache, StatementCache.Key key, PreparedStatement preparedStatement) {
+        if (cache == null || closing) {
+            StatementCache.close(preparedStatement);
+            return;
+        }
+        cache.release(key, preparedStatement, schemaGeneration.get(), statementCacheSize);
+    }
+
+    /**
+     * @return The underlying Connection which prepared statements should be created on, such that they survive the Connection being returned to the pool
+     */
+    protected Connection getPhysicalConnection(Connection connection) throws SQLException {
+        return connection;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    /**
+     * @return The number of idle prepared statements currently cached across all Connections
+     */
+    public int getCachedStatementCount() {
+        return statementCaches.values().stream().mapToInt(StatementCache::size).sum();
+    }
+
+    private void clearStatementCaches() {
+        statementCaches.values().forEach(StatementCache::clear);
+        statementCaches.clear();
     }
 
     public abstract boolean isMySQL();
 
+    /**
+     * @return Whether this pool records each row changed on its Connections to the {@link #getChangeFeed() change feed}
+     */
+    protected boolean recordsRowChanges() {
+        return false;
+    }
+
     @SuppressWarnings("unused")
     public abstract int getActiveConnections();
 
     @SuppressWarnings("unused")
     public abstract int getAllEstablishedConnections();
 
+    /**
+     * @return Whether the current Thread is currently holding a Connection from this pool
+     */
+    protected abstract boolean isConnectionHeldByCurrentThread();
+
+    /**
+     * @return The number of Connections currently issued for read-only work
+     */
+    public abstract int getActiveReadConnections();
+
+    /**
+     * @return The number of Connections established exclusively for read-only work, or 0 if reads share the write Connections
+     */
+    public abstract int getAllEstablishedReadConnections();
+
     public final void close() {
         if (closing) return;
         closing = true;
         closeInternal();
+        clearStatementCaches();
     }
 
     protected abstract void closeInternal();
 
     protected abstract void checkDriver() throws ClassNotFoundException;
+
+    record BorrowedConnection(Connection connection, Runnable release) implements AutoCloseable {
+        @Override
+        public void close() {
+            release.run();
+        }
+    }
 }
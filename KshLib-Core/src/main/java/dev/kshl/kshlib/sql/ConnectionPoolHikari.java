@@ -2,26 +2,65 @@ package dev.kshl.kshlib.sql;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.pool.HikariPool;
 import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.function.ConnectionFunctionWithException;
 
+import javax.annotation.Nullable;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A MySQL pool backed by Hikari, optionally with a second pool pointed at a read replica.
+ * <br>
+ * Read-only work is sent to the replica if one is configured. Otherwise it shares the Thread's primary Connection with writes, so nested reads and writes
+ * on one Thread never hold more than one Connection. The outermost read-only borrow marks it {@link Connection#setReadOnly(boolean) read only},
+ * and a write nested inside it clears the flag until the write ends. Streams always borrow their own Connection, marked read only without a replica.
+ * A Thread which already holds a primary Connection (i.e. inside a write or transaction) keeps using it for reads, so it always sees its own writes.
+ */
 public class ConnectionPoolHikari extends ConnectionPool {
     private final ThreadLocal<Connection> issuedConnections = new ThreadLocal<>();
+    private final ThreadLocal<Connection> issuedReadConnections = new ThreadLocal<>();
+    private final AtomicInteger activeReadConnections = new AtomicInteger();
     private final HikariDataSource hikari;
+    @Nullable
+    private final HikariDataSource replica;
 
     public ConnectionPoolHikari(String host, String database, String user, String pwd, int poolSize) throws ClassNotFoundException {
+        this(host, database, user, pwd, poolSize, null, 0);
+    }
+
+    /**
+     * @param replicaHost     The host of a read replica of the primary database, or null to send all work to the primary
+     * @param replicaPoolSize The maximum number of Connections to the replica, separate from the primary's poolSize
+     */
+    public ConnectionPoolHikari(String host, String database, String user, String pwd, int poolSize, @Nullable String replicaHost, int replicaPoolSize) throws ClassNotFoundException {
         super();
 
+        String poolName = "KshLibPool-" + UUID.randomUUID().toString().replace("-", "");
+        this.hikari = new HikariDataSource(createConfig(host, database, user, pwd, poolSize, poolName));
+        if (replicaHost != null) {
+            if (replicaPoolSize <= 0) throw new IllegalArgumentException("replicaPoolSize must be > 0");
+            HikariConfig replicaConfig = createConfig(replicaHost, database, user, pwd, replicaPoolSize, poolName + "-replica");
+            replicaConfig.setReadOnly(true);
+            this.replica = new HikariDataSource(replicaConfig);
+        } else {
+            this.replica = null;
+        }
+    }
+
+    private static HikariConfig createConfig(String host, String database, String user, String pwd, int poolSize, String poolName) {
         HikariConfig config = new HikariConfig();
         config.setDriverClassName("com.mysql.cj.jdbc.Driver");
         config.setJdbcUrl("jdbc:mysql://" + host + "/" + database);
         config.setUsername(user);
         config.setPassword(pwd);
+        // Skips the round trip for setReadOnly/setAutoCommit when the session is already in the requested state
+        config.addDataSourceProperty("useLocalSessionState", "true");
 
         config.setMaximumPoolSize(poolSize);
         config.setMinimumIdle((int) Math.max(1, Math.round(poolSize / 4D)));
@@ -29,9 +68,8 @@ public class ConnectionPoolHikari extends ConnectionPool {
         config.setIdleTimeout(TimeUnit.MINUTES.toMillis(1));
         config.setMaxLifetime(TimeUnit.MINUTES.toMillis(30));
 
-        config.setPoolName("KshLibPool-" + UUID.randomUUID().toString().replace("-", ""));
-
-        this.hikari = new HikariDataSource(config);
+        config.setPoolName(poolName);
+        return config;
     }
 
     @Override
@@ -41,43 +79,158 @@ public class ConnectionPoolHikari extends ConnectionPool {
         }
 
         Connection conn = issuedConnections.get();
-        boolean isLeader = (conn == null); // Whether this Thread will be getting a new Connection instead of using a cached one
-
-        if (isLeader) {
+        if (conn != null) {
+            // Read-your-writes: nested work always stays on the Thread's primary Connection
+            if (readOnly || !conn.isReadOnly()) return connectionFunction.apply(conn);
+            conn.setReadOnly(false);
             try {
-                conn = hikari.getConnection();
-                issuedConnections.set(conn);
-            } catch (SQLException e) {
-                throw new BusyException("Unable to get connection from pool: " + e.getMessage());
+                return connectionFunction.apply(conn);
+            } finally {
+                conn.setReadOnly(true);
             }
         }
+        if (readOnly && replica != null) {
+            conn = issuedReadConnections.get();
+            if (conn != null) return connectionFunction.apply(conn);
+        }
 
+        // Without a replica, a separate read Connection would only be another primary Connection, and a write nested in a read would take a second
+        ThreadLocal<Connection> issued = readOnly && replica != null ? issuedReadConnections : issuedConnections;
+        conn = readOnly ? getReadConnection(wait) : getConnection(hikari, wait);
+        issued.set(conn);
+        boolean broken = false;
         try {
             return connectionFunction.apply(conn);
+        } catch (Exception e) {
+            broken = isConnectionError(e);
+            throw e;
         } finally {
-            if (isLeader) {
-                issuedConnections.remove();
-                try {
-                    conn.close(); // returns it to Hikari pool
-                } catch (SQLException ignored) {
-                }
+            issued.remove();
+            returnConnection(conn, readOnly, broken);
+        }
+    }
+
+    @Override
+    protected BorrowedConnection borrowReadOnly_(long wait) throws Exception {
+        if (isClosing()) {
+            throw new BusyException("Database closing");
+        }
+        Connection conn = getReadConnection(wait);
+        return new BorrowedConnection(conn, () -> returnConnection(conn, true, false));
+    }
+
+    private Connection getReadConnection(long wait) throws BusyException {
+        Connection conn;
+        if (replica != null) {
+            conn = getConnection(replica, wait);
+        } else {
+            conn = getConnection(hikari, wait);
+            try {
+                conn.setReadOnly(true); // Reset by Hikari when the Connection is returned to the pool
+            } catch (SQLException e) {
+                returnConnection(conn, false, true);
+                throw new BusyException("Unable to mark connection read only: " + e.getMessage());
             }
         }
+        activeReadConnections.incrementAndGet();
+        return conn;
+    }
+
+    private Connection getConnection(HikariDataSource dataSource, long wait) throws BusyException {
+        try {
+            // The data source only offers its configured timeout, while the pool accepts one per call
+            if (dataSource.getHikariPoolMXBean() instanceof HikariPool pool) return pool.getConnection(Math.max(0, wait));
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw busy("Unable to get connection from pool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the Connection to its pool, or evicts it if it is broken.
+     * <br>
+     * Cached statements run on the physical Connection, so Hikari never sees them dirty the commit state. Its reset would then commit a transaction
+     * left open by a failed task rather than roll it back, and it would not notice the Connection failing.
+     */
+    private void returnConnection(Connection conn, boolean readOnly, boolean broken) {
+        if (readOnly) activeReadConnections.decrementAndGet();
+        try {
+            if (!broken && getPhysicalConnection(conn).isClosed()) broken = true;
+            if (!broken && !conn.getAutoCommit()) conn.rollback();
+        } catch (SQLException e) {
+            broken = true;
+        }
+        if (broken) {
+            (replica != null && readOnly ? replica : hikari).evictConnection(conn);
+            return;
+        }
+        try {
+            conn.close(); // returns it to Hikari pool
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * @return Whether the exception, or one of its causes, reports a failed Connection (SQLState class 08)
+     */
+    static boolean isConnectionError(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException e && e.getSQLState() != null && e.getSQLState().startsWith("08")) return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void setStreamingFetchSize(PreparedStatement preparedStatement, int fetchSize) throws SQLException {
+        // Connector/J only honours a positive fetch size with useCursorFetch, which makes every statement server-side prepared.
+        // Integer.MIN_VALUE instead streams this statement's rows one at a time over the Connection it holds.
+        preparedStatement.setFetchSize(Integer.MIN_VALUE);
+    }
+
+    @Override
+    protected Connection getPhysicalConnection(Connection connection) throws SQLException {
+        // Statements prepared on the Hikari proxy are closed when it is returned to the pool
+        return connection.unwrap(Connection.class);
+    }
+
+    public boolean hasReplica() {
+        return replica != null;
     }
 
     @Override
     public int getActiveConnections() {
-        return hikari.getHikariPoolMXBean().getActiveConnections();
+        int active = hikari.getHikariPoolMXBean().getActiveConnections();
+        if (replica != null) active += replica.getHikariPoolMXBean().getActiveConnections();
+        return active;
     }
 
     @Override
     public int getAllEstablishedConnections() {
-        return hikari.getHikariPoolMXBean().getTotalConnections();
+        int total = hikari.getHikariPoolMXBean().getTotalConnections();
+        if (replica != null) total += replica.getHikariPoolMXBean().getTotalConnections();
+        return total;
+    }
+
+    @Override
+    protected boolean isConnectionHeldByCurrentThread() {
+        return issuedConnections.get() != null || issuedReadConnections.get() != null;
+    }
+
+    @Override
+    public int getActiveReadConnections() {
+        return activeReadConnections.get();
+    }
+
+    @Override
+    public int getAllEstablishedReadConnections() {
+        if (replica == null) return 0;
+        return replica.getHikariPoolMXBean().getTotalConnections();
     }
 
     @Override
     public void closeInternal() {
         if (hikari != null) hikari.close();
+        if (replica != null) replica.close();
     }
 
     @Override
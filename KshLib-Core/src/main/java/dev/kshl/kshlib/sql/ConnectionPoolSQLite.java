@@ -3,31 +3,87 @@ package dev.kshl.kshlib.sql;
 import dev.kshl.kshlib.concurrent.ConcurrentArrayList;
 import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.function.ConnectionFunctionWithException;
-import org.sqlite.SQLiteConfig;
-import org.sqlite.SQLiteOpenMode;
+import lombok.Getter;
+import org.sqlite.SQLiteCommitListener;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
 
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
 public class ConnectionPoolSQLite extends ConnectionPool {
+    private static final AtomicInteger threadId = new AtomicInteger();
+    /**
+     * How long closing waits for the write and read Connections in use to be returned before closing them regardless
+     */
+    private static final long CLOSE_WAIT_MILLIS = 3000L;
+
+    @Getter
+    private final SQLiteTuning tuning;
+    private final String url;
     private final Connection writeConnection;
-    private final BlockingQueue<Connection> readConnections = new ArrayBlockingQueue<>(4);
+    private final BlockingQueue<Connection> readConnections = new LinkedBlockingQueue<>();
     private final List<Connection> allReadConnections = new ConcurrentArrayList<>();
-    private int establishedConnections;
+    private final AtomicInteger establishedConnections = new AtomicInteger();
+    /**
+     * The number of read Connections the pool is sized to, between the tuning's minimum and maximum
+     */
+    private volatile int readConnectionTarget;
+    private final Object readConnectionTargetLock = new Object();
+    private final LongAdder readBorrows = new LongAdder();
+    private final LongAdder readWaitNanos = new LongAdder();
+    private final AtomicInteger peakActiveReadConnections = new AtomicInteger();
+    @Nullable
+    private final ScheduledExecutorService executor;
+    @Nullable
+    private Connection checkpointConnection;
 
+    /**
+     * Writers hold the write lock. Readers hold the read lock only while borrowing a Connection, and are then counted in {@link #activeReads},
+     * which writers wait to reach 0, so a read Connection may be returned by any thread.
+     */
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Object activeReadsLock = new Object();
+    private int activeReads;
+    /**
+     * The number of read Connections borrowed by each thread and not yet returned
+     */
+    private final ThreadLocal<AtomicInteger> readHolds = ThreadLocal.withInitial(AtomicInteger::new);
 
     public ConnectionPoolSQLite(File file) throws IOException, SQLException, ClassNotFoundException {
+        this(file, new SQLiteTuning());
+    }
+
+    public ConnectionPoolSQLite(File file, SQLiteTuning tuning) throws IOException, SQLException, ClassNotFoundException {
         super();
+        this.tuning = tuning;
 
         if (file == null) {
             throw new FileNotFoundException("Null file provided");
@@ -37,71 +93,268 @@ public class ConnectionPoolSQLite extends ConnectionPool {
             throw new IOException("Failed to create parent directory for database.");
         }
 
+        this.url = "jdbc:sqlite:" + file.getAbsolutePath();
+
         // WRITE
         {
-            SQLiteConfig writeConfig = new SQLiteConfig();
-            writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
-            writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
-            writeConfig.setBusyTimeout(5000);
-            writeConfig.setPragma(SQLiteConfig.Pragma.FOREIGN_KEYS, "ON");
-            this.writeConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), writeConfig.toProperties());
-            establishedConnections++;
+            this.writeConnection = DriverManager.getConnection(url, tuning.createConfig(false).toProperties());
+            establishedConnections.incrementAndGet();
+            if (tuning.getWalAutoCheckpointPages() != null) {
+                try (Statement statement = writeConnection.createStatement()) {
+                    statement.execute("PRAGMA wal_autocheckpoint=" + tuning.getWalAutoCheckpointPages());
+                }
+            }
+
+            // Both hooks are called on the thread executing the statement, which holds the write lock
+            SQLiteConnection sqlite = writeConnection.unwrap(SQLiteConnection.class);
+            sqlite.addUpdateListener((type, database, table, rowId) -> getChangeFeed().recordRow(table, switch (type) {
+                case INSERT -> TableChange.Type.INSERT;
+                case UPDATE -> TableChange.Type.UPDATE;
+                case DELETE -> TableChange.Type.DELETE;
+            }, rowId));
+            sqlite.addCommitListener(new SQLiteCommitListener() {
+                @Override
+                public void onCommit() {
+                    getChangeFeed().commit();
+                }
+
+                @Override
+                public void onRollback() {
+                    getChangeFeed().rollback();
+                }
+            });
         }
 
         // READ
-        {
-            SQLiteConfig readConfig = new SQLiteConfig();
-            readConfig.setReadOnly(true);
-            readConfig.enableLoadExtension(false);
-            readConfig.setOpenMode(SQLiteOpenMode.FULLMUTEX);
-            readConfig.setBusyTimeout(5000);
-            readConfig.setPragma(SQLiteConfig.Pragma.FOREIGN_KEYS, "ON");
-            readConfig.setPragma(SQLiteConfig.Pragma.JDBC_EXPLICIT_READONLY, "ON");
-            while (readConnections.remainingCapacity() > 0) {
-                var connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), readConfig.toProperties());
-                establishedConnections++;
-                allReadConnections.add(connection);
-                readConnections.add(connection);
+        this.readConnectionTarget = tuning.getMinReadConnections();
+        for (int i = 0; i < readConnectionTarget; i++) {
+            openReadConnection();
+        }
+
+        if (tuning.isAdaptive() || tuning.getCheckpointIntervalMillis() > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "KshLib-SQLite-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            if (tuning.isAdaptive()) {
+                long interval = tuning.getAdaptIntervalMillis();
+                executor.scheduleWithFixedDelay(this::adaptReadConnections, interval, interval, TimeUnit.MILLISECONDS);
+            }
+            if (tuning.getCheckpointIntervalMillis() > 0) {
+                long interval = tuning.getCheckpointIntervalMillis();
+                executor.scheduleWithFixedDelay(() -> {
+                    try {
+                        checkpoint();
+                    } catch (SQLException e) {
+                        if (isClosing()) return;
+                        debug("Failed to checkpoint SQLite WAL: " + e);
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
             }
+        } else {
+            this.executor = null;
         }
     }
 
-    @Override
-    public <T> T executeWithException_(ConnectionFunctionWithException<T> connectionFunction, long wait, boolean readOnly) throws Exception {
-        if (isClosing()) throw new BusyException("Database closing");
-        if (readOnly) {
-            long start = System.currentTimeMillis();
-            if (!lock.readLock().tryLock(wait, TimeUnit.MILLISECONDS)) {
-                throw new BusyException("Database busy");
+    private void openReadConnection() throws SQLException {
+        publishReadConnection(connectReadConnection());
+    }
+
+    private Connection connectReadConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, tuning.createConfig(true).toProperties());
+        establishedConnections.incrementAndGet();
+        return connection;
+    }
+
+    private void publishReadConnection(Connection connection) {
+        allReadConnections.add(connection);
+        readConnections.add(connection);
+    }
+
+    /**
+     * Closes a read Connection which is not in use if there are more than the target
+     *
+     * @return Whether the Connection was closed
+     */
+    private boolean retireReadConnection(Connection connection) {
+        // A fixed size pool never exceeds its target, and an adaptive one rarely does, so most releases skip the lock
+        if (!tuning.isAdaptive() || allReadConnections.size() <= readConnectionTarget) return false;
+        synchronized (readConnectionTargetLock) {
+            if (allReadConnections.size() <= readConnectionTarget || !allReadConnections.remove(connection)) return false;
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+        return true;
+    }
+
+    /**
+     * Adds a read Connection if reads spent too long waiting for one over the past interval,
+     * or removes one if at least two were never in use at once
+     */
+    void adaptReadConnections() {
+        synchronized (readConnectionTargetLock) {
+            if (!adaptReadConnections_()) return;
+        }
+        // Opened outside the lock so releases are not held up by establishing it
+        Connection connection;
+        try {
+            connection = connectReadConnection();
+        } catch (SQLException e) {
+            debug("Failed to open SQLite read connection: " + e);
+            return;
+        }
+        synchronized (readConnectionTargetLock) {
+            if (!isClosing() && readConnectionTarget < tuning.getMaxReadConnections()) {
+                publishReadConnection(connection);
+                readConnectionTarget++;
+                return;
             }
-            try {
-                if (isClosing()) throw new BusyException("Database closing");
-                Connection connection = readConnections.poll(Math.max(0, wait - (System.currentTimeMillis() - start)), TimeUnit.MILLISECONDS);
-                if (connection == null) {
-                    throw new BusyException("Database busy");
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * @return Whether a read Connection should be added
+     */
+    private boolean adaptReadConnections_() {
+        if (isClosing()) return false;
+        long borrows = readBorrows.sumThenReset();
+        long waitNanos = readWaitNanos.sumThenReset();
+        int peak = peakActiveReadConnections.getAndSet(getActiveReadConnections());
+        if (borrows > 0 && waitNanos / 1_000_000D / borrows > tuning.getAdaptGrowWaitMillis()) {
+            return readConnectionTarget < tuning.getMaxReadConnections();
+        } else if (peak <= readConnectionTarget - 2 && readConnectionTarget > tuning.getMinReadConnections()) {
+            readConnectionTarget--;
+            Connection idle = readConnections.poll();
+            if (idle != null && !retireReadConnection(idle)) readConnections.offer(idle);
+        }
+        return false;
+    }
+
+    /**
+     * Runs a passive checkpoint, which copies as much of the WAL into the database as it can without waiting for readers or writers
+     *
+     * @return The [busy flag, WAL size in pages, pages checkpointed], as returned by <code>PRAGMA wal_checkpoint</code>
+     */
+    public synchronized int[] checkpoint() throws SQLException {
+        if (isClosing()) throw new SQLException("Database closing");
+        if (checkpointConnection == null) {
+            checkpointConnection = DriverManager.getConnection(url, tuning.createConfig(false).toProperties());
+            establishedConnections.incrementAndGet();
+        }
+        try (Statement statement = checkpointConnection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA wal_checkpoint(PASSIVE)")) {
+            if (!rs.next()) return new int[]{0, -1, -1};
+            return new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3)};
+        }
+    }
+
+    /**
+     * Copies the database to a file while it remains in use. The file is written under a temporary name and moved into place once complete.
+     * <br>
+     * If the thread is interrupted, the backup is discarded and an {@link InterruptedIOException} thrown. SQLite's backup API can not be stopped
+     * between steps, so an interrupt during the copy skips the remaining pauses and the copy is discarded once it returns.
+     *
+     * @return The size of the backup in bytes
+     * @see SQLiteBackup
+     */
+    public long backup(File destination, SQLiteBackup options) throws SQLException, IOException {
+        if (isClosing()) throw new SQLException("Database closing");
+        checkInterrupted();
+        File copy = new File(destination.getPath() + ".tmp");
+        File compressed = new File(destination.getPath() + ".gz.tmp");
+        SQLiteBackup.ProgressListener listener = options.getProgressListener();
+        try {
+            Files.deleteIfExists(copy.toPath());
+            try (Connection source = DriverManager.getConnection(url, tuning.createConfig(true).toProperties());
+                 Statement statement = source.createStatement()) {
+                boolean wal;
+                try (ResultSet rs = statement.executeQuery("PRAGMA journal_mode")) {
+                    wal = rs.next() && "wal".equalsIgnoreCase(rs.getString(1));
                 }
-                try {
-                    return connectionFunction.apply(connection);
-                } finally {
-                    if (!readConnections.offer(connection)) {
+                if (wal) {
+                    // Holding a read transaction across steps pins a snapshot, so writes from other Connections neither block on nor restart the copy
+                    source.setAutoCommit(false);
+                    statement.executeQuery("SELECT count(*) FROM sqlite_master").close();
+                }
+                int rc = source.unwrap(SQLiteConnection.class).getDatabase().backup("main", copy.getAbsolutePath(), (remaining, pageCount) -> {
+                    if (listener != null) listener.progress(SQLiteBackup.Stage.COPY, pageCount - remaining, pageCount);
+                    if (remaining > 0 && options.getPauseMillis() > 0 && !Thread.currentThread().isInterrupted()) {
                         try {
-                            connection.close();
-                        } catch (SQLException ignored) {
+                            Thread.sleep(options.getPauseMillis());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
                         }
                     }
+                }, 100, 50, options.getPagesPerStep());
+                if (rc != SQLiteErrorCode.SQLITE_OK.code) {
+                    throw new SQLiteException("Backup failed", SQLiteErrorCode.getErrorCode(rc));
                 }
-            } finally {
-                lock.readLock().unlock();
+                if (wal) source.rollback();
+            }
+            checkInterrupted();
+            if (!options.isCompress()) {
+                Files.move(copy.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return destination.length();
+            }
+            long total = copy.length();
+            long done = 0;
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new FileInputStream(copy);
+                 OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(compressed)), buffer.length)) {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    checkInterrupted();
+                    out.write(buffer, 0, read);
+                    done += read;
+                    if (listener != null) listener.progress(SQLiteBackup.Stage.COMPRESS, done, total);
+                }
+            }
+            Files.move(compressed.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return destination.length();
+        } finally {
+            Files.deleteIfExists(copy.toPath());
+            Files.deleteIfExists(compressed.toPath());
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Backup interrupted");
+    }
+
+    /**
+     * @return The number of read Connections the pool is currently sized to
+     */
+    public int getReadConnectionTarget() {
+        return readConnectionTarget;
+    }
+
+    @Override
+    public <T> T executeWithException_(ConnectionFunctionWithException<T> connectionFunction, long wait, boolean readOnly) throws Exception {
+        if (isClosing()) throw new BusyException("Database closing");
+        if (readOnly) {
+            try (BorrowedConnection borrowed = borrowReadOnly_(wait)) {
+                return connectionFunction.apply(borrowed.connection());
             }
         } else {
-            if (lock.getReadHoldCount() > 0) {
+            if (readHolds.get().get() > 0) {
                 throw new IllegalStateException("Cannot obtain write lock while holding a read lock");
             }
+            long start = System.currentTimeMillis();
             if (!lock.writeLock().tryLock(wait, TimeUnit.MILLISECONDS)) {
-                throw new BusyException("Database busy");
+                throw busy("Database busy");
             }
             try {
                 if (isClosing()) throw new BusyException("Database closing");
+                if (lock.writeLock().getHoldCount() == 1 && !awaitReads(wait - (System.currentTimeMillis() - start))) {
+                    throw busy("Database busy");
+                }
                 var ret = connectionFunction.apply(writeConnection);
                 if (lock.writeLock().getHoldCount() == 1 && !writeConnection.getAutoCommit()) {
                     try {
@@ -117,6 +370,65 @@ public class ConnectionPoolSQLite extends ConnectionPool {
         }
     }
 
+    /**
+     * Waits for every borrowed read Connection to be returned. Called with the write lock held, so no more can be borrowed meanwhile.
+     *
+     * @return Whether all were returned within the wait
+     */
+    private boolean awaitReads(long wait) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + Math.max(0, wait);
+        synchronized (activeReadsLock) {
+            while (activeReads > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                activeReadsLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected BorrowedConnection borrowReadOnly_(long wait) throws Exception {
+        if (isClosing()) throw new BusyException("Database closing");
+        long start = System.currentTimeMillis();
+        AtomicInteger holds = readHolds.get();
+        // A thread which already holds a read Connection is let through, as a writer waiting for it to finish would otherwise wait on this borrow
+        boolean locked = holds.get() == 0;
+        if (locked && !lock.readLock().tryLock(wait, TimeUnit.MILLISECONDS)) {
+            throw busy("Database busy");
+        }
+        Connection connection;
+        try {
+            if (isClosing()) throw new BusyException("Database closing");
+            long pollStart = System.nanoTime();
+            connection = readConnections.poll(Math.max(0, wait - (System.currentTimeMillis() - start)), TimeUnit.MILLISECONDS);
+            readWaitNanos.add(System.nanoTime() - pollStart);
+            readBorrows.increment();
+            if (connection == null) {
+                throw busy("Database busy");
+            }
+            // Counted before the read lock is released, so a writer acquiring it next waits for this Connection
+            synchronized (activeReadsLock) {
+                activeReads++;
+            }
+            holds.incrementAndGet();
+        } finally {
+            if (locked) lock.readLock().unlock();
+        }
+        peakActiveReadConnections.accumulateAndGet(getActiveReadConnections(), Math::max);
+        AtomicBoolean released = new AtomicBoolean();
+        return new BorrowedConnection(connection, () -> {
+            if (released.getAndSet(true)) return;
+            if (!retireReadConnection(connection)) {
+                readConnections.offer(connection);
+            }
+            holds.decrementAndGet();
+            synchronized (activeReadsLock) {
+                if (--activeReads == 0) activeReadsLock.notifyAll();
+            }
+        });
+    }
+
     @Override
     public int getActiveConnections() {
         if (isClosing()) return 0;
@@ -125,12 +437,48 @@ public class ConnectionPoolSQLite extends ConnectionPool {
 
     @Override
     public int getAllEstablishedConnections() {
-        return establishedConnections;
+        return establishedConnections.get();
+    }
+
+    @Override
+    protected boolean isConnectionHeldByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread() || readHolds.get().get() > 0;
+    }
+
+    @Override
+    public int getActiveReadConnections() {
+        if (isClosing()) return 0;
+        return allReadConnections.size() - readConnections.size();
+    }
+
+    @Override
+    public int getAllEstablishedReadConnections() {
+        if (isClosing()) return 0;
+        return allReadConnections.size();
     }
 
     @Override
     public void closeInternal() {
-        lock.writeLock().lock();
+        if (executor != null) executor.shutdownNow();
+        synchronized (this) {
+            if (checkpointConnection != null) {
+                try {
+                    checkpointConnection.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+        // Bounded, so a Stream which is never closed does not hold up closing. Its Connection is closed under it instead.
+        long start = System.currentTimeMillis();
+        try {
+            if (!lock.writeLock().tryLock(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                debug("Closing SQLite pool while a write is still in progress");
+            } else if (!awaitReads(CLOSE_WAIT_MILLIS - (System.currentTimeMillis() - start))) {
+                debug("Closing SQLite pool while read connections are still in use, likely by an unclosed Stream");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         try {
             writeConnection.close();
         } catch (SQLException ignored) {
@@ -154,4 +502,9 @@ public class ConnectionPoolSQLite extends ConnectionPool {
     public boolean isMySQL() {
         return false;
     }
+
+    @Override
+    protected boolean recordsRowChanges() {
+        return true;
+    }
 }
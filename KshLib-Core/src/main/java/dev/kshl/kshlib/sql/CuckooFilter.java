@@ -0,0 +1,203 @@
+package dev.kshl.kshlib.sql;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A cuckoo filter over long keys: an approximate set which can answer "definitely not present", and which, unlike a Bloom filter, supports removal.
+ * <br>
+ * Each key is stored as a small fingerprint in one of two buckets of {@link #BUCKET_SIZE} slots, packed into a bitset.
+ * A key must only be removed if it was inserted, otherwise another key sharing its fingerprint may be removed in its place.
+ * Inserting the same key twice stores two fingerprints, each of which must be removed.
+ * <br>
+ * Lookups use an optimistic read and only lock if they raced a write.
+ */
+class CuckooFilter {
+    static final int BUCKET_SIZE = 4;
+    private static final int MAX_KICKS = 500;
+    private static final double MAX_LOAD = 0.95;
+
+    private final long[] bits;
+    private final int fingerprintBits;
+    private final long fingerprintMask;
+    private final int bucketMask;
+    private final StampedLock lock = new StampedLock();
+    private int size;
+    private boolean full;
+
+    private CuckooFilter(int buckets, int fingerprintBits) {
+        this.fingerprintBits = fingerprintBits;
+        this.fingerprintMask = (1L << fingerprintBits) - 1;
+        this.bucketMask = buckets - 1;
+        this.bits = new long[(int) (((long) buckets * BUCKET_SIZE * fingerprintBits + 63) / 64)];
+    }
+
+    /**
+     * @param expectedKeys      The number of keys the filter should have room for
+     * @param falsePositiveRate The desired probability that a key which is not present is reported as possibly present
+     * @param maxBytes          The maximum size of the filter. If expectedKeys do not fit at the desired rate, the filter holds fewer keys.
+     */
+    static CuckooFilter create(long expectedKeys, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        int fingerprintBits = (int) Math.ceil(Math.log(2 * BUCKET_SIZE / falsePositiveRate) / Math.log(2));
+        fingerprintBits = Math.max(4, Math.min(32, fingerprintBits));
+
+        long buckets = Long.highestOneBit(Math.max(1, (long) Math.ceil(expectedKeys / (BUCKET_SIZE * MAX_LOAD))) * 2 - 1);
+        long bytesPerBucket = Math.max(1, (long) BUCKET_SIZE * fingerprintBits / 8);
+        while (buckets > 1 && buckets * bytesPerBucket > maxBytes) buckets >>= 1;
+        if (buckets > 1 << 30) buckets = 1 << 30;
+        return new CuckooFilter((int) buckets, fingerprintBits);
+    }
+
+    /**
+     * @return false if the filter is full, in which case it may no longer be used as it may have dropped a fingerprint
+     */
+    boolean add(long key) {
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        long stamp = lock.writeLock();
+        try {
+            if (full) return false;
+            int i1 = index(hash);
+            int i2 = altIndex(i1, fingerprint);
+            if (insertInto(i1, fingerprint) || insertInto(i2, fingerprint)) {
+                size++;
+                return true;
+            }
+            int index = ThreadLocalRandom.current().nextBoolean() ? i1 : i2;
+            for (int kick = 0; kick < MAX_KICKS; kick++) {
+                int slot = ThreadLocalRandom.current().nextInt(BUCKET_SIZE);
+                int victim = get(index, slot);
+                set(index, slot, fingerprint);
+                fingerprint = victim;
+                index = altIndex(index, fingerprint);
+                if (insertInto(index, fingerprint)) {
+                    size++;
+                    return true;
+                }
+            }
+            full = true;
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return false if the key is definitely not present, true if it may be
+     */
+    boolean mightContain(long key) {
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+
+        long stamp = lock.tryOptimisticRead();
+        boolean result = full || bucketContains(i1, fingerprint) || bucketContains(i2, fingerprint);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.readLock();
+        try {
+            return full || bucketContains(i1, fingerprint) || bucketContains(i2, fingerprint);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes one fingerprint of a key which was previously added
+     */
+    void remove(long key) {
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        long stamp = lock.writeLock();
+        try {
+            int i1 = index(hash);
+            if (removeFrom(i1, fingerprint) || removeFrom(altIndex(i1, fingerprint), fingerprint)) {
+                size--;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    long getMemoryBytes() {
+        return bits.length * 8L;
+    }
+
+    private boolean bucketContains(int bucket, int fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == fingerprint) return true;
+        }
+        return false;
+    }
+
+    private boolean insertInto(int bucket, int fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == 0) {
+                set(bucket, slot, fingerprint);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean removeFrom(int bucket, int fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == fingerprint) {
+                set(bucket, slot, 0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int get(int bucket, int slot) {
+        long bit = ((long) bucket * BUCKET_SIZE + slot) * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        long value = bits[word] >>> offset;
+        if (offset + fingerprintBits > 64) value |= bits[word + 1] << (64 - offset);
+        return (int) (value & fingerprintMask);
+    }
+
+    private void set(int bucket, int slot, int fingerprint) {
+        long bit = ((long) bucket * BUCKET_SIZE + slot) * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        bits[word] = (bits[word] & ~(fingerprintMask << offset)) | ((fingerprint & fingerprintMask) << offset);
+        if (offset + fingerprintBits > 64) {
+            int spill = 64 - offset;
+            bits[word + 1] = (bits[word + 1] & ~(fingerprintMask >>> spill)) | ((fingerprint & fingerprintMask) >>> spill);
+        }
+    }
+
+    private int fingerprint(long hash) {
+        int fingerprint = (int) ((hash >>> 32) & fingerprintMask);
+        return fingerprint == 0 ? 1 : fingerprint; // 0 marks an empty slot
+    }
+
+    private int index(long hash) {
+        return (int) hash & bucketMask;
+    }
+
+    private int altIndex(int index, int fingerprint) {
+        return (index ^ (int) mix(fingerprint)) & bucketMask;
+    }
+
+    private static long mix(long key) {
+        // SplitMix64 finalizer
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+}
@@ -0,0 +1,162 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which threads hold Connections and the last statement each executed, and keeps the slowest holds of the past hour.
+ * Each hold is tracked by its own object, so a Connection borrowed on one thread may be released on another.
+ * <br>
+ * A stack trace is only captured for a hold longer than the threshold, once it is released, so holds at normal speed cost a map insert and removal.
+ * A {@link BusyException} instead takes the live stack of the thread it is waiting on.
+ */
+class HoldTracker {
+    private static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Set<Hold> holds = ConcurrentHashMap.newKeySet();
+    /**
+     * The hold of the task running on this thread, so nested tasks and their statements are attributed to it
+     */
+    private final ThreadLocal<Hold> current = new ThreadLocal<>();
+    /**
+     * The slowest holds, fastest first, so the fastest is evicted when full
+     */
+    private final PriorityQueue<SlowHold> slowHolds = new PriorityQueue<>(Comparator.comparingLong(SlowHold::holdMillis));
+    volatile long thresholdMillis = 1000L;
+    private int logSize = 20;
+
+    /**
+     * Marks the current thread as holding a Connection for the duration of a task. Nested holds on the same thread are counted as one.
+     *
+     * @return The hold, to pass to {@link #end(Hold)} on the same thread once the task is complete
+     */
+    Hold start(boolean readOnly) {
+        Hold hold = current.get();
+        if (hold != null) {
+            hold.depth++;
+            return hold;
+        }
+        hold = startDetached(readOnly);
+        current.set(hold);
+        return hold;
+    }
+
+    /**
+     * Marks a Connection as held beyond the scope of a task, such as by a Stream. Its statements are not attributed to it by {@link #statement(String, Object[])}.
+     *
+     * @return The hold, to pass to {@link #end(Hold)} from any thread once the Connection is released
+     */
+    Hold startDetached(boolean readOnly) {
+        Hold hold = new Hold(Thread.currentThread(), readOnly, System.currentTimeMillis());
+        holds.add(hold);
+        return hold;
+    }
+
+    void end(Hold hold) {
+        if (--hold.depth > 0) return;
+        if (current.get() == hold) current.remove();
+        holds.remove(hold);
+        long holdMillis = System.currentTimeMillis() - hold.since;
+        if (holdMillis < thresholdMillis) return;
+        record(new SlowHold(hold.thread.getName(), hold.thread.getId(), hold.readOnly, hold.since, holdMillis,
+                hold.redactedStatement(), hold.statements, Thread.currentThread().getStackTrace()));
+    }
+
+    /**
+     * Notes a statement about to be executed on the Connection held by the current thread's task
+     */
+    void statement(String statement, @Nullable Object[] args) {
+        Hold hold = current.get();
+        if (hold != null) hold.statement(statement, args);
+    }
+
+    /**
+     * @return The number of Connections currently held
+     */
+    int getHeld() {
+        return holds.size();
+    }
+
+    private synchronized void record(SlowHold slowHold) {
+        prune();
+        slowHolds.add(slowHold);
+        while (slowHolds.size() > logSize) slowHolds.poll();
+    }
+
+    synchronized void setLogSize(int logSize) {
+        this.logSize = logSize;
+        while (slowHolds.size() > logSize) slowHolds.poll();
+    }
+
+    /**
+     * @return The slowest holds of the past hour, slowest first
+     */
+    synchronized List<SlowHold> getSlowHolds() {
+        prune();
+        List<SlowHold> out = new ArrayList<>(slowHolds);
+        out.sort(Comparator.comparingLong(SlowHold::holdMillis).reversed());
+        return out;
+    }
+
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - WINDOW_MILLIS;
+        slowHolds.removeIf(slowHold -> slowHold.since() + slowHold.holdMillis() < cutoff);
+    }
+
+    /**
+     * @return An exception describing the thread most likely blocking the current one: the writer if there is one, otherwise the longest running reader
+     */
+    BusyException busy(String message) {
+        Hold holder = null;
+        for (Hold hold : holds) {
+            if (hold.thread == Thread.currentThread()) continue;
+            if (holder == null || (holder.readOnly && !hold.readOnly) || (holder.readOnly == hold.readOnly && hold.since < holder.since)) {
+                holder = hold;
+            }
+        }
+        if (holder == null) return new BusyException(message);
+        String statement = holder.redactedStatement();
+        String detail = holder.thread.getName() + (holder.readOnly ? ", read only" : "") + (statement == null ? "" : ", executing " + statement);
+        return new BusyException(message, holder.thread.getStackTrace(), holder.thread.getId(), holder.since, detail);
+    }
+
+    static final class Hold {
+        final Thread thread;
+        final boolean readOnly;
+        final long since;
+        int depth = 1;
+        volatile String statement;
+        volatile Object[] args;
+        volatile int statements;
+
+        Hold(Thread thread, boolean readOnly, long since) {
+            this.thread = thread;
+            this.readOnly = readOnly;
+            this.since = since;
+        }
+
+        /**
+         * Notes a statement about to be executed on the held Connection
+         */
+        void statement(String statement, @Nullable Object[] args) {
+            this.statement = statement;
+            this.args = args;
+            statements++;
+        }
+
+        @Nullable
+        String redactedStatement() {
+            String statement = this.statement;
+            if (statement == null) return null;
+            return ConnectionManager.formatStatement(statement, args, ConnectionManager::redactArgument);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package dev.kshl.kshlib.sql;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations over a sliding time window.
+ * <br>
+ * Values are counted in fixed log-linear buckets (8 per power of two, so within 12.5% of the recorded value), similar to an HDR histogram.
+ * The window is split into slices which are recycled as time passes, so samples older than the window are dropped without any sweeping.
+ * A sample recorded concurrently with its slice being recycled may be lost, which is acceptable for metrics.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long sliceNanos;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray sliceEpochs;
+    private final int slices;
+
+    LatencyHistogram(long window, TimeUnit timeUnit, int slices) {
+        if (slices <= 0) throw new IllegalArgumentException("slices must be > 0");
+        this.slices = slices;
+        this.sliceNanos = Math.max(1, timeUnit.toNanos(window) / slices);
+        this.counts = new AtomicLongArray(BUCKETS * slices);
+        this.sliceEpochs = new AtomicLongArray(slices);
+        for (int i = 0; i < slices; i++) sliceEpochs.set(i, -1);
+    }
+
+    /**
+     * @param now   The current time in nanoseconds, relative to any origin which is the same for every call
+     * @param value The duration to record, in nanoseconds
+     */
+    void record(long now, long value) {
+        long epoch = now / sliceNanos;
+        int slice = (int) (epoch % slices);
+        long sliceEpoch = sliceEpochs.get(slice);
+        if (sliceEpoch != epoch && sliceEpochs.compareAndSet(slice, sliceEpoch, epoch)) {
+            for (int i = 0; i < BUCKETS; i++) counts.set(slice * BUCKETS + i, 0);
+        }
+        counts.incrementAndGet(slice * BUCKETS + bucketOf(Math.max(0, value)));
+    }
+
+    /**
+     * @param now         The current time in nanoseconds, on the same origin as {@link #record(long, long)}
+     * @param percentiles The percentiles to compute, each between 0 and 1
+     * @return The approximate duration in nanoseconds at each percentile, or 0 if nothing was recorded in the window
+     */
+    long[] getPercentiles(long now, double... percentiles) {
+        long epoch = now / sliceNanos;
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int slice = 0; slice < slices; slice++) {
+            long sliceEpoch = sliceEpochs.get(slice);
+            if (sliceEpoch < 0 || epoch - sliceEpoch >= slices) continue;
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = counts.get(slice * BUCKETS + i);
+                merged[i] += count;
+                total += count;
+            }
+        }
+        long[] out = new long[percentiles.length];
+        if (total == 0) return out;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += merged[i];
+                if (seen >= rank) {
+                    out[p] = valueOf(i);
+                    break;
+                }
+            }
+        }
+        return out;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The midpoint of the range of values counted in the bucket
+     */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS)) + width / 2;
+    }
+}
@@ -0,0 +1,328 @@
+package dev.kshl.kshlib.sql;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the results of read statements by their text and arguments, tagged with the tables they read.
+ * Writes made through the owning {@link ConnectionManager} invalidate every result which read a table they touched.
+ * <br>
+ * A write inside a transaction invalidates immediately, and again once the transaction ends, since until then other Connections may still read
+ * and cache the old rows. Until then, the writing thread bypasses the cache for those tables so it sees its own writes.
+ * <br>
+ * Writes made outside the owning ConnectionManager, or directly through JDBC, are not seen.
+ *
+ * @see ConnectionManager#enableQueryCache(long)
+ * @see StatementBuilder#cached()
+ */
+public class QueryCache {
+    /**
+     * Splits a statement into string literals, quoted or bare identifiers and keywords, and the punctuation which delimits table lists
+     */
+    private static final Pattern TOKEN = Pattern.compile("'(?:[^']|'')*'|`([^`]*)`|\"((?:[^\"]|\"\")*)\"|(\\w+)|([(),;])");
+    /**
+     * Keywords which end the table list of a FROM clause
+     */
+    private static final Set<String> CLAUSES = Set.of("SELECT", "WHERE", "GROUP", "ORDER", "LIMIT", "HAVING", "UNION", "EXCEPT", "INTERSECT",
+            "WINDOW", "VALUES", "SET", "RETURNING");
+    static final Pattern WRITE_TABLE = Pattern.compile(
+            "^\\s*(?:(?:INSERT|REPLACE)(?:\\s+OR\\s+\\w+|\\s+IGNORE)?\\s+INTO|UPDATE(?:\\s+OR\\s+\\w+|\\s+IGNORE)?|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?|(?:CREATE|DROP|ALTER)\\s+TABLE(?:\\s+IF\\s+(?:NOT\\s+)?EXISTS)?)\\s+`?(\\w+)`?",
+            Pattern.CASE_INSENSITIVE);
+    /**
+     * Marks a write whose tables could not be determined, which invalidates everything
+     */
+    private static final String ALL_TABLES = "*";
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Key>> keysByTable = new HashMap<>();
+    private final Map<String, Long> tableGenerations = new HashMap<>();
+    private long bytes;
+    private long invalidations;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    /**
+     * Tables written by this thread in a transaction which has not yet ended
+     */
+    private final ThreadLocal<Set<String>> uncommitted = ThreadLocal.withInitial(HashSet::new);
+    QueryCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be greater than 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The read of the statement, to pass to {@link #get(Read)} and {@link #put(Read, Object, long)}, or null if it must not be cached
+     */
+    @Nullable
+    Read startRead(String statement, @Nullable Object[] args) {
+        Set<String> tables = readTables(statement);
+        if (tables.isEmpty()) return null;
+        Set<String> uncommitted = this.uncommitted.get();
+        if (!uncommitted.isEmpty() && (uncommitted.contains(ALL_TABLES) || tables.stream().anyMatch(uncommitted::contains))) {
+            return null;
+        }
+        synchronized (this) {
+            return new Read(new Key(statement, args == null ? new Object[0] : args.clone()), tables, generationOf(tables));
+        }
+    }
+
+    /**
+     * @return The cached result, or null if there is none
+     */
+    @Nullable
+    Object get(Read read) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(read.key());
+        }
+        Stats stats = this.stats.computeIfAbsent(read.key().statement(), s -> new Stats());
+        if (entry == null) {
+            stats.misses.increment();
+            return null;
+        }
+        stats.hits.increment();
+        return entry.value();
+    }
+
+    /**
+     * Caches a result, unless one of the tables it read was written since the read started
+     */
+    synchronized void put(Read read, Object value, long size) {
+        if (size > maxBytes) return;
+        if (generationOf(read.tables()) != read.generation()) return;
+        Entry old = entries.remove(read.key());
+        if (old != null) bytes -= old.size();
+        entries.put(read.key(), new Entry(value, size, read.tables()));
+        bytes += size;
+        for (String table : read.tables()) keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(read.key());
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            unlink(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Invalidates results which read the tables written by the statement
+     */
+    void onWrite(Connection connection, String statement) throws SQLException {
+        Set<String> tables = writeTables(statement);
+        invalidate(tables);
+        if (!connection.getAutoCommit()) uncommitted.get().addAll(tables);
+    }
+
+    /**
+     * Invalidates the tables written by this thread in the transaction which just ended
+     */
+    void onTransactionEnd() {
+        Set<String> uncommitted = this.uncommitted.get();
+        if (uncommitted.isEmpty()) return;
+        invalidate(uncommitted);
+        uncommitted.clear();
+    }
+
+    synchronized void invalidate(Collection<String> tables) {
+        if (tables.isEmpty()) return;
+        invalidations++;
+        if (tables.contains(ALL_TABLES)) {
+            entries.clear();
+            keysByTable.clear();
+            bytes = 0;
+            tableGenerations.replaceAll((table, generation) -> generation + 1);
+            tableGenerations.merge(ALL_TABLES, 1L, Long::sum);
+            return;
+        }
+        for (String table : tables) {
+            tableGenerations.merge(table, 1L, Long::sum);
+            Set<Key> keys = keysByTable.remove(table);
+            if (keys == null) continue;
+            for (Key key : keys) {
+                Entry entry = entries.remove(key);
+                if (entry != null) unlink(key, entry);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        invalidate(Set.of(ALL_TABLES));
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The estimated size of every cached result
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return The hits and misses of each statement which was read through the cache, by statement
+     */
+    public Map<String, QueryCacheStats> getStats() {
+        Map<String, QueryCacheStats> out = new HashMap<>();
+        stats.forEach((statement, stats) -> out.put(statement, new QueryCacheStats(stats.hits.sum(), stats.misses.sum())));
+        return out;
+    }
+
+    private void unlink(Key key, Entry entry) {
+        bytes -= entry.size();
+        for (String table : entry.tables()) {
+            Set<Key> keys = keysByTable.get(table);
+            if (keys == null) continue;
+            keys.remove(key);
+            if (keys.isEmpty()) keysByTable.remove(table);
+        }
+    }
+
+    private long generationOf(Set<String> tables) {
+        long generation = tableGenerations.getOrDefault(ALL_TABLES, 0L);
+        for (String table : tables) generation += tableGenerations.getOrDefault(table, 0L);
+        return generation;
+    }
+
+    /**
+     * Finds the table following every FROM and JOIN, and each table after a comma in a FROM list, at any depth of parentheses, so tables read
+     * by subqueries are included. A subquery in place of a table is skipped, and the tables it reads are found as the scan continues into it.
+     */
+    static Set<String> readTables(String statement) {
+        Set<String> tables = new HashSet<>();
+        // Whether the FROM list at each depth of parentheses is still open, so a comma there starts another table
+        BitSet inFrom = new BitSet();
+        int depth = 0;
+        boolean expectTable = false;
+        Matcher matcher = TOKEN.matcher(statement);
+        while (matcher.find()) {
+            String identifier = matcher.group(1) != null ? matcher.group(1) : matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+            String punctuation = matcher.group(4);
+            if (punctuation != null) {
+                switch (punctuation) {
+                    case "(" -> inFrom.clear(++depth);
+                    case ")" -> depth = Math.max(0, depth - 1);
+                    case "," -> {
+                        if (inFrom.get(depth)) {
+                            expectTable = true;
+                            continue;
+                        }
+                    }
+                    default -> inFrom.clear(0, depth + 1);
+                }
+                expectTable = false;
+                continue;
+            }
+            if (identifier == null) {
+                // A string literal
+                expectTable = false;
+                continue;
+            }
+            boolean bare = matcher.group(3) != null;
+            String upper = identifier.toUpperCase(Locale.ROOT);
+            if (bare && (upper.equals("FROM") || upper.equals("JOIN"))) {
+                inFrom.set(depth);
+                expectTable = true;
+            } else if (bare && CLAUSES.contains(upper)) {
+                inFrom.clear(depth);
+                expectTable = false;
+            } else if (expectTable) {
+                tables.add(identifier.toLowerCase(Locale.ROOT));
+                expectTable = false;
+            }
+        }
+        return tables;
+    }
+
+    static Set<String> writeTables(String statement) {
+        if (statement.stripLeading().regionMatches(true, 0, "SELECT", 0, 6)) return Set.of();
+        Matcher matcher = WRITE_TABLE.matcher(statement);
+        if (!matcher.find()) return Set.of(ALL_TABLES);
+        return Set.of(matcher.group(1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return A rough estimate of the heap retained by a cached result
+     */
+    static long estimateSize(@Nullable Object value) {
+        if (value == null) return 0;
+        if (value instanceof String string) return 40L + string.length() * 2L;
+        if (value instanceof Number || value instanceof Boolean) return 16L;
+        if (value instanceof byte[] bytes) return 16L + bytes.length;
+        if (value instanceof ColumnarResultMap map) return map.estimateMemory();
+        if (value instanceof ResultMap map) {
+            long size = 64L;
+            for (ResultMap.Result result : map.getResults()) size += 56L + estimateSize(result.getValues());
+            return size;
+        }
+        if (value instanceof Collection<?> collection) {
+            long size = 48L;
+            for (Object element : collection) size += 16L + estimateSize(element);
+            return size;
+        }
+        if (value instanceof Map<?, ?> map) {
+            long size = 64L;
+            for (Map.Entry<?, ?> entry : map.entrySet()) size += 40L + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            return size;
+        }
+        return 64L;
+    }
+
+    /**
+     * @param hits   The number of times the statement was served from the cache
+     * @param misses The number of times the statement was executed because it was not cached
+     */
+    public record QueryCacheStats(long hits, long misses) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    record Read(Key key, Set<String> tables, long generation) {
+    }
+
+    private record Entry(Object value, long size, Set<String> tables) {
+    }
+
+    private static final class Stats {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    record Key(String statement, Object[] args) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && statement.equals(other.statement) && Arrays.deepEquals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return statement.hashCode() * 31 + Arrays.deepHashCode(args);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package dev.kshl.kshlib.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * An in-memory, non-expiring copy of an ID table: a dense array of values indexed by ID, and an open-addressing hash table of IDs keyed by value.
+ * The dense array only grows while at least a quarter of it would be used, so IDs beyond it, such as a few very large or widely scattered ones, are kept in a map instead.
+ * <br>
+ * Reads take no locks. Writes are synchronized and publish each entry's value before its hash slot, so a reader which finds an ID in the hash
+ * table always sees its value. A reader racing a resize may miss an entry which was just added, which callers treat as a cache miss.
+ */
+class ResidentIndex<V> {
+    private static final int EMPTY = 0;
+    /**
+     * The dense array grows to at most this many times the number of values
+     */
+    private static final int MAX_SLOTS_PER_VALUE = 4;
+    /**
+     * IDs at or beyond this are always kept in {@link #sparse}, as doubling the dense array to fit them would overflow
+     */
+    private static final int MAX_DENSE_ID = 1 << 29;
+
+    private volatile State<V> state = new State<>(16, 16);
+    /**
+     * Values whose IDs are beyond the dense array
+     */
+    private final Map<Integer, V> sparse = new ConcurrentHashMap<>();
+    private int size;
+    private int slotsUsed;
+
+    /**
+     * @return The ID of the value, or 0 if it is not present
+     */
+    int getID(V value) {
+        State<V> state = this.state;
+        int mask = state.table.length() - 1;
+        for (int slot = hash(value) & mask; ; slot = (slot + 1) & mask) {
+            int id = state.table.get(slot);
+            if (id == EMPTY) return 0;
+            if (value.equals(valueOf(state, id))) return id;
+        }
+    }
+
+    /**
+     * @return The value with the ID, or null if it is not present
+     */
+    V getValue(int id) {
+        if (id <= 0) return null;
+        return valueOf(this.state, id);
+    }
+
+    private V valueOf(State<V> state, int id) {
+        if (id < state.values.length()) return state.values.get(id);
+        return sparse.get(id);
+    }
+
+    synchronized void put(int id, V value) {
+        if (id <= 0 || value == null) return;
+        V old = valueOf(this.state, id);
+        if (value.equals(old)) return;
+        if (old != null) remove(id);
+        int previousID = getID(value);
+        if (previousID != 0) remove(previousID); // The value was removed and re-inserted elsewhere
+
+        State<V> state = this.state;
+        int valuesLength = state.values.length();
+        if (id >= valuesLength && id < MAX_DENSE_ID) {
+            int grown = Integer.highestOneBit(id) << 1;
+            if (grown <= (long) (size + 1) * MAX_SLOTS_PER_VALUE) valuesLength = grown;
+        }
+        // Tombstones count towards the load, so the table is rebuilt once they fill it even if the live size has not grown
+        boolean rehash = (slotsUsed + 1) * 2 > state.table.length();
+        int tableLength = rehash ? Math.max(16, Integer.highestOneBit(size + 1) << 2) : state.table.length();
+        if (rehash || valuesLength != state.values.length()) {
+            state = resize(valuesLength, tableLength);
+        }
+        if (id < state.values.length()) state.values.set(id, value);
+        else sparse.put(id, value);
+        insert(state, id, value);
+        size++;
+        slotsUsed++;
+    }
+
+    /**
+     * Removes the value with the ID. Its hash slot is left behind as a tombstone, which lookups skip and the next resize discards.
+     */
+    synchronized void remove(int id) {
+        State<V> state = this.state;
+        if (id <= 0) return;
+        V removed = id < state.values.length() ? state.values.getAndSet(id, null) : sparse.remove(id);
+        if (removed != null) size--;
+    }
+
+    synchronized void clear() {
+        state = new State<>(16, 16);
+        sparse.clear();
+        size = 0;
+        slotsUsed = 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param valueSize Estimates the bytes retained by each value
+     * @return The approximate heap size of the index in bytes, including its values
+     */
+    synchronized long estimateMemory(ToLongFunction<V> valueSize) {
+        State<V> state = this.state;
+        long bytes = 16L + state.values.length() * 4L + 16L + state.table.length() * 4L;
+        for (int id = 1; id < state.values.length(); id++) {
+            V value = state.values.get(id);
+            if (value != null) bytes += valueSize.applyAsLong(value);
+        }
+        for (V value : sparse.values()) {
+            // Map node and boxed key
+            bytes += 48 + valueSize.applyAsLong(value);
+        }
+        return bytes;
+    }
+
+    private State<V> resize(int valuesLength, int tableLength) {
+        State<V> old = this.state;
+        State<V> resized = new State<>(valuesLength, tableLength);
+        slotsUsed = 0;
+        for (int id = 1; id < old.values.length(); id++) {
+            V value = old.values.get(id);
+            if (value == null) continue;
+            resized.values.set(id, value);
+            insert(resized, id, value);
+            slotsUsed++;
+        }
+        List<Integer> densified = new ArrayList<>();
+        for (Map.Entry<Integer, V> entry : sparse.entrySet()) {
+            int id = entry.getKey();
+            if (id < valuesLength) {
+                resized.values.set(id, entry.getValue());
+                densified.add(id);
+            }
+            insert(resized, id, entry.getValue());
+            slotsUsed++;
+        }
+        this.state = resized;
+        // Only removed once published in the dense array, so readers always find them in one or the other
+        densified.forEach(sparse::remove);
+        return resized;
+    }
+
+    private static <V> void insert(State<V> state, int id, V value) {
+        int mask = state.table.length() - 1;
+        int slot = hash(value) & mask;
+        while (state.table.get(slot) != EMPTY) slot = (slot + 1) & mask;
+        state.table.set(slot, id);
+    }
+
+    private static int hash(Object value) {
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private record State<V>(AtomicReferenceArray<V> values, AtomicIntegerArray table) {
+        State(int valuesLength, int tableLength) {
+            this(new AtomicReferenceArray<>(valuesLength), new AtomicIntegerArray(tableLength));
+        }
+    }
+}
@@ -21,7 +21,7 @@ public class ResultMap {
             final List<String> labels = new ArrayList<>();
             for (int i = 0; i < columnCount; i++) {
                 String name = meta.getColumnName(i + 1);
-                labelsMap.put(name, i + 1);
+                labelsMap.put(name, i);
                 types[i] = meta.getColumnType(i + 1);
                 labels.add(name);
             }
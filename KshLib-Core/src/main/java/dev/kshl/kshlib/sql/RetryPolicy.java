@@ -0,0 +1,160 @@
+package dev.kshl.kshlib.sql;
+
+import lombok.Getter;
+import org.sqlite.SQLiteException;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether and when a transaction which failed due to contention is retried, see {@link ConnectionManager#executeTransaction(ConnectionFunction, long, RetryPolicy)}.
+ * <br>
+ * Deadlocks, lock wait timeouts, serialization failures, and SQLite's busy and locked errors are retried, up to a maximum number of attempts,
+ * after a capped exponential backoff with jitter. Retries are also limited to a fraction of the transactions run under the policy within each window,
+ * so that under heavy contention retries do not multiply the load which caused it.
+ */
+public class RetryPolicy {
+    @Getter
+    private int maxAttempts = 5;
+    @Getter
+    private long baseDelayMillis = 10L;
+    @Getter
+    private long maxDelayMillis = 1000L;
+    /**
+     * The fraction of transactions within a window which may be retries
+     */
+    @Getter
+    private double budgetRatio = 0.1;
+    /**
+     * The number of retries allowed within a window regardless of the ratio, so a quiet database can still retry
+     */
+    @Getter
+    private int budgetMinimum = 10;
+    @Getter
+    private long budgetWindowMillis = 10_000L;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+    private final LongAdder attemptsExhausted = new LongAdder();
+    private long windowStart = System.currentTimeMillis();
+    private long windowTransactions;
+    private long windowRetries;
+
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) throw new IllegalArgumentException("maxAttempts must be greater than 0");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param baseDelayMillis The delay before the first retry, doubled for each following retry
+     * @param maxDelayMillis  The maximum delay before any retry
+     */
+    public RetryPolicy backoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 0) throw new IllegalArgumentException("baseDelayMillis must not be negative");
+        if (maxDelayMillis < baseDelayMillis) throw new IllegalArgumentException("maxDelayMillis must be at least baseDelayMillis");
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        return this;
+    }
+
+    public RetryPolicy budget(double ratio, int minimum, long windowMillis) {
+        if (ratio < 0) throw new IllegalArgumentException("ratio must not be negative");
+        if (minimum < 0) throw new IllegalArgumentException("minimum must not be negative");
+        if (windowMillis <= 0) throw new IllegalArgumentException("windowMillis must be greater than 0");
+        this.budgetRatio = ratio;
+        this.budgetMinimum = minimum;
+        this.budgetWindowMillis = windowMillis;
+        return this;
+    }
+
+    /**
+     * @return Whether the exception was caused by contention with another transaction, such that the same transaction may succeed if retried
+     */
+    public boolean isRetryable(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (!(t instanceof SQLException sqlException)) continue;
+            for (SQLException cur = sqlException; cur != null; cur = cur.getNextException()) {
+                String state = cur.getSQLState();
+                // Transaction rollback, e.g. serialization failure or deadlock
+                if (state != null && state.startsWith("40")) return true;
+                int code = cur.getErrorCode();
+                // MySQL deadlock and lock wait timeout
+                if (code == 1213 || code == 1205) return true;
+                // SQLITE_BUSY and SQLITE_LOCKED, including their extended codes
+                if (cur instanceof SQLiteException && ((code & 0xFF) == 5 || (code & 0xFF) == 6)) return true;
+                if (cur.getNextException() == cur) break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param attempt The number of attempts made so far, from 1
+     * @return The delay before the next attempt, between half and all of the capped exponential delay
+     */
+    long getDelayMillis(int attempt) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        if (delay <= 1) return delay;
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Counts a transaction run under this policy towards the budget
+     */
+    synchronized void onTransaction() {
+        rollWindow();
+        windowTransactions++;
+    }
+
+    /**
+     * @return Whether a retry is allowed after the provided attempt failed with the provided exception, counting it if so
+     */
+    boolean tryRetry(SQLException e, int attempt) {
+        if (!isRetryable(e)) return false;
+        if (attempt >= maxAttempts) {
+            attemptsExhausted.increment();
+            return false;
+        }
+        synchronized (this) {
+            rollWindow();
+            if (windowRetries >= Math.max(budgetMinimum, (long) (windowTransactions * budgetRatio))) {
+                budgetExhausted.increment();
+                return false;
+            }
+            windowRetries++;
+        }
+        retries.increment();
+        return true;
+    }
+
+    private void rollWindow() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < budgetWindowMillis) return;
+        windowStart = now;
+        windowTransactions = 0;
+        windowRetries = 0;
+    }
+
+    /**
+     * @return The number of retries made
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return The number of retryable failures which were not retried because the budget was spent
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.sum();
+    }
+
+    /**
+     * @return The number of retryable failures which were not retried because every attempt was used
+     */
+    public long getAttemptsExhausted() {
+        return attemptsExhausted.sum();
+    }
+}
@@ -8,8 +8,10 @@ import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class SQLAPIKeyManager {
     private final ConnectionManager connectionManager;
@@ -59,16 +61,27 @@ public class SQLAPIKeyManager {
         return test(apiKeyPair.id(), apiKeyPair.secret());
     }
 
+    /**
+     * @see SQLPasswordManager#testPasswordAsync(int, String)
+     */
+    public CompletableFuture<Boolean> testAsync(int id, String secret) {
+        return passwordManager.testPasswordAsync(id, secret);
+    }
+
+    public CompletableFuture<Boolean> testAsync(APIKeyPair apiKeyPair) {
+        return testAsync(apiKeyPair.id(), apiKeyPair.secret());
+    }
+
     public boolean contains(int id) throws SQLException, BusyException {
         return passwordManager.contains(id);
     }
 
     public Map<Integer, String> list() throws SQLException, BusyException {
-        return connectionManager.query("SELECT uid,description FROM " + table, rs -> {
+        return new HashMap<>(connectionManager.applyResultSet("SELECT uid,description FROM " + table, rs -> {
             Map<Integer, String> out = new HashMap<>();
             while (rs.next()) out.put(rs.getInt(1), rs.getString(2));
-            return out;
-        }, 3000);
+            return Collections.unmodifiableMap(out);
+        }).cached().executeQuery(3000));
     }
 
     public void updateDescription(int id, String description) throws SQLException, BusyException {
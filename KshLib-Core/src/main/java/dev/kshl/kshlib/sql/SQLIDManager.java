@@ -4,12 +4,15 @@ import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.function.ConnectionConsumer;
 import dev.kshl.kshlib.function.ConnectionFunction;
 import dev.kshl.kshlib.misc.BiDiMapCache;
+import dev.kshl.kshlib.misc.MapCache;
 import dev.kshl.kshlib.misc.UUIDHelper;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -17,15 +20,39 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public abstract class SQLIDManager<V> {
     private final ConnectionManager sql;
     private final String table;
+    /**
+     * The number of placeholders in each shape of bulk lookup statement
+     */
+    private static final int[] CHUNK_SIZES = {1, 8, 64, 512};
+
+    /**
+     * Invalidated by changes to the table published to the {@link ChangeFeed}
+     */
     private final BiDiMapCache<Integer, V> cache = new BiDiMapCache<>(1, TimeUnit.HOURS);
+    /**
+     * Values recently looked up without inserting and not found. Cleared by any insert published to the {@link ChangeFeed}, so only values
+     * inserted by another process without the change log enabled may appear missing, for up to this TTL.
+     */
+    private final MapCache<V, Boolean> missing = new MapCache<>(5, TimeUnit.SECONDS);
+    private final Map<Flight<V>, CompletableFuture<Optional<Integer>>> inFlight = new ConcurrentHashMap<>();
     private final String datatype;
     private boolean initDone;
+    @Nullable
+    private ResidentIndex<V> resident;
+    /**
+     * Subscribed to the {@link ChangeFeed} by {@link #init(Connection)} rather than the constructor, so this is never published before it is constructed
+     */
+    private final Consumer<TableChange> changeSubscriber = this::onChange;
 
     public SQLIDManager(ConnectionManager sql, String table, String datatype) {
         this.datatype = datatype;
@@ -33,8 +60,27 @@ public abstract class SQLIDManager<V> {
         this.table = ConnectionManager.validateTableName(table);
     }
 
+    /**
+     * Invalidates cached values changed other than through {@link #getIDOpt(Object, boolean)}, e.g. by another process or a direct statement.
+     * On SQLite the id is the rowid, so only the changed id is invalidated. Removals made through this manager already update the cache.
+     */
+    private void onChange(TableChange change) {
+        if (change.source() == this) return;
+        if (change.type() == TableChange.Type.INSERT) {
+            // Inserting a value never changes the id of another
+            missing.clear();
+        } else if (change.isRowKnown()) {
+            int id = (int) (long) change.rowId();
+            cache.remove(id);
+            if (resident != null) resident.remove(id);
+        } else {
+            clearCache();
+        }
+    }
+
     public void init(Connection connection) throws SQLException {
         if (initDone) throw new IllegalStateException("Initialization is already complete.");
+        sql.getChangeFeed().subscribe(table, changeSubscriber);
 
         boolean migrationRequired = sql.tableExists(connection, table) && !sql.uniqueConstraintExists(connection, table, "id");
 
@@ -70,16 +116,66 @@ public abstract class SQLIDManager<V> {
         }
         sql.execute(connection, "DROP TABLE IF EXISTS " + table + "_temp");
 
+        if (resident != null) {
+            sql.query(connection, "SELECT id,value FROM " + table, rs -> {
+                while (rs.next()) {
+                    resident.put(rs.getInt(1), getValue(rs, 2));
+                }
+            });
+        }
+
         initDone = true;
     }
 
+    /**
+     * Keeps the entire table in memory instead of caching recently used values. The table is loaded during {@link #init(Connection)},
+     * kept up to date as values are inserted through this manager, and never expires. Must be set before initialization.
+     * <br>
+     * Suited to read-mostly tables which comfortably fit in memory, see {@link #getResidentMemoryBytes()}.
+     * Values missing from memory, such as those inserted by another process, are still looked up in the database.
+     */
+    public void setResident(boolean resident) {
+        if (initDone) throw new IllegalStateException("Initialization is already complete.");
+        this.resident = resident ? new ResidentIndex<>() : null;
+    }
+
+    public boolean isResident() {
+        return resident != null;
+    }
+
+    /**
+     * @return The approximate heap size in bytes of this table's resident copy, or 0 if it is not resident
+     */
+    public long getResidentMemoryBytes() {
+        if (resident == null) return 0;
+        return resident.estimateMemory(this::estimateSize);
+    }
+
+    /**
+     * @return The number of values held in memory
+     */
+    public int getCachedCount() {
+        if (resident == null) return cache.size();
+        return resident.size();
+    }
+
+    /**
+     * @return The approximate heap size of a value in bytes, used by {@link #getResidentMemoryBytes()}
+     */
+    protected long estimateSize(V value) {
+        return 16;
+    }
+
     protected String getTableMetaDataColumns() {
         return "";
     }
 
 
     public int getIDOrInsert(@Nonnull V value) throws SQLException, BusyException {
-        return sql.execute((ConnectionFunction<Integer>) connection -> getIDOrInsert(connection, value), 3000L);
+        Objects.requireNonNull(value, "value must be nonnull");
+        if (isInvalid(value)) throw new IllegalArgumentException("Invalid value: " + value);
+
+        return getIDOpt(value, true, false).orElseThrow();
     }
 
     public int getIDOrInsert(Connection connection, @Nonnull V value) throws SQLException {
@@ -93,8 +189,44 @@ public abstract class SQLIDManager<V> {
         return getIDOpt(value, insert, false);
     }
 
+    /**
+     * Concurrent lookups of the same value share a single database round trip, unless the calling Thread already holds a Connection,
+     * in which case waiting on another Thread's lookup could deadlock.
+     */
     private Optional<Integer> getIDOpt(V value, boolean insert, boolean requireNew) throws SQLException, BusyException {
-        return sql.execute((ConnectionFunction<Optional<Integer>>) connection -> getIDOpt(connection, value, insert, requireNew), 10000L);
+        if (requireNew || sql.isConnectionHeldByCurrentThread()) {
+            return sql.executeTransaction((ConnectionFunction<Optional<Integer>>) connection -> getIDOpt(connection, value, insert, requireNew), 10000L, sql.getRetryPolicy());
+        }
+        if (!initDone) throw new IllegalStateException("Initialization is not complete.");
+        if (value == null || isInvalid(value)) return Optional.empty();
+
+        Integer cachedValue = getCachedID(value);
+        if (cachedValue != null) return Optional.of(cachedValue);
+        if (!insert && isMissing(value)) return Optional.empty();
+
+        Flight<V> key = new Flight<>(value, insert);
+        CompletableFuture<Optional<Integer>> flight = new CompletableFuture<>();
+        CompletableFuture<Optional<Integer>> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException sqlException) throw sqlException;
+                if (e.getCause() instanceof BusyException busyException) throw busyException;
+                if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+                throw e;
+            }
+        }
+        try {
+            Optional<Integer> result = sql.executeTransaction((ConnectionFunction<Optional<Integer>>) connection -> getIDOpt(connection, value, insert, false), 10000L, sql.getRetryPolicy());
+            flight.complete(result);
+            return result;
+        } catch (SQLException | BusyException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
     }
 
     public Optional<Integer> getIDOpt(Connection connection, V value, boolean insert) throws SQLException {
@@ -106,38 +238,30 @@ public abstract class SQLIDManager<V> {
         if (value == null || isInvalid(value)) return Optional.empty();
 
         if (!requireNew) {
-            Integer cachedValue = cache.getAnyKey(value);
+            Integer cachedValue = getCachedID(value);
             if (cachedValue != null) return Optional.of(cachedValue);
+            if (!insert && isMissing(value)) return Optional.empty();
         }
 
-        for (int i = 0; i < 30; i++) {
+        // Not retried here, since the Connection would be held while waiting. Callers without a Connection retry the whole transaction instead.
+        return sql.executeTransaction(connection, () -> {
             try {
-                return sql.executeTransaction(connection, () -> {
-                    try {
-                        if (insert) {
-                            sql.execute(connection, "INSERT INTO " + table + " (value) VALUES (?)", toDatabaseObject(value));
-                        }
-                    } catch (SQLException e) {
-                        if (requireNew || !sql.isConstraintViolation(e)) throw e;
-                    }
-                    return sql.query(connection, "SELECT id FROM " + table + " WHERE value=?", rs -> {
-                        if (!rs.next()) return Optional.empty();
-                        int result = rs.getInt(1);
-                        cache(result, value);
-                        return Optional.of(result);
-                    }, toDatabaseObject(value));
-                });
+                if (insert) {
+                    sql.execute(connection, "INSERT INTO " + table + " (value) VALUES (?)", toDatabaseObject(value));
+                }
             } catch (SQLException e) {
-                int code = e.getErrorCode();
-                String state = e.getSQLState();
-                // Handle MySQL deadlock and lock wait timeout
-                if (code == 1213 || code == 1205) continue;
-                // Handle SQLite busy/locked
-                if ("40001".equals(state) || "HY000".equals(state)) continue;
-                throw e;
+                if (requireNew || !sql.isConstraintViolation(e)) throw e;
             }
-        }
-        throw new SQLException("Unable to get UID due to repeated deadlocks or timeouts");
+            return sql.query(connection, "SELECT id FROM " + table + " WHERE value=?", rs -> {
+                if (!rs.next()) {
+                    if (!insert) missing.put(value, true);
+                    return Optional.empty();
+                }
+                int result = rs.getInt(1);
+                cache(result, value);
+                return Optional.of(result);
+            }, toDatabaseObject(value));
+        });
     }
 
     public int getIDRequireNew(V value) throws SQLException, BusyException {
@@ -163,6 +287,7 @@ public abstract class SQLIDManager<V> {
      */
     public void put(int id, V value) throws SQLException, BusyException {
         sql.execute("INSERT INTO " + table + " (id,value) VALUES (?,?)", 3000L, id, toDatabaseObject(value));
+        missing.remove(value);
     }
 
     public Optional<V> getValueOpt(int id) throws SQLException, BusyException {
@@ -172,7 +297,7 @@ public abstract class SQLIDManager<V> {
     public Optional<V> getValueOpt(Connection connection, int id) throws SQLException {
         if (!initDone) throw new IllegalStateException("Initialization is not complete.");
         if (id <= 0) return Optional.empty();
-        V cachedValue = cache.get(id);
+        V cachedValue = getCachedValue(id);
         if (cachedValue != null) return Optional.of(cachedValue);
         return sql.query(connection, "SELECT value FROM " + table + " WHERE id=?", rs -> {
             if (!rs.next()) return Optional.empty();
@@ -195,30 +320,90 @@ public abstract class SQLIDManager<V> {
         return sql.execute((ConnectionFunction<Map<V, Integer>>) connection -> getAll(connection, values), 3000L);
     }
 
+    /**
+     * Looks up the IDs of many values at once. Cached values are not queried, and the rest are bound as parameters in chunks of
+     * {@link #CHUNK_SIZES} placeholders so only a few statement shapes are ever prepared.
+     *
+     * @return A map of every provided value to its ID, or to null if it does not exist
+     */
     public Map<V, Integer> getAll(Connection connection, Collection<V> values) throws SQLException {
         Map<V, Integer> out = new HashMap<>();
-        values.forEach(v -> out.put(v, null));
-        sql.query(connection, "SELECT id,value FROM " + table + " WHERE value IN (" + toDatabaseObject(values) + ")", rs -> {
-            while (rs.next()) {
-                out.put(getValue(rs, 2), rs.getInt(1));
+        List<V> misses = new ArrayList<>();
+        for (V value : values) {
+            if (out.containsKey(value)) continue;
+            Integer cachedValue = value == null ? null : getCachedID(value);
+            out.put(value, cachedValue);
+            if (cachedValue == null && value != null && !isInvalid(value)) misses.add(value);
+        }
+        for (int from = 0; from < misses.size(); ) {
+            int remaining = misses.size() - from;
+            int chunkSize = CHUNK_SIZES[CHUNK_SIZES.length - 1];
+            for (int size : CHUNK_SIZES) {
+                if (size >= remaining) {
+                    chunkSize = size;
+                    break;
+                }
             }
-        });
+            Object[] args = new Object[chunkSize];
+            for (int i = 0; i < chunkSize; i++) {
+                // Pads a partial chunk by repeating its last value
+                args[i] = toDatabaseObject(misses.get(from + Math.min(i, remaining - 1)));
+            }
+            sql.query(connection, "SELECT id,value FROM " + table + " WHERE value IN (" + placeholders(chunkSize) + ")", rs -> {
+                while (rs.next()) {
+                    V value = getValue(rs, 2);
+                    int id = rs.getInt(1);
+                    out.put(value, id);
+                    cache(id, value);
+                }
+            }, args);
+            from += Math.min(chunkSize, remaining);
+        }
         return out;
     }
 
+    private static String placeholders(int count) {
+        return "?" + ",?".repeat(count - 1);
+    }
+
     public Map<V, Integer> getOrInsertAll(Collection<V> values) throws SQLException, BusyException {
         return sql.execute((ConnectionFunction<Map<V, Integer>>) connection -> getOrInsertAll(connection, values), 3000L);
     }
 
     public Map<V, Integer> getOrInsertAll(Connection connection, Collection<V> values) throws SQLException {
         return sql.executeTransaction(connection, () -> {
-            putAll(connection, values);
+            List<V> misses = values.stream().filter(v -> v != null && !isInvalid(v) && getCachedID(v) == null).distinct().toList();
+            if (!misses.isEmpty()) putAll(connection, misses);
             return getAll(connection, values);
         });
     }
 
     protected void cache(int id, V value) {
-        if (id > 0) cache.put(id, value);
+        if (id > 0) {
+            if (resident != null) {
+                resident.put(id, value);
+            } else {
+                cache.put(id, value);
+            }
+            missing.remove(value);
+        }
+    }
+
+    @Nullable
+    private Integer getCachedID(V value) {
+        if (resident == null) return cache.getAnyKey(value);
+        int id = resident.getID(value);
+        return id > 0 ? id : null;
+    }
+
+    @Nullable
+    private V getCachedValue(int id) {
+        if (resident == null) return cache.get(id);
+        return resident.getValue(id);
+    }
+
+    private boolean isMissing(V value) {
+        return missing.get(value, false) != null;
     }
 
     public boolean remove(int id) throws SQLException, BusyException {
@@ -226,7 +411,10 @@ public abstract class SQLIDManager<V> {
     }
 
     public boolean remove(Connection connection, int id) throws SQLException {
-        return sql.executeReturnRows(connection, "DELETE FROM " + table + " WHERE id=?", id) > 0;
+        boolean removed = sql.getChangeFeed().changeAs(this, () -> sql.executeReturnRows(connection, "DELETE FROM " + table + " WHERE id=?", id) > 0);
+        cache.remove(id);
+        if (resident != null) resident.remove(id);
+        return removed;
     }
 
     public String getTableName() {
@@ -235,16 +423,27 @@ public abstract class SQLIDManager<V> {
 
     public void clearCache() {
         cache.clear();
+        missing.clear();
+        if (resident != null) resident.clear();
+    }
+
+    /**
+     * Unsubscribes from changes to the table, so this manager can be garbage collected while the {@link ConnectionManager} is still open.
+     * Its cache is no longer invalidated by changes made elsewhere, so it should not be used afterwards.
+     */
+    public void close() {
+        sql.getChangeFeed().unsubscribe(table, changeSubscriber);
     }
 
     protected abstract V getValue(ResultSet rs, int index) throws SQLException;
 
     protected abstract Object toDatabaseObject(V value);
 
-    protected abstract Object toDatabaseObject(Collection<V> values);
-
     protected abstract boolean isInvalid(V v);
 
+    private record Flight<V>(V value, boolean insert) {
+    }
+
     public static class Str extends SQLIDManager<String> {
 
         public Str(ConnectionManager sql, String table) {
@@ -266,14 +465,14 @@ public abstract class SQLIDManager<V> {
         }
 
         @Override
-        protected Object toDatabaseObject(Collection<String> values) {
-            if (values.isEmpty()) throw new IllegalArgumentException("Cannot create SQL string from empty collection");
-            return values.stream().map(s -> "'" + s + "'").reduce((a, b) -> a + "," + b).orElseThrow();
+        protected boolean isInvalid(String string) {
+            return string == null || string.isEmpty() || string.equalsIgnoreCase("#null");
         }
 
         @Override
-        protected boolean isInvalid(String string) {
-            return string == null || string.isEmpty() || string.equalsIgnoreCase("#null");
+        protected long estimateSize(String value) {
+            // String header and its byte[], assuming Latin-1 compact strings
+            return 24 + 16 + value.length();
         }
     }
 
@@ -288,6 +487,11 @@ public abstract class SQLIDManager<V> {
             return rs.getLong(i);
         }
 
+        @Override
+        protected long estimateSize(Long value) {
+            return 16;
+        }
+
         @Override
         protected boolean isInvalid(Long l) {
             return l == null;
@@ -297,12 +501,6 @@ public abstract class SQLIDManager<V> {
         protected Object toDatabaseObject(Long value) {
             return value;
         }
-
-        @Override
-        protected Object toDatabaseObject(Collection<Long> values) {
-            if (values.isEmpty()) throw new IllegalArgumentException("Cannot create SQL string from empty collection");
-            return values.stream().map(String::valueOf).reduce((a, b) -> a + "," + b).orElseThrow();
-        }
     }
 
     public static class UUIDText extends SQLIDManager<java.util.UUID> {
@@ -324,15 +522,90 @@ public abstract class SQLIDManager<V> {
             return uuid == null;
         }
 
+        @Override
+        protected long estimateSize(UUID value) {
+            return 32;
+        }
+
         @Override
         protected Object toDatabaseObject(UUID value) {
             return Objects.requireNonNull(value).toString();
         }
+    }
+
+    /**
+     * Stores UUIDs as 16 raw bytes rather than text, which more than halves the size of the unique index and skips parsing on every read.
+     */
+    public static class UUIDBinary extends SQLIDManager<java.util.UUID> {
+        private final ConnectionManager sql;
+
+        public UUIDBinary(ConnectionManager sql, String table) {
+            super(sql, table, sql.isMySQL() ? "BINARY(16)" : "BLOB");
+            this.sql = sql;
+        }
+
+        /**
+         * Copies every id/value pair from a {@link UUIDText} table into this table, keeping the same IDs.
+         * Rows are copied in batches of batchSize, each in its own transaction, so other writers are not blocked for the whole copy.
+         * Rows inserted into the source while copying are picked up by later batches.
+         * <br>
+         * New values must be inserted through the source until this returns and through this manager afterwards, otherwise the two may assign the same ID.
+         * Copying is idempotent, rows already present are skipped.
+         *
+         * @return The number of rows read from the source with a valid UUID, including any which were already present
+         */
+        public int migrateFrom(String sourceTable, int batchSize, long wait) throws SQLException, BusyException {
+            ConnectionManager.validateTableName(sourceTable);
+            if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be > 0");
+            final String insert = sql.getInsertOrIgnore() + " INTO " + getTableName() + " (id,value) VALUES (?,?)";
+            int copied = 0;
+            int lastID = 0;
+            while (true) {
+                final int after = lastID;
+                List<Object[]> batch = sql.execute((ConnectionFunction<List<Object[]>>) connection -> sql.executeTransaction(connection, () -> {
+                    List<Object[]> rows = sql.query(connection, "SELECT id,value FROM " + sourceTable + " WHERE id>? ORDER BY id LIMIT ?", rs -> {
+                        List<Object[]> out = new ArrayList<>();
+                        while (rs.next()) {
+                            UUID uuid;
+                            try {
+                                uuid = UUIDHelper.fromString(rs.getString(2));
+                            } catch (IllegalArgumentException e) {
+                                uuid = null;
+                            }
+                            out.add(new Object[]{rs.getInt(1), uuid == null ? null : UUIDHelper.toByteArray(uuid)});
+                        }
+                        return out;
+                    }, after, batchSize);
+                    List<Object[]> valid = rows.stream().filter(row -> row[1] != null).toList();
+                    if (!valid.isEmpty()) sql.executeBatch(connection, insert, valid, row -> List.of(row[0], row[1]));
+                    return rows;
+                }), wait);
+                if (batch.isEmpty()) return copied;
+                copied += (int) batch.stream().filter(row -> row[1] != null).count();
+                lastID = (int) batch.get(batch.size() - 1)[0];
+            }
+        }
+
+        @Override
+        protected UUID getValue(ResultSet rs, int i) throws SQLException {
+            byte[] bytes = rs.getBytes(i);
+            if (bytes == null || bytes.length != 16) return null;
+            return UUIDHelper.from(bytes);
+        }
+
+        @Override
+        protected boolean isInvalid(UUID uuid) {
+            return uuid == null;
+        }
 
         @Override
-        protected Object toDatabaseObject(Collection<UUID> values) {
-            if (values.isEmpty()) throw new IllegalArgumentException("Cannot create SQL string from empty collection");
-            return values.stream().map(u -> "'" + u + "'").reduce((a, b) -> a + "," + b).orElseThrow();
+        protected long estimateSize(UUID value) {
+            return 32;
+        }
+
+        @Override
+        protected Object toDatabaseObject(UUID value) {
+            return UUIDHelper.toByteArray(Objects.requireNonNull(value));
         }
     }
 }
@@ -1,19 +1,35 @@
 package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.crypto.HashPBKDF2;
+import dev.kshl.kshlib.crypto.HashingService;
 import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
+import dev.kshl.kshlib.function.ConnectionFunction;
+import lombok.Getter;
+import lombok.Setter;
 
+import javax.annotation.Nullable;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class SQLPasswordManager {
     protected final ConnectionManager connectionManager;
     private final String table;
     private final Type type;
     private boolean initialized;
+    /**
+     * The service which computes the hashes of {@link #testPasswordAsync(int, String)} and {@link #setPasswordAsync(int, String, boolean, long)}
+     */
+    @Getter
+    @Setter
+    private HashingService hashingService = HashingService.getDefault();
 
     public enum Type {
         /**
@@ -49,6 +65,12 @@ public class SQLPasswordManager {
             connectionManager.execute(connection, "ALTER TABLE " + table + " ADD COLUMN expires BIGINT");
         } catch (SQLException ignored) {
         }
+        try {
+            connectionManager.execute(connection, "ALTER TABLE " + table + " ADD COLUMN iterations INT");
+        } catch (SQLException ignored) {
+        }
+        // Hashes from before the iteration count was stored used the current count
+        connectionManager.execute(connection, "UPDATE " + table + " SET iterations=? WHERE iterations IS NULL AND hash IS NOT NULL", type.iterationCount);
         initialized = true;
     }
 
@@ -75,35 +97,124 @@ public class SQLPasswordManager {
         if (!initialized) throw new IllegalArgumentException("Not initialized");
 
         final long now = System.currentTimeMillis();
-        connectionManager.executeTransaction(connection -> {
-            try {
-                connectionManager.execute(connection, "INSERT INTO " + table + " (created,uid) VALUES (?,?)", now, uid);
-            } catch (SQLException e) {
-                if (requireNew || !connectionManager.isConstraintViolation(e)) throw e;
-            }
+        // Hashed before the transaction, so the Connection is not held while hashing
+        byte[] hash = hash(password);
+        connectionManager.executeTransaction((ConnectionConsumer) connection -> writeHash(connection, uid, hash, requireNew, now, expiresAt), 10000L);
+    }
+
+    /**
+     * Sets the password for the given user. Only the hash is computed on the {@link #getHashingService() hashing service}, and it is written
+     * with {@link ConnectionManager#executeTransactionAsync(ConnectionFunction, long)}.
+     *
+     * @return A future which completes once the password is set, or exceptionally with a {@link BusyException} if the hashing service is full
+     * @see #setPassword(int, String, boolean, long)
+     */
+    public CompletableFuture<Void> setPasswordAsync(int uid, String password, boolean requireNew, long expiresAt) {
+        if (!initialized) throw new IllegalArgumentException("Not initialized");
+
+        final long now = System.currentTimeMillis();
+        return hashingService.submit(() -> hash(password)).thenCompose(hash -> connectionManager.executeTransactionAsync(connection -> {
+            writeHash(connection, uid, hash, requireNew, now, expiresAt);
+            return null;
+        }, 10000L));
+    }
+
+    private void writeHash(Connection connection, int uid, byte[] hash, boolean requireNew, long now, long expiresAt) throws SQLException {
+        try {
+            connectionManager.execute(connection, "INSERT INTO " + table + " (created,uid) VALUES (?,?)", now, uid);
+        } catch (SQLException e) {
+            if (requireNew || !connectionManager.isConstraintViolation(e)) throw e;
+        }
+        connectionManager.execute(connection, "UPDATE " + table + " SET hash=?,iterations=?,last_changed=?,expires=? WHERE uid=?", hash, type.iterationCount, now, expiresAt, uid);
+    }
+
+    private byte[] hash(String password) {
+        try {
+            return HashPBKDF2.hash(password, type.iterationCount);
+        } catch (NoSuchAlgorithmException e) {
+            // unexpected, verified at creation.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tests the password of the given user. If the password is correct but was hashed with fewer iterations than {@link Type#iterationCount}, it is rehashed.
+     * A failure to store the rehashed password is logged rather than thrown, as the password was already verified and will be rehashed next time.
+     */
+    public boolean testPassword(int uid, String password) throws SQLException, BusyException {
+        if (!initialized) throw new IllegalArgumentException("Not initialized");
+
+        StoredHash stored = connectionManager.query(getSelectHashStatement(), this::readStoredHash, 10000L, uid, System.currentTimeMillis());
+        Verification verification = verify(stored, password);
+        if (verification.rehash() != null) {
             try {
-                connectionManager.execute(connection, "UPDATE " + table + " SET hash=?,last_changed=?,expires=? WHERE uid=?", HashPBKDF2.hash(password, type.iterationCount), now, expiresAt, uid);
-            } catch (NoSuchAlgorithmException e) {
-                // unexpected, verified at creation.
-                throw new RuntimeException(e);
+                connectionManager.execute(getRehashStatement(), 10000L, verification.rehash(), type.iterationCount, uid, stored.hash());
+            } catch (SQLException | BusyException e) {
+                debugRehashFailure(uid, e);
             }
-        }, 10000L);
+        }
+        return verification.correct();
     }
 
-    public boolean testPassword(int uid, String password) throws SQLException, BusyException {
+    /**
+     * Tests the password of the given user. Only the hash is computed on the {@link #getHashingService() hashing service}, and the stored hash is read
+     * and rehashed with the {@link ConnectionManager} asynchronous methods.
+     *
+     * @return A future completed with whether the password is correct, or exceptionally with a {@link BusyException} if the hashing service is full
+     * @see #testPassword(int, String)
+     */
+    public CompletableFuture<Boolean> testPasswordAsync(int uid, String password) {
         if (!initialized) throw new IllegalArgumentException("Not initialized");
 
-        byte[] hash = connectionManager.query("SELECT hash FROM " + table + " WHERE uid=? AND (expires IS NULL OR expires<=0 OR expires>?)", rs -> {
-            if (!rs.next()) return null;
-            return connectionManager.getBlob(rs, 1);
-        }, 10000L, uid, System.currentTimeMillis());
-        if (hash == null || hash.length == 0) return false;
+        return connectionManager.queryAsync(getSelectHashStatement(), this::readStoredHash, 10000L, uid, System.currentTimeMillis())
+                .thenCompose(stored -> hashingService.submit(() -> verify(stored, password)).thenCompose(verification -> {
+                    if (verification.rehash() == null) return CompletableFuture.completedFuture(verification.correct());
+                    return connectionManager.executeAsync(getRehashStatement(), 10000L, verification.rehash(), type.iterationCount, uid, stored.hash()).handle((v, e) -> {
+                        if (e != null) debugRehashFailure(uid, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                        return true;
+                    });
+                }));
+    }
+
+    private void debugRehashFailure(int uid, Throwable e) {
+        connectionManager.debugIfEnabled("Failed to store rehashed password for " + uid + " in " + table + ": " + e);
+    }
 
+    private String getSelectHashStatement() {
+        return "SELECT hash,iterations FROM " + table + " WHERE uid=? AND (expires IS NULL OR expires<=0 OR expires>?)";
+    }
+
+    /**
+     * Only replaces the hash which was tested, in case the password changed meanwhile
+     */
+    private String getRehashStatement() {
+        return "UPDATE " + table + " SET hash=?,iterations=? WHERE uid=? AND hash=?";
+    }
+
+    private StoredHash readStoredHash(ResultSet rs) throws SQLException {
+        if (!rs.next()) return null;
+        int iterations = rs.getInt(2);
+        if (rs.wasNull()) iterations = type.iterationCount;
+        return new StoredHash(connectionManager.getBlob(rs, 1), iterations);
+    }
+
+    private Verification verify(@Nullable StoredHash stored, String password) {
+        if (stored == null || stored.hash() == null || stored.hash().length == 0) return new Verification(false, null);
         try {
-            return HashPBKDF2.test(hash, password, type.iterationCount);
+            if (!HashPBKDF2.test(stored.hash(), password, stored.iterations())) return new Verification(false, null);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+        return new Verification(true, stored.iterations() < type.iterationCount ? hash(password) : null);
+    }
+
+    /**
+     * @param rehash The password hashed with the current iteration count, if the stored hash used fewer
+     */
+    private record Verification(boolean correct, @Nullable byte[] rehash) {
+    }
+
+    private record StoredHash(byte[] hash, int iterations) {
     }
 
     public boolean contains(int uid) throws SQLException, BusyException {
@@ -116,11 +227,11 @@ public class SQLPasswordManager {
     }
 
     public Set<Integer> listUsers() throws SQLException, BusyException {
-        return connectionManager.query("SELECT uid FROM " + table, rs -> {
+        return new HashSet<>(connectionManager.applyResultSet("SELECT uid FROM " + table, rs -> {
             Set<Integer> out = new HashSet<>();
             while (rs.next()) out.add(rs.getInt(1));
-            return out;
-        }, 3000);
+            return Collections.unmodifiableSet(out);
+        }).cached().executeQuery(3000));
     }
 
     public long getLastChanged(int uid) throws SQLException, BusyException {
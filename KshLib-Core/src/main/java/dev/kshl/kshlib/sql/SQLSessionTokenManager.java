@@ -3,7 +3,6 @@ package dev.kshl.kshlib.sql;
 import dev.kshl.kshlib.crypto.CodeGenerator;
 import dev.kshl.kshlib.crypto.HashPBKDF2;
 import dev.kshl.kshlib.exceptions.BusyException;
-import dev.kshl.kshlib.misc.MapCache;
 import lombok.Getter;
 
 import javax.annotation.Nullable;
@@ -12,7 +11,6 @@ import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Deprecated
@@ -22,7 +20,7 @@ public class SQLSessionTokenManager {
     private static final int HASH_KEY_BYTES = 32;
     private final ConnectionManager connectionManager;
     private final String table;
-    private final MapCache<Integer, SessionToken> tokens = new MapCache<>(1, TimeUnit.MINUTES);
+    private final VerifiedSessionCache tokens;
     @Getter
     private final long sessionDuration;
     private final boolean ipSticky;
@@ -30,7 +28,15 @@ public class SQLSessionTokenManager {
     private long lastPurgedExpiredTokens;
 
     public SQLSessionTokenManager(ConnectionManager connectionManager, String table, long sessionDuration, boolean ipSticky) throws NoSuchAlgorithmException {
+        this(connectionManager, table, sessionDuration, ipSticky, new VerifiedSessionCache());
+    }
+
+    /**
+     * @param cache Remembers verified tokens, and may be shared with the other session token managers of the database
+     */
+    public SQLSessionTokenManager(ConnectionManager connectionManager, String table, long sessionDuration, boolean ipSticky, VerifiedSessionCache cache) throws NoSuchAlgorithmException {
         this.connectionManager = connectionManager;
+        this.tokens = Objects.requireNonNull(cache);
         this.table = ConnectionManager.validateTableName(table);
         this.sessionDuration = sessionDuration;
         this.ipSticky = ipSticky;
@@ -95,19 +101,11 @@ public class SQLSessionTokenManager {
         if (!initialized) throw new IllegalArgumentException("Not initialized");
         if (ipSticky && ip == null) throw new IllegalArgumentException("IP can not be null if ipSticky");
 
-        SessionToken cached;
-        synchronized (tokens) {
-            cached = tokens.get(token_id);
-        }
+        VerifiedSessionCache.Entry cached = tokens.get(table, token_id, System.currentTimeMillis());
         if (cached != null) {
-            if (System.currentTimeMillis() >= cached.expires()) {
-                synchronized (tokens) {
-                    tokens.remove(token_id);
-                }
-                return -1;
-            }
-            return cached.token().equals(token) && (!ipSticky || ip.equals(cached.ip())) ? cached.uid() : -1;
+            return cached.matches(token) && (!ipSticky || ip.equals(cached.ip())) ? cached.uid() : -1;
         }
+        final long generation = tokens.generation();
 
         try {
             connectionManager.execute(this::purgeExpiredTokens, 1000L);
@@ -134,9 +132,7 @@ public class SQLSessionTokenManager {
         } catch (NoSuchAlgorithmException e) {
             return -1; // Not expected, validated on instance creation
         }
-        synchronized (tokens) {
-            tokens.put(token_id, sessionToken);
-        }
+        tokens.put(table, token_id, sessionToken.uid(), sessionToken.expires(), sessionToken.ip(), token, generation);
         return sessionToken.uid();
     }
 
@@ -156,6 +152,7 @@ public class SQLSessionTokenManager {
             connectionManager.execute(this::purgeExpiredTokens, 1000L);
         } catch (BusyException ignored) {
         }
+        tokens.put(table, token_id, uid, expires, ipSticky ? ip : null, password, tokens.generation());
         return new SessionToken(uid, token_id, expires, ip, password);
     }
 
@@ -165,9 +162,7 @@ public class SQLSessionTokenManager {
 
         long time = System.currentTimeMillis();
         connectionManager.execute(connection, "DELETE FROM " + table + " WHERE expires<?", time);
-        synchronized (tokens) {
-            tokens.values().removeIf(token -> token.expires() < time);
-        }
+        tokens.purgeExpired(time);
     }
 
     public record SessionToken(int uid, int token_id, long expires, @Nullable String ip, String token) {
@@ -178,10 +173,18 @@ public class SQLSessionTokenManager {
     }
 
     public boolean remove(int uid) throws SQLException, BusyException {
-        return connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=?", 10000L, uid) > 0;
+        try {
+            return connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=?", 10000L, uid) > 0;
+        } finally {
+            tokens.invalidateUID(table, uid);
+        }
     }
 
     public boolean remove(int uid, int token_id) throws SQLException, BusyException {
-        return connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=? AND token_id=?", 10000L, uid, token_id) > 0;
+        try {
+            return connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=? AND token_id=?", 10000L, uid, token_id) > 0;
+        } finally {
+            tokens.invalidate(table, token_id);
+        }
     }
 }
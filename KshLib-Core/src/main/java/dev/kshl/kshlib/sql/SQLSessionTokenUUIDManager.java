@@ -2,7 +2,6 @@ package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.crypto.HashSHA256;
 import dev.kshl.kshlib.exceptions.BusyException;
-import dev.kshl.kshlib.misc.MapCache;
 import dev.kshl.kshlib.misc.Pair;
 import lombok.Getter;
 
@@ -15,10 +14,8 @@ import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Base64;
-import java.util.HashSet;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -30,14 +27,22 @@ public class SQLSessionTokenUUIDManager {
 
     private final ConnectionManager connectionManager;
     private final String table;
-    private final MapCache<UUID, SessionCache> tokens = new MapCache<>(1, TimeUnit.MINUTES);
+    private final VerifiedSessionCache tokens;
     @Getter
     private final long sessionDuration;
     private final boolean ipSticky;
     private boolean initialized;
 
     public SQLSessionTokenUUIDManager(ConnectionManager connectionManager, String table, long sessionDuration, boolean ipSticky) {
+        this(connectionManager, table, sessionDuration, ipSticky, new VerifiedSessionCache());
+    }
+
+    /**
+     * @param cache Remembers verified tokens, and may be shared with the other session token managers of the database
+     */
+    public SQLSessionTokenUUIDManager(ConnectionManager connectionManager, String table, long sessionDuration, boolean ipSticky, VerifiedSessionCache cache) {
         this.connectionManager = connectionManager;
+        this.tokens = Objects.requireNonNull(cache);
         this.table = ConnectionManager.validateTableName(table);
         this.sessionDuration = sessionDuration;
         this.ipSticky = ipSticky;
@@ -90,9 +95,8 @@ public class SQLSessionTokenUUIDManager {
                 if (!connectionManager.isConstraintViolation(e)) throw e;
                 continue;
             }
-            var token = new SessionToken(uid, id, expires, ip, secret);
-            tokens.put(id, token.toCache());
-            return token;
+            tokens.put(table, id, uid, expires, ip, secret, tokens.generation());
+            return new SessionToken(uid, id, expires, ip, secret);
         }
         throw new IllegalStateException("Failed to generate token after 10000 attempts. Buy a lottery ticket.");
     }
@@ -124,18 +128,14 @@ public class SQLSessionTokenUUIDManager {
         if (ipSticky && ip == null) throw new IllegalArgumentException("IP can not be null if ipSticky");
         if (!ipSticky && ip != null) throw new IllegalArgumentException("IP can not be provided if not ipSticky");
 
-        SessionCache cached = tokens.get(token_id);
+        VerifiedSessionCache.Entry cached = tokens.get(table, token_id, System.currentTimeMillis());
         if (cached != null) {
-            long time = System.currentTimeMillis();
-            if (time >= cached.expires()) {
-                tokens.remove(token_id);
-                return Optional.empty();
-            }
-            if (test(cached.hash(), token) && (!ipSticky || ip.equals(cached.ip()))) {
+            if (cached.matches(token) && (!ipSticky || ip.equals(cached.ip()))) {
                 return Optional.of(cached.uid());
             }
             return Optional.empty();
         }
+        final long generation = tokens.generation();
 
         SessionCache sessionCache = connectionManager.query("SELECT uid,token_hash,expires,ip FROM " + table + " WHERE token_id=? AND expires>?", rs -> {
             if (!rs.next()) return null;
@@ -155,7 +155,7 @@ public class SQLSessionTokenUUIDManager {
         if (!test(sessionCache.hash(), token)) {
             return Optional.empty();
         }
-        tokens.put(token_id, sessionCache);
+        tokens.put(table, token_id, sessionCache.uid(), sessionCache.expires(), sessionCache.ip(), token, generation);
         return Optional.of(sessionCache.uid());
     }
 
@@ -179,7 +179,7 @@ public class SQLSessionTokenUUIDManager {
             connectionManager.execute("DELETE FROM " + table + " WHERE expires<?", 500L, time);
         } catch (SQLException | BusyException ignored) {
         }
-        tokens.values().removeIf(token -> token.expires() < time);
+        tokens.purgeExpired(time);
     }
 
     public static Pair<UUID, String> parseToken(String combined) throws IllegalArgumentException {
@@ -208,23 +208,18 @@ public class SQLSessionTokenUUIDManager {
     }
 
     public void remove(int uid) throws SQLException, BusyException {
-        Set<UUID> toRemove = new HashSet<>();
-        connectionManager.execute(connection -> {
-            connectionManager.query(connection, "SELECT token_id FROM " + table + " WHERE uid=?", rs -> {
-                while (rs.next()) {
-                    try {
-                        toRemove.add(UUID.fromString(rs.getString(1)));
-                    } catch (IllegalArgumentException ignored) {
-                    }
-                }
-            }, uid);
-            connectionManager.execute(connection, "DELETE FROM " + table + " WHERE uid=?", uid);
-        }, 3000L);
-        toRemove.forEach(tokens::remove);
+        try {
+            connectionManager.execute("DELETE FROM " + table + " WHERE uid=?", 3000L, uid);
+        } finally {
+            tokens.invalidateUID(table, uid);
+        }
     }
 
     public void remove(int uid, UUID token_id) throws SQLException, BusyException {
-        connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=? AND token_id=?", 10000L, uid, token_id.toString());
-        tokens.remove(token_id);
+        try {
+            connectionManager.executeReturnRows("DELETE FROM " + table + " WHERE uid=? AND token_id=?", 10000L, uid, token_id.toString());
+        } finally {
+            tokens.invalidate(table, token_id);
+        }
     }
 }
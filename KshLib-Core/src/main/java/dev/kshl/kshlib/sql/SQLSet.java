@@ -14,12 +14,25 @@ import java.util.Collection;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public abstract class SQLSet<T> {
     private final ConnectionManager connectionManager;
     private final String table;
     private final String type;
     private final MapCache<T, Boolean> cache;
+    private double filterFalsePositiveRate;
+    private long filterMaxBytes;
+    @Nullable
+    private volatile CuckooFilter filter;
+    private final LongAdder filterSkips = new LongAdder();
+    private final LongAdder filterPasses = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+    /**
+     * Subscribed to the {@link ChangeFeed} by {@link #init(Connection)} rather than the constructor, so this is never published before it is constructed
+     */
+    private final Consumer<TableChange> changeSubscriber = this::onChange;
 
     private SQLSet(ConnectionManager connectionManager, String table, String type, boolean cache) {
         this.connectionManager = connectionManager;
@@ -28,10 +41,101 @@ public abstract class SQLSet<T> {
         this.cache = cache ? new MapCache<>(1, TimeUnit.HOURS) : null;
     }
 
+    /**
+     * Changes made through this set already update the cache and filter. Values are not keyed by rowid, so any other change clears the cache,
+     * and any other insert disables the filter since the values it added are not known.
+     */
+    private void onChange(TableChange change) {
+        if (change.source() == this) return;
+        if (cache != null) cache.clear();
+        if (change.type() != TableChange.Type.DELETE && filter != null) {
+            connectionManager.debugIfEnabled("Membership filter for " + table + " disabled by an insert made through another instance");
+            filter = null;
+        }
+    }
+
     public void init(Connection connection) throws SQLException {
+        connectionManager.getChangeFeed().subscribe(table, changeSubscriber);
         try (PreparedStatement preparedStatement = connection.prepareStatement("CREATE TABLE IF NOT EXISTS " + table + " (value " + type + " PRIMARY KEY)")) {
             preparedStatement.execute();
         }
+        if (filterFalsePositiveRate > 0) {
+            int rows = connectionManager.count(connection, table);
+            CuckooFilter filter = CuckooFilter.create(Math.max(1024, rows * 2L), filterFalsePositiveRate, filterMaxBytes);
+            boolean fits = connectionManager.query(connection, "SELECT value FROM " + table, rs -> {
+                while (rs.next()) {
+                    if (!filter.add(rs.getLong(1))) return false;
+                }
+                return true;
+            });
+            if (fits) {
+                this.filter = filter;
+            } else {
+                connectionManager.debugIfEnabled("Membership filter for " + table + " does not fit " + rows + " rows in " + filterMaxBytes + " bytes, disabled");
+            }
+        }
+    }
+
+    /**
+     * Keeps an in-memory cuckoo filter of the set's values, built during {@link #init(Connection)}, so lookups of values which are definitely not members skip
+     * the database. Must be called before initialization.
+     * <br>
+     * The filter is only kept accurate for changes made through this instance. Inserts made otherwise, which are published to the {@link ChangeFeed},
+     * disable it, so it should not be used if other processes write to the table.
+     * Removals made inside a transaction are not reflected in the filter (in case the transaction is rolled back), which only costs a query.
+     * If the filter fills up, it is disabled.
+     *
+     * @param falsePositiveRate The probability that a non-member still requires a query
+     * @param maxBytes          The maximum memory used by the filter
+     */
+    public void enableFilter(double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be > 0");
+        this.filterFalsePositiveRate = falsePositiveRate;
+        this.filterMaxBytes = maxBytes;
+    }
+
+    public boolean isFilterEnabled() {
+        return filter != null;
+    }
+
+    /**
+     * @return The number of lookups answered by the filter without a query
+     */
+    public long getFilterSkips() {
+        return filterSkips.sum();
+    }
+
+    /**
+     * @return The number of lookups the filter could not rule out, and so were queried
+     */
+    public long getFilterPasses() {
+        return filterPasses.sum();
+    }
+
+    /**
+     * @return The number of lookups the filter could not rule out, but which were not members
+     */
+    public long getFilterFalsePositives() {
+        return filterFalsePositives.sum();
+    }
+
+    public long getFilterMemoryBytes() {
+        CuckooFilter filter = this.filter;
+        return filter == null ? 0 : filter.getMemoryBytes();
+    }
+
+    private long toFilterKey(T value) {
+        if (value instanceof Number number) return number.longValue();
+        return value.hashCode();
+    }
+
+    private void addToFilter(T value) {
+        CuckooFilter filter = this.filter;
+        if (filter != null && !filter.add(toFilterKey(value))) {
+            connectionManager.debugIfEnabled("Membership filter for " + table + " is full, disabled");
+            this.filter = null;
+        }
     }
 
     @Nullable
@@ -41,53 +145,103 @@ public abstract class SQLSet<T> {
     }
 
     public boolean contains(T value) throws SQLException, BusyException {
-        return connectionManager.apply(connection -> contains(connection, value)).readOnly().executeQuery(3000L);
+        // Answered before borrowing a Connection, so it can not wait for one
+        Boolean known = containsWithoutQuery(value);
+        if (known != null) return known;
+        return connectionManager.apply(connection -> query(connection, value)).readOnly().executeQuery(3000L);
     }
 
     public boolean contains(Connection connection, T value) throws SQLException {
+        Boolean known = containsWithoutQuery(value);
+        if (known != null) return known;
+        return query(connection, value);
+    }
+
+    /**
+     * @return Whether the value is a member according to the cache or filter, or null if it must be queried
+     */
+    @Nullable
+    private Boolean containsWithoutQuery(T value) {
         var cached = getCached(value);
         if (cached != null) return cached;
-        boolean contains = connectionManager.query(connection, "SELECT * FROM " + table + " WHERE value=?", ResultSet::next, value);
+        CuckooFilter filter = this.filter;
+        if (filter != null) {
+            if (!filter.mightContain(toFilterKey(value))) {
+                filterSkips.increment();
+                return false;
+            }
+            filterPasses.increment();
+        }
+        return null;
+    }
+
+    private boolean query(Connection connection, T value) throws SQLException {
+        boolean contains = connectionManager.query(connection, "SELECT 1 FROM " + table + " WHERE value=?", ResultSet::next, value);
+        if (filter != null && !contains) filterFalsePositives.increment();
         cache(value, contains);
         return contains;
     }
 
     public boolean add(T value) throws SQLException, BusyException {
-        return connectionManager.execute((ConnectionFunction<Boolean>) connection -> add(connection, value), 3000L);
+        return connectionManager.executeTransaction((ConnectionFunction<Boolean>) connection -> add(connection, value), 3000L, connectionManager.getRetryPolicy());
     }
 
     public boolean add(Connection connection, T value) throws SQLException {
         if (getCached(value) == Boolean.TRUE) return false;
-        boolean added = connectionManager.executeReturnRows(connection, connectionManager.getInsertOrIgnore() + " INTO " + table + " (value) VALUES (?)", value) > 0;
+        // Added to the filter first so the value is never missing from it while present in the table
+        addToFilter(value);
+        boolean added = connectionManager.getChangeFeed().changeAs(this, () ->
+                connectionManager.executeReturnRows(connection, connectionManager.getInsertOrIgnore() + " INTO " + table + " (value) VALUES (?)", value) > 0);
+        if (!added) removeFromFilter(value); // Already present, so already had a fingerprint
         cache(value, true);
         return added;
     }
 
     public boolean remove(T value) throws SQLException, BusyException {
-        return connectionManager.execute((ConnectionFunction<Boolean>) connection -> remove(connection, value), 3000L);
+        if (getCached(value) == Boolean.FALSE) return false;
+        boolean change = connectionManager.executeTransaction((ConnectionFunction<Boolean>) connection -> delete(connection, value), 3000L, connectionManager.getRetryPolicy());
+        if (change) removeFromFilter(value);
+        cache(value, false);
+        return change;
     }
 
     public boolean remove(Connection connection, T value) throws SQLException {
         if (getCached(value) == Boolean.FALSE) return false;
-        boolean change = connectionManager.executeReturnRows(connection, "DELETE FROM " + table + " WHERE value=?", value) > 0;
+        boolean change = delete(connection, value);
+        if (change && connection.getAutoCommit()) removeFromFilter(value);
         cache(value, false);
         return change;
     }
 
+    private boolean delete(Connection connection, T value) throws SQLException {
+        return connectionManager.getChangeFeed().changeAs(this, () ->
+                connectionManager.executeReturnRows(connection, "DELETE FROM " + table + " WHERE value=?", value) > 0);
+    }
+
     public void addAll(Collection<T> values) throws SQLException, BusyException {
-        connectionManager.execute((ConnectionConsumer) connection -> addAll(connection, values), 3000L);
+        connectionManager.executeTransaction((ConnectionConsumer) connection -> addAll(connection, values), 3000L, connectionManager.getRetryPolicy());
     }
 
     public void removeAll(Collection<T> values) throws SQLException, BusyException {
-        connectionManager.execute((ConnectionConsumer) connection -> removeAll(connection, values), 3000L);
+        connectionManager.executeTransaction((ConnectionConsumer) connection -> removeAll(connection, values), 3000L, connectionManager.getRetryPolicy());
     }
 
+    /**
+     * Values already in the set are left in the filter twice, which only costs filter space.
+     */
     public void addAll(Connection connection, Collection<T> values) throws SQLException {
-        connectionManager.executeBatch(connection, "INSERT OR IGNORE INTO " + table + " (value) VALUES (?)", values, List::of);
+        values.forEach(this::addToFilter);
+        connectionManager.getChangeFeed().changeAs(this, () ->
+                connectionManager.executeBatch(connection, connectionManager.getInsertOrIgnore() + " INTO " + table + " (value) VALUES (?)", values, List::of));
     }
 
     public void removeAll(Connection connection, Collection<T> values) throws SQLException {
-        connectionManager.executeBatch(connection, "DELETE FROM " + table + " WHERE value=?", values, List::of);
+        connectionManager.getChangeFeed().changeAs(this, () -> connectionManager.executeBatch(connection, "DELETE FROM " + table + " WHERE value=?", values, List::of));
+    }
+
+    private void removeFromFilter(T value) {
+        CuckooFilter filter = this.filter;
+        if (filter != null) filter.remove(toFilterKey(value));
     }
 
     private void cache(T value, boolean state) {
@@ -95,6 +249,14 @@ public abstract class SQLSet<T> {
         cache.put(value, state);
     }
 
+    /**
+     * Unsubscribes from changes to the table, so this set can be garbage collected while the {@link ConnectionManager} is still open.
+     * Its cache is no longer invalidated by changes made elsewhere, so it should not be used afterwards.
+     */
+    public void close() {
+        connectionManager.getChangeFeed().unsubscribe(table, changeSubscriber);
+    }
+
     public String getTableName() {
         return table;
     }
@@ -124,6 +286,17 @@ public abstract class SQLSet<T> {
             set.init(connection);
         }
 
+        /**
+         * @see SQLSet#enableFilter(double, long)
+         */
+        public void enableFilter(double falsePositiveRate, long maxBytes) {
+            set.enableFilter(falsePositiveRate, maxBytes);
+        }
+
+        public boolean isFilterEnabled() {
+            return set.isFilterEnabled();
+        }
+
         public boolean contains(U value) throws SQLException, BusyException {
             try {
                 return set.contains(sqlidManager.getIDOpt(value, false).orElseThrow());
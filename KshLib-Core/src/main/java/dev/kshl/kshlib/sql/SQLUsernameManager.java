@@ -1,19 +1,22 @@
 package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
 import dev.kshl.kshlib.misc.MapCache;
 import dev.kshl.kshlib.misc.Pair;
-import dev.kshl.kshlib.misc.TreeSetString;
+import dev.kshl.kshlib.misc.RadixTrieString;
 import dev.kshl.kshlib.misc.snowflake.SnowflakeOrdered;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class SQLUsernameManager implements ISQLManager {
@@ -23,8 +26,12 @@ public class SQLUsernameManager implements ISQLManager {
     private final MapCache<Integer, String> cacheUIDToUsername = new MapCache<>(1, TimeUnit.HOURS);
     private final MapCache<String, Integer> cacheUsernameToUID = new MapCache<>(1, TimeUnit.HOURS);
     private final SnowflakeOrdered snowflakeOrdered = new SnowflakeOrdered();
-    private final TreeSetString recentUsernames = new TreeSetString.CaseInsensitive();
-    private boolean recentUsernamesInitialized;
+    private final RadixTrieString recentUsernames = new RadixTrieString();
+    private volatile boolean recentUsernamesInitialized;
+    /**
+     * Subscribed to the {@link ChangeFeed} by {@link #init(Connection)} rather than the constructor, so this is never published before it is constructed
+     */
+    private final Consumer<TableChange> changeSubscriber = this::onChange;
 
     public SQLUsernameManager(ConnectionManager sql, String table) {
         validateTableName(table);
@@ -33,11 +40,22 @@ public class SQLUsernameManager implements ISQLManager {
         this.table = ConnectionManager.validateTableName(table);
     }
 
+    /**
+     * Changes made through this manager already update the caches. Rows are not keyed by rowid, so any other change clears them.
+     * Recent usernames are left as they are, since they are only suggestions.
+     */
+    private void onChange(TableChange change) {
+        if (change.source() == this) return;
+        cacheUIDToUsername.clear();
+        cacheUsernameToUID.clear();
+    }
+
     public void init(Connection connection) throws SQLException {
         init(connection, true);
     }
 
     void init(Connection connection, boolean index) throws SQLException {
+        sql.getChangeFeed().subscribe(table, changeSubscriber);
         sql.executeTransaction(connection, () -> {
             boolean tableAlreadyExists = sql.tableExists(connection, table);
             boolean needsMigration = tableAlreadyExists && !sql.uniqueConstraintExists(connection, table, "uid", "username");
@@ -84,25 +102,35 @@ public class SQLUsernameManager implements ISQLManager {
         });
     }
 
+    /**
+     * Unsubscribes from changes to the table, so this manager can be garbage collected while the {@link ConnectionManager} is still open.
+     * Its cache is no longer invalidated by changes made elsewhere, so it should not be used afterwards.
+     */
+    public void close() {
+        sql.getChangeFeed().unsubscribe(table, changeSubscriber);
+    }
+
     public void updateUsername(int uid, String username) throws SQLException, BusyException {
         Objects.requireNonNull(username, "Username must not be null");
         if (uid <= 0) throw new IllegalArgumentException("UID must be > 0");
 
         String stored = getUsername(uid).orElse(null);
         long now = snowflakeOrdered.getNextSnowflake();
+        String upsert;
         if (sql.isMySQL()) {
-            sql.execute(String.format("""
+            upsert = String.format("""
                     INSERT INTO %s (time, uid, username)
                     VALUES (?, ?, ?)
                     ON DUPLICATE KEY UPDATE time = VALUES(time)
-                    """, table), 3000L, now, uid, username);
+                    """, table);
         } else {
-            sql.execute(String.format("""
+            upsert = String.format("""
                     INSERT INTO %s (time, uid, username)
                     VALUES (?, ?, ?)
                     ON CONFLICT(uid, username) DO UPDATE SET time = excluded.time
-                    """, table), 3000L, now, uid, username);
+                    """, table);
         }
+        sql.execute((ConnectionConsumer) connection -> sql.getChangeFeed().changeAs(this, () -> sql.execute(connection, upsert, now, uid, username)), 3000L);
 
         if (stored != null && !stored.equals(username)) {
             recentUsernames.remove(stored);
@@ -110,6 +138,7 @@ public class SQLUsernameManager implements ISQLManager {
         cacheUIDToUsername.remove(uid);
         cacheUsernameToUID.remove(username.toLowerCase());
         cache(uid, username);
+        recentUsernames.put(username, now);
     }
 
     void cache(Integer uid, String username) {
@@ -120,9 +149,7 @@ public class SQLUsernameManager implements ISQLManager {
             cacheUsernameToUID.put(username.toLowerCase(), uid);
         }
         if (username == null) return;
-        synchronized (recentUsernames) {
-            recentUsernames.add(username);
-        }
+        recentUsernames.putIfAbsent(username, 0L);
     }
 
     public Optional<String> getUsername(int uid) throws SQLException, BusyException {
@@ -141,9 +168,9 @@ public class SQLUsernameManager implements ISQLManager {
     }
 
     /**
-     * Populates a TreeSet with recent usernames so it may be queried for command prefix uses
+     * Populates a radix trie with the most recent usernames so it may be queried for command prefix uses
      *
-     * @param limit The limit to retrieve from the database. It can grow larger than this as new usernames are added during runtime. 5,000 is a good starting point, this will use around 450KB of memory, so it's not insignificant.
+     * @param limit The limit to retrieve from the database. It can grow larger than this as new usernames are added during runtime. Uses roughly 100 bytes per username, most of it the String itself, so 100,000 is around 10MB.
      */
     public void populateRecentUsernames(Connection connection, int limit) throws SQLException {
         synchronized (recentUsernames) {
@@ -151,7 +178,7 @@ public class SQLUsernameManager implements ISQLManager {
                 throw new IllegalStateException("recentUsernames already initialized");
             }
             sql.query(connection, String.format("""
-                    SELECT t.username
+                    SELECT t.username, t.time
                     FROM %s AS t
                     JOIN (
                         SELECT uid, MAX(time) AS max_time
@@ -159,33 +186,43 @@ public class SQLUsernameManager implements ISQLManager {
                         GROUP BY uid
                     ) m
                         ON m.uid = t.uid AND m.max_time = t.time
+                    ORDER BY t.time DESC
                     LIMIT ?;
                     """, table, table), rs -> {
                 while (rs.next()) {
                     String name = rs.getString(1);
                     if (name == null) continue;
-                    recentUsernames.add(name);
+                    recentUsernames.put(name, rs.getLong(2));
                 }
             }, limit);
             recentUsernamesInitialized = true;
         }
     }
 
+    /**
+     * @return Every recent username starting with the prefix, ignoring case, in case-insensitive order
+     */
     public Set<String> getRecentUsernamesStartingWith(String prefix) {
-        synchronized (recentUsernames) {
-            if (!recentUsernamesInitialized) {
-                throw new IllegalStateException("recentUsernames not initialized. Call populateRecentUsernames first.");
-            }
-            return Collections.unmodifiableSet(recentUsernames.getSubList(prefix));
-        }
+        checkRecentUsernamesInitialized();
+        return Collections.unmodifiableSet(recentUsernames.getStartingWith(prefix));
+    }
+
+    /**
+     * @return Up to limit recent usernames starting with the prefix, ignoring case, most recently used first
+     */
+    public List<String> getMostRecentUsernamesStartingWith(String prefix, int limit) {
+        checkRecentUsernamesInitialized();
+        return Collections.unmodifiableList(recentUsernames.getMostRecentStartingWith(prefix, limit));
     }
 
     public int getRecentUsernamesSize() {
-        synchronized (recentUsernames) {
-            if (!recentUsernamesInitialized) {
-                throw new IllegalStateException("recentUsernames not initialized. Call populateRecentUsernames first.");
-            }
-            return recentUsernames.size();
+        checkRecentUsernamesInitialized();
+        return recentUsernames.size();
+    }
+
+    private void checkRecentUsernamesInitialized() {
+        if (!recentUsernamesInitialized) {
+            throw new IllegalStateException("recentUsernames not initialized. Call populateRecentUsernames first.");
         }
     }
 
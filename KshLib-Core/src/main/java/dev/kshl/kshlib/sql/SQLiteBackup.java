@@ -0,0 +1,69 @@
+package dev.kshl.kshlib.sql;
+
+import lombok.Getter;
+
+import javax.annotation.Nullable;
+
+/**
+ * Options for copying a SQLite database while it remains in use, see {@link ConnectionManager#backup(java.io.File, SQLiteBackup)}.
+ * <br>
+ * The copy is made with SQLite's backup API from a separate Connection, a number of pages at a time. In WAL mode that Connection holds one read transaction
+ * for the whole copy, so the backup is a consistent snapshot and writers are never blocked. In other journal modes each step briefly blocks commits,
+ * and a commit between steps restarts the copy.
+ */
+@Getter
+public class SQLiteBackup {
+    private int pagesPerStep = 1024;
+    /**
+     * How long to pause between steps, to leave disk bandwidth for the live database
+     */
+    private long pauseMillis;
+    /**
+     * Whether the backup is written as gzip. The database is first copied uncompressed to a temporary file beside the destination, which is then
+     * compressed, so this needs free space for the full uncompressed copy as well.
+     */
+    private boolean compress;
+    @Nullable
+    private ProgressListener progressListener;
+
+    public SQLiteBackup pagesPerStep(int pagesPerStep) {
+        if (pagesPerStep <= 0) throw new IllegalArgumentException("pagesPerStep must be greater than 0");
+        this.pagesPerStep = pagesPerStep;
+        return this;
+    }
+
+    public SQLiteBackup pauseMillis(long pauseMillis) {
+        if (pauseMillis < 0) throw new IllegalArgumentException("pauseMillis must not be negative");
+        this.pauseMillis = pauseMillis;
+        return this;
+    }
+
+    public SQLiteBackup compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * Called on the backing up thread after each step, and after each block compressed
+     */
+    public SQLiteBackup progress(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public enum Stage {
+        /**
+         * Counted in pages
+         */
+        COPY,
+        /**
+         * Counted in bytes of the uncompressed copy
+         */
+        COMPRESS
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void progress(Stage stage, long done, long total);
+    }
+}
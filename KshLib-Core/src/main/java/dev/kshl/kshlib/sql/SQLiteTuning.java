@@ -0,0 +1,150 @@
+package dev.kshl.kshlib.sql;
+
+import lombok.Getter;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
+
+import javax.annotation.Nullable;
+
+/**
+ * The read pool size, pragmas, and WAL checkpointing of a {@link ConnectionPoolSQLite}.
+ * Pragmas left null are not set, so SQLite's defaults apply. By default there are 4 read Connections, WAL, synchronous NORMAL, and a 5 second busy timeout.
+ * <br>
+ * Changes made after the pool is created have no effect on it.
+ */
+@Getter
+public class SQLiteTuning {
+    private int minReadConnections = 4;
+    private int maxReadConnections = 4;
+    /**
+     * How often an adaptive read pool is resized
+     */
+    private long adaptIntervalMillis = 5000L;
+    /**
+     * The mean time a read waits for a Connection over one interval above which an adaptive read pool grows
+     */
+    private double adaptGrowWaitMillis = 1;
+    private SQLiteConfig.JournalMode journalMode = SQLiteConfig.JournalMode.WAL;
+    private SQLiteConfig.SynchronousMode synchronous = SQLiteConfig.SynchronousMode.NORMAL;
+    private int busyTimeoutMillis = 5000;
+    @Nullable
+    private Integer cacheSizeKiB;
+    @Nullable
+    private Long mmapSizeBytes;
+    @Nullable
+    private SQLiteConfig.TempStore tempStore;
+    @Nullable
+    private Integer walAutoCheckpointPages;
+    /**
+     * How often a passive WAL checkpoint is run, or 0 to leave checkpoints to SQLite
+     */
+    private long checkpointIntervalMillis;
+
+    /**
+     * Uses a fixed number of read Connections
+     */
+    public SQLiteTuning readConnections(int readConnections) {
+        return adaptiveReadConnections(readConnections, readConnections);
+    }
+
+    /**
+     * Starts with the minimum number of read Connections, adding one each interval in which reads waited for a Connection,
+     * and closing one each interval in which at least two were never in use at once.
+     */
+    public SQLiteTuning adaptiveReadConnections(int min, int max) {
+        if (min <= 0) throw new IllegalArgumentException("min must be greater than 0");
+        if (max < min) throw new IllegalArgumentException("max must be at least min");
+        this.minReadConnections = min;
+        this.maxReadConnections = max;
+        return this;
+    }
+
+    public SQLiteTuning adaptInterval(long millis, double growWaitMillis) {
+        if (millis <= 0) throw new IllegalArgumentException("millis must be greater than 0");
+        if (growWaitMillis < 0) throw new IllegalArgumentException("growWaitMillis must not be negative");
+        this.adaptIntervalMillis = millis;
+        this.adaptGrowWaitMillis = growWaitMillis;
+        return this;
+    }
+
+    public SQLiteTuning journalMode(SQLiteConfig.JournalMode journalMode) {
+        this.journalMode = journalMode;
+        return this;
+    }
+
+    public SQLiteTuning synchronous(SQLiteConfig.SynchronousMode synchronous) {
+        this.synchronous = synchronous;
+        return this;
+    }
+
+    public SQLiteTuning busyTimeout(int millis) {
+        if (millis < 0) throw new IllegalArgumentException("millis must not be negative");
+        this.busyTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the page cache of each Connection, so the total is roughly this multiplied by the number of Connections
+     */
+    public SQLiteTuning cacheSizeKiB(@Nullable Integer kib) {
+        if (kib != null && kib < 0) throw new IllegalArgumentException("kib must not be negative");
+        this.cacheSizeKiB = kib;
+        return this;
+    }
+
+    /**
+     * Memory maps up to this many bytes of the database file, shared between Connections. 0 disables memory mapping.
+     */
+    public SQLiteTuning mmapSize(@Nullable Long bytes) {
+        if (bytes != null && bytes < 0) throw new IllegalArgumentException("bytes must not be negative");
+        this.mmapSizeBytes = bytes;
+        return this;
+    }
+
+    public SQLiteTuning tempStore(@Nullable SQLiteConfig.TempStore tempStore) {
+        this.tempStore = tempStore;
+        return this;
+    }
+
+    /**
+     * The WAL size in pages after which a commit runs a checkpoint itself. 0 disables automatic checkpoints.
+     */
+    public SQLiteTuning walAutoCheckpoint(@Nullable Integer pages) {
+        if (pages != null && pages < 0) throw new IllegalArgumentException("pages must not be negative");
+        this.walAutoCheckpointPages = pages;
+        return this;
+    }
+
+    /**
+     * Runs a passive checkpoint on a separate Connection at this interval, which copies as much of the WAL into the database as it can
+     * without waiting for readers or writers. Combined with {@link #walAutoCheckpoint(Integer)} 0, commits never pay for a checkpoint.
+     */
+    public SQLiteTuning checkpointInterval(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("millis must not be negative");
+        this.checkpointIntervalMillis = millis;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return maxReadConnections > minReadConnections;
+    }
+
+    SQLiteConfig createConfig(boolean readOnly) {
+        SQLiteConfig config = new SQLiteConfig();
+        if (readOnly) {
+            config.setReadOnly(true);
+            config.enableLoadExtension(false);
+            config.setOpenMode(SQLiteOpenMode.FULLMUTEX);
+            config.setPragma(SQLiteConfig.Pragma.JDBC_EXPLICIT_READONLY, "ON");
+        } else {
+            config.setJournalMode(journalMode);
+            config.setSynchronous(synchronous);
+        }
+        config.setBusyTimeout(busyTimeoutMillis);
+        config.setPragma(SQLiteConfig.Pragma.FOREIGN_KEYS, "ON");
+        if (cacheSizeKiB != null) config.setCacheSize(-cacheSizeKiB); // Negative sizes are in KiB rather than pages
+        if (mmapSizeBytes != null) config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(mmapSizeBytes));
+        if (tempStore != null) config.setTempStore(tempStore);
+        return config;
+    }
+}
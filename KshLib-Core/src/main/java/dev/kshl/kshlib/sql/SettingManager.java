@@ -5,27 +5,61 @@ import dev.kshl.kshlib.function.ConnectionConsumer;
 import dev.kshl.kshlib.function.ConnectionFunction;
 import dev.kshl.kshlib.function.ResultSetFunction;
 import dev.kshl.kshlib.misc.MapCache;
-import dev.kshl.kshlib.misc.Pair;
 import lombok.Getter;
 
+import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public abstract class SettingManager<T> {
+    static final int MAX_FLUSH_ATTEMPTS = 5;
+    private static final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "KshLib-SettingManager-Flush");
+        t.setDaemon(true);
+        return t;
+    });
+
     final ConnectionManager sql;
     private final String table;
-    final MapCache<Pair<Integer, Integer>, T> cache = new MapCache<>(1, TimeUnit.HOURS);
+    /**
+     * Keyed by {@link #key(int, int)}
+     */
+    final MapCache<Long, T> cache = new MapCache<>(1, TimeUnit.HOURS);
+    /**
+     * Values set in write-behind mode which have not been written yet, keyed by {@link #key(int, int)}. Only the latest value per key is kept.
+     */
+    private final Map<Long, Pending<T>> pending = new ConcurrentHashMap<>();
+    /**
+     * Uids whose stored settings were all cached by {@link #loadAll(Connection, int)}, so a setting missing from the cache is at its default.
+     * Never touched, so it expires no later than the cached values.
+     */
+    final MapCache<Integer, Boolean> loaded = new MapCache<>(1, TimeUnit.HOURS);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile long writeBehindMillis;
+    @Nullable
+    private volatile Throwable lastFlushError;
     private final T def;
     private final String sqlType;
     private final ResultSetFunction<T> retrievalFunction;
     @Getter
     private final boolean multiple;
     private boolean initDone;
+    /**
+     * Subscribed to the {@link ChangeFeed} by {@link #init(Connection)} rather than the constructor, so this is never published before it is constructed
+     */
+    private final Consumer<TableChange> changeSubscriber = this::onChange;
 
     SettingManager(ConnectionManager sql, String table, T def, String sqlType, ResultSetFunction<T> retrievalFunction, boolean multiple) {
         this.def = def;
@@ -37,8 +71,16 @@ public abstract class SettingManager<T> {
         this.table = ConnectionManager.validateTableName(table);
     }
 
+    /**
+     * Changes made through this manager already update the cache. Rows are not keyed by rowid, so any other change clears it.
+     */
+    private void onChange(TableChange change) {
+        if (change.source() != this) clearCache();
+    }
+
     public void init(Connection connection) throws SQLException {
         if (initDone) throw new IllegalStateException("Initialization is already complete.");
+        sql.getChangeFeed().subscribe(table, changeSubscriber);
 
         sql.executeTransaction(connection, () -> {
             boolean needsMigrated = sql.tableExists(connection, table) && !sql.columnExists(connection, table, "setting");
@@ -73,11 +115,21 @@ public abstract class SettingManager<T> {
     }
 
     public void set(int uid, T value) throws SQLException, BusyException, IllegalArgumentException {
-        sql.execute((ConnectionConsumer) connection -> set(connection, uid, value), 3000L);
+        set(uid, 0, value);
     }
 
     public void set(int uid, int setting, T value) throws SQLException, BusyException, IllegalArgumentException {
-        sql.execute((ConnectionConsumer) connection -> set(connection, uid, setting, value), 3000L);
+        if (writeBehindMillis > 0) {
+            if (!initDone) throw new IllegalStateException("Initialization is not complete.");
+            validateSettingID(setting);
+            validate(value);
+            long key = key(uid, setting);
+            pending.put(key, new Pending<>(value));
+            cache.put(key, value);
+            scheduleFlush(writeBehindMillis);
+            return;
+        }
+        sql.executeTransaction((ConnectionConsumer) connection -> set(connection, uid, setting, value), 3000L, sql.getRetryPolicy());
     }
 
     public void set(Connection connection, int uid, T value) throws SQLException, IllegalArgumentException {
@@ -89,8 +141,15 @@ public abstract class SettingManager<T> {
         validateSettingID(setting);
         validate(value);
 
+        long key = key(uid, setting);
+        pending.remove(key);
+        write(connection, uid, setting, value);
+        cache.put(key, value);
+    }
+
+    void write(Connection connection, int uid, int setting, T value) throws SQLException {
         if (Objects.equals(value, def)) {
-            sql.execute(connection, "DELETE FROM " + table + " WHERE uid=? AND setting=?", uid, setting);
+            sql.getChangeFeed().changeAs(this, () -> sql.execute(connection, "DELETE FROM " + table + " WHERE uid=? AND setting=?", uid, setting));
         } else {
             String statement = "INSERT INTO " + table + " (uid, setting, value) VALUES (?,?,?) ";
 
@@ -99,9 +158,153 @@ public abstract class SettingManager<T> {
             } else {
                 statement += "ON CONFLICT(uid, setting) DO UPDATE SET value = excluded.value";
             }
-            sql.execute(connection, statement, uid, setting, value);
+            final String upsert = statement;
+            sql.getChangeFeed().changeAs(this, () -> sql.execute(connection, upsert, uid, setting, value));
+        }
+    }
+
+    /**
+     * Enables write-behind mode, in which {@link #set(int, int, Object)} updates the cache immediately and defers the write.
+     * Repeated sets of the same uid and setting within the interval are collapsed into a single write of the latest value.
+     * Writes are submitted with {@link ConnectionManager#submitWrite(ConnectionConsumer)} and are lost if the process exits before then,
+     * so call {@link #flush()} before shutting down.
+     * <br>
+     * Sets which take a Connection are always written immediately, and replace any deferred value of the same setting.
+     * A background write which fails {@value #MAX_FLUSH_ATTEMPTS} times is dropped, see {@link #getLastFlushError()}.
+     *
+     * @param flushIntervalMillis How long to hold writes before flushing them, or 0 to write immediately
+     */
+    public void setWriteBehind(long flushIntervalMillis) {
+        if (flushIntervalMillis < 0) throw new IllegalArgumentException("flushIntervalMillis must be >= 0");
+        this.writeBehindMillis = flushIntervalMillis;
+    }
+
+    /**
+     * @return The number of deferred writes which have not been flushed
+     */
+    public int getPendingWrites() {
+        return pending.size();
+    }
+
+    /**
+     * @return The error of the last background write of deferred values, or null if it succeeded
+     */
+    @Nullable
+    public Throwable getLastFlushError() {
+        return lastFlushError;
+    }
+
+    /**
+     * Writes all deferred values now, in one transaction, retried under the {@link ConnectionManager#getRetryPolicy() retry policy}
+     */
+    public void flush() throws SQLException, BusyException {
+        List<Map.Entry<Long, Pending<T>>> entries = pendingEntries();
+        if (entries.isEmpty()) return;
+        sql.executeTransaction((ConnectionConsumer) connection -> writeAll(connection, entries), 3000L, sql.getRetryPolicy());
+        entries.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Writes all deferred values now, in one transaction on the provided Connection. Not retried, since the Connection would be held while waiting.
+     */
+    public void flush(Connection connection) throws SQLException {
+        List<Map.Entry<Long, Pending<T>>> entries = pendingEntries();
+        if (entries.isEmpty()) return;
+        sql.executeTransaction(connection, () -> writeAll(connection, entries));
+        entries.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+    }
+
+    private List<Map.Entry<Long, Pending<T>>> pendingEntries() {
+        List<Map.Entry<Long, Pending<T>>> entries = new ArrayList<>();
+        pending.forEach((key, value) -> entries.add(Map.entry(key, value)));
+        return entries;
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.schedule(this::flushAsync, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushAsync() {
+        flushScheduled.set(false);
+        // Values stay pending until written, so they are still found by get, and one replaced in the meantime can be told apart by identity
+        List<Map.Entry<Long, Pending<T>>> entries = new ArrayList<>();
+        pending.forEach((key, value) -> {
+            if (value.claimed.compareAndSet(false, true)) entries.add(Map.entry(key, value));
+        });
+        if (entries.isEmpty()) return;
+        CompletableFuture<Void> future;
+        try {
+            future = sql.submitWrite(connection -> writeAll(connection, entries));
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((v, e) -> {
+            if (e == null) {
+                lastFlushError = null;
+                entries.forEach(entry -> pending.remove(entry.getKey(), entry.getValue()));
+            } else {
+                flushFailed(entries, e);
+            }
+        });
+    }
+
+    private void flushFailed(List<Map.Entry<Long, Pending<T>>> entries, Throwable e) {
+        lastFlushError = e;
+        int dropped = 0;
+        int failures = 0;
+        for (Map.Entry<Long, Pending<T>> entry : entries) {
+            Pending<T> value = entry.getValue();
+            if (++value.failures < MAX_FLUSH_ATTEMPTS) {
+                failures = Math.max(failures, value.failures);
+                value.claimed.set(false);
+            } else if (pending.remove(entry.getKey(), value)) {
+                // The cached value was never stored
+                cache.remove(entry.getKey());
+                loaded.remove(uid(entry.getKey()));
+                dropped++;
+            }
+        }
+        if (sql.isDebug()) {
+            sql.debug("Failed to write " + entries.size() + " deferred settings to " + table + ", dropped " + dropped + ": " + e);
+        }
+        if (failures > 0 && !sql.isClosed()) {
+            scheduleFlush(Math.max(writeBehindMillis, 100L) * failures);
         }
-        cache.put(new Pair<>(uid, setting), value);
+    }
+
+    /**
+     * Removes the deferred value of a single setting, if there is one, to be written by the caller or passed back to {@link #requeue(long, Pending)}
+     */
+    @Nullable
+    Pending<T> takePending(long key) {
+        return pending.remove(key);
+    }
+
+    void requeue(long key, Pending<T> value) {
+        // A newer value set in the meantime takes precedence. A copy, as a background write may still hold the original.
+        if (pending.putIfAbsent(key, new Pending<>(value.value())) == null) scheduleFlush(writeBehindMillis);
+    }
+
+    private void writeAll(Connection connection, List<Map.Entry<Long, Pending<T>>> entries) throws SQLException {
+        for (Map.Entry<Long, Pending<T>> entry : entries) {
+            // Replaced or written by a later set since it was taken
+            if (pending.get(entry.getKey()) != entry.getValue()) continue;
+            write(connection, uid(entry.getKey()), setting(entry.getKey()), entry.getValue().value());
+        }
+    }
+
+    static long key(int uid, int setting) {
+        return ((long) uid << 32) | (setting & 0xFFFFFFFFL);
+    }
+
+    private static int uid(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int setting(long key) {
+        return (int) key;
     }
 
     public void validate(T value) throws IllegalArgumentException {
@@ -119,9 +322,12 @@ public abstract class SettingManager<T> {
         if (!initDone) throw new IllegalStateException("Initialization is not complete.");
         validateSettingID(setting);
 
-        Pair<Integer, Integer> key = new Pair<>(uid, setting);
+        long key = key(uid, setting);
         T val = cache.get(key);
         if (val != null) return val;
+        Pending<T> pendingValue = pending.get(key);
+        if (pendingValue != null) return pendingValue.value();
+        if (loaded.containsKey(uid, false)) return def;
 
         val = sql.query(connection, "SELECT value FROM " + table + " WHERE uid=? AND setting=?", rs -> {
             if (!rs.next()) return def;
@@ -131,6 +337,37 @@ public abstract class SettingManager<T> {
         return val;
     }
 
+    /**
+     * Loads every stored setting of a user in one query and caches them, so later calls to {@link #get(int, int)} for that user need not query.
+     *
+     * Settings not found are then known to be at their default, and are not queried either.
+     *
+     * @return The user's stored settings. Settings at their default value are not stored, and so are not included.
+     */
+    public Map<Integer, T> loadAll(int uid) throws SQLException, BusyException {
+        return sql.execute((ConnectionFunction<Map<Integer, T>>) connection -> loadAll(connection, uid), 3000L);
+    }
+
+    public Map<Integer, T> loadAll(Connection connection, int uid) throws SQLException {
+        if (!initDone) throw new IllegalStateException("Initialization is not complete.");
+
+        Map<Integer, T> map = new HashMap<>();
+        sql.query(connection, "SELECT value,setting FROM " + table + " WHERE uid=?", rs -> {
+            while (rs.next()) {
+                map.put(rs.getInt(2), retrievalFunction.apply(rs));
+            }
+        }, uid);
+        if (!multiple) map.putIfAbsent(0, def);
+        pending.forEach((key, pendingValue) -> {
+            if (uid(key) == uid) map.put(setting(key), pendingValue.value());
+        });
+        for (Map.Entry<Integer, T> entry : map.entrySet()) {
+            if (entry.getValue() != null) cache.put(key(uid, entry.getKey()), entry.getValue());
+        }
+        loaded.put(uid, true);
+        return map;
+    }
+
     public Map<Integer, T> getAll(int uid, List<Integer> settings) throws SQLException, BusyException {
         return getAll(List.of(uid), settings).getOrDefault(uid, new HashMap<>());
     }
@@ -151,16 +388,50 @@ public abstract class SettingManager<T> {
         }, 3000L);
         for (Integer uid : uids) {
             for (Integer setting : settings) {
-                map.computeIfAbsent(uid, k -> new HashMap<>()).putIfAbsent(setting, def);
+                Map<Integer, T> userMap = map.computeIfAbsent(uid, k -> new HashMap<>());
+                userMap.putIfAbsent(setting, def);
+                long key = key(uid, setting);
+                Pending<T> pendingValue = pending.get(key);
+                if (pendingValue != null) userMap.put(setting, pendingValue.value());
+                if (userMap.get(setting) != null) cache.put(key, userMap.get(setting));
             }
         }
         return map;
     }
 
     public void clearCache() {
+        loaded.clear();
         cache.clear();
     }
 
+    /**
+     * Unsubscribes from changes to the table, so this manager can be garbage collected while the {@link ConnectionManager} is still open.
+     * Its cache is no longer invalidated by changes made elsewhere, so it should not be used afterwards.
+     */
+    public void close() {
+        sql.getChangeFeed().unsubscribe(table, changeSubscriber);
+    }
+
+    /**
+     * Compared by identity, so a value replaced while it was being written is not mistaken for the one written
+     */
+    static final class Pending<T> {
+        private final T value;
+        /**
+         * Set while a background write holds this value
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private int failures;
+
+        private Pending(T value) {
+            this.value = value;
+        }
+
+        T value() {
+            return value;
+        }
+    }
+
     public String getTableName() {
         return table;
     }
@@ -234,7 +505,7 @@ public abstract class SettingManager<T> {
                 boolean state = !get(connection, uid, setting);
                 set(connection, uid, setting, state);
                 return state;
-            }, 3000L);
+            }, 3000L, sql.getRetryPolicy());
         }
 
         @Override
@@ -326,15 +597,27 @@ public abstract class SettingManager<T> {
 
         public void add(int uid, int setting, int amount) throws SQLException, BusyException {
             validateSettingID(setting, Int.this.isMultiple());
-            sql.executeTransaction(connection -> {
-                try {
-                    sql.execute(connection, "INSERT INTO " + getTableName() + " (uid,setting,value) VALUES (?,?,?)", uid, setting, amount);
-                } catch (SQLException e) {
-                    if (!sql.isConstraintViolation(e)) throw e;
-                    sql.execute(connection, "UPDATE " + getTableName() + " SET value=value+? WHERE uid=? AND setting=?", amount, uid, setting);
-                }
-                cache.remove(new Pair<>(uid, setting));
-            }, 3000L);
+            long key = key(uid, setting);
+            // The deferred value is taken up front, so it is written again if the transaction is retried
+            Pending<Integer> deferred = takePending(key);
+            try {
+                sql.executeTransaction(connection -> {
+                    if (deferred != null) write(connection, uid, setting, deferred.value());
+                    sql.getChangeFeed().changeAs(this, () -> {
+                        try {
+                            sql.execute(connection, "INSERT INTO " + getTableName() + " (uid,setting,value) VALUES (?,?,?)", uid, setting, amount);
+                        } catch (SQLException e) {
+                            if (!sql.isConstraintViolation(e)) throw e;
+                            sql.execute(connection, "UPDATE " + getTableName() + " SET value=value+? WHERE uid=? AND setting=?", amount, uid, setting);
+                        }
+                    });
+                    cache.remove(key);
+                    loaded.remove(uid);
+                }, 3000L, sql.getRetryPolicy());
+            } catch (SQLException | BusyException | RuntimeException e) {
+                if (deferred != null) requeue(key, deferred);
+                throw e;
+            }
         }
 
         @Override
@@ -0,0 +1,191 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ResultSetFunction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads write-bound tables across several SQLite files, each with its own {@link ConnectionPoolSQLite} and so its own writer.
+ * <br>
+ * Each shard is a complete {@link ConnectionManager} created by the factory, typically the same subclass which would otherwise manage a single file,
+ * with its own {@link SQLIDManager}s, {@link SettingManager}s, etc. Rows are routed by a key, such as a player's UUID, with {@link #forKey(Object)},
+ * and the managers of that shard are used as usual. All rows which refer to one another, e.g. a uid from an {@link SQLIDManager} and the settings
+ * stored against it, must be routed by the same key, as ids are only unique within a shard.
+ * <br>
+ * Reads spanning every shard are run on all of them in parallel with {@link #scatter(ShardFunction)}.
+ * <br>
+ * The shard of a key depends on the number of shards, so the number cannot be changed once data is written.
+ */
+public class ShardedConnectionManager<C extends ConnectionManager> implements Closeable, AutoCloseable {
+    private static final AtomicInteger threadId = new AtomicInteger();
+
+    private final List<C> shards;
+    private final ExecutorService executor;
+
+    /**
+     * @param directory The directory containing the shards, named name-0.db, name-1.db, etc.
+     * @param count     The number of shards
+     * @param factory   Creates and initializes the ConnectionManager of each shard
+     * @throws IllegalStateException If the directory contains more shards than count, as keys would be routed to the wrong shards
+     */
+    public ShardedConnectionManager(File directory, String name, int count, ShardFactory<C> factory) throws IOException, SQLException, ClassNotFoundException {
+        if (count <= 0) throw new IllegalArgumentException("count must be greater than 0");
+        if (!name.matches("[\\w-]+")) throw new IllegalArgumentException("Invalid shard name " + name);
+        if (getFile(directory, name, count).exists()) {
+            throw new IllegalStateException("Found shard " + count + " of " + name + ", the number of shards cannot be reduced");
+        }
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Failed to create directory " + directory);
+
+        List<C> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                shards.add(factory.create(getFile(directory, name, i), i));
+            }
+        } catch (IOException | SQLException | ClassNotFoundException | RuntimeException e) {
+            shards.forEach(ConnectionManager::close);
+            throw e;
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        this.executor = Executors.newFixedThreadPool(count, r -> {
+            Thread t = new Thread(r, "KshLib-Shard-" + threadId.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static File getFile(File directory, String name, int shard) {
+        return new File(directory, name + "-" + shard + ".db");
+    }
+
+    /**
+     * @return The shard which rows with this key belong to
+     * @see #shardOf(Object, int)
+     */
+    public C forKey(Object key) {
+        return shards.get(shardOf(key, shards.size()));
+    }
+
+    public C getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    public List<C> getShards() {
+        return shards;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Hashes a key to a shard. The hash is stable across restarts and JVMs, unlike {@link Object#hashCode()} in general.
+     *
+     * @param key A {@link UUID}, {@link CharSequence}, byte[], or {@link Integer}, {@link Long}, {@link Short}, or {@link Byte}
+     * @return The index of the shard from 0 to count-1
+     */
+    public static int shardOf(Object key, int count) {
+        long hash;
+        if (key instanceof UUID uuid) {
+            hash = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        } else if (key instanceof CharSequence charSequence) {
+            hash = charSequence.toString().hashCode();
+        } else if (key instanceof byte[] bytes) {
+            hash = Arrays.hashCode(bytes);
+        } else if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte) {
+            hash = ((Number) key).longValue();
+        } else {
+            throw new IllegalArgumentException("Unsupported shard key type " + (key == null ? "null" : key.getClass().getName()));
+        }
+        // Finalizer of MurmurHash3, so sequential keys are spread evenly
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) count);
+    }
+
+    /**
+     * Runs the function on every shard in parallel
+     *
+     * @return The result of each shard, in shard order
+     * @throws SQLException  The first exception thrown by a shard, after every shard has finished
+     * @throws BusyException The first exception thrown by a shard, after every shard has finished
+     */
+    public <T> List<T> scatter(ShardFunction<C, T> function) throws SQLException, BusyException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (C shard : shards) {
+            futures.add(executor.submit(() -> function.apply(shard)));
+        }
+        List<T> out = new ArrayList<>();
+        Throwable failure = null;
+        for (Future<T> future : futures) {
+            try {
+                out.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new BusyException("Interrupted");
+            }
+        }
+        if (failure instanceof SQLException sqlException) throw sqlException;
+        if (failure instanceof BusyException busyException) throw busyException;
+        if (failure instanceof RuntimeException runtimeException) throw runtimeException;
+        if (failure != null) throw new RuntimeException(failure);
+        return out;
+    }
+
+    /**
+     * Runs a read only query on every shard in parallel
+     *
+     * @return The result of each shard, in shard order
+     * @see #scatter(ShardFunction)
+     */
+    public <T> List<T> queryAll(String statement, ResultSetFunction<T> resultSetFunction, long wait, Object... args) throws SQLException, BusyException {
+        return scatter(shard -> shard.applyResultSet(statement, resultSetFunction).args(args).readOnly().executeQuery(wait));
+    }
+
+    /**
+     * @return The total number of rows in the table across every shard
+     */
+    public long count(String table, long wait) throws SQLException, BusyException {
+        long total = 0;
+        for (int count : scatter(shard -> shard.count(table, wait))) total += count;
+        return total;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        shards.forEach(ConnectionManager::close);
+    }
+
+    @FunctionalInterface
+    public interface ShardFactory<C extends ConnectionManager> {
+        /**
+         * @return An initialized ConnectionManager using the SQLite file
+         */
+        C create(File file, int shard) throws IOException, SQLException, ClassNotFoundException;
+    }
+
+    @FunctionalInterface
+    public interface ShardFunction<C extends ConnectionManager, T> {
+        T apply(C shard) throws SQLException, BusyException;
+    }
+}
@@ -0,0 +1,15 @@
+package dev.kshl.kshlib.sql;
+
+import javax.annotation.Nullable;
+
+/**
+ * A Connection which was held for longer than the slow hold threshold, see {@link ConnectionManager#setSlowHoldThresholdMillis(long)}.
+ *
+ * @param since      The time in epoch milliseconds the Connection was acquired
+ * @param statement  The last statement executed on the Connection, with its arguments redacted to their types, or null if none was executed
+ * @param statements The number of statements executed on the Connection
+ * @param stack      The stack of the thread when it released the Connection, which includes where it was acquired from
+ */
+public record SlowHold(String threadName, long threadId, boolean readOnly, long since, long holdMillis,
+                       @Nullable String statement, int statements, StackTraceElement[] stack) {
+}
@@ -6,11 +6,13 @@ import dev.kshl.kshlib.function.ConnectionResultSetFunction;
 import dev.kshl.kshlib.function.ResultSetFunction;
 import lombok.Getter;
 
+import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Objects;
+import java.util.function.ToLongFunction;
 
 /**
  * A utility/builder class that provides different options for performing database lookups.
@@ -22,6 +24,7 @@ import java.util.Objects;
 public class StatementBuilder<T> {
     private final ConnectionManager connectionManager;
     private final ConnectionFunction<T> connectionFunction;
+    private final String statement;
     @Getter
     private final FunctionType functionType;
     @Getter
@@ -31,6 +34,7 @@ public class StatementBuilder<T> {
     @Getter
     private boolean used;
     private boolean readOnly;
+    private ToLongFunction<? super T> cacheSizer;
 
     StatementBuilder(ConnectionManager connectionManager, ConnectionFunction<T> connectionFunction) {
         this(FunctionType.CONNECTION, connectionManager, null, connectionFunction, null);
@@ -55,6 +59,7 @@ public class StatementBuilder<T> {
                              ConnectionResultSetFunction<T> resultSetFunction) {
         this.functionType = functionType;
         this.connectionManager = connectionManager;
+        this.statement = statement;
         if (resultSetFunction != null) {
             connectionFunction = adaptToConnection(statement, resultSetFunction);
         }
@@ -75,14 +80,74 @@ public class StatementBuilder<T> {
         return this;
     }
 
+    /**
+     * Runs this statement on a read-write Connection even if it is a SELECT, e.g. to read back a write which a read replica may not have yet.
+     */
+    public StatementBuilder<T> readWrite() {
+        this.readOnly = false;
+        return this;
+    }
+
+    /**
+     * Serves this query from the {@link ConnectionManager#enableQueryCache(long) query cache}, if it is enabled, and caches its result on a miss.
+     * Null results are not cached.
+     * <br>
+     * Cached results are shared between callers, so the result must not be modified. Return an immutable copy from the ResultSetFunction.
+     *
+     * @see QueryCache
+     */
+    public StatementBuilder<T> cached() {
+        return cached(QueryCache::estimateSize);
+    }
+
+    /**
+     * Same as {@link #cached()}, with a function estimating the size in bytes of a result, for results the default estimate does not know
+     */
+    public StatementBuilder<T> cached(ToLongFunction<? super T> sizer) {
+        if (this.functionType != FunctionType.RESULT_SET) {
+            throw new UnsupportedOperationException("cached is only applicable to ResultSet functions");
+        }
+        this.cacheSizer = Objects.requireNonNull(sizer, "sizer must not be null");
+        return this;
+    }
+
     public T executeQuery(Connection connection) throws SQLException {
         checkUsed();
-        return connectionFunction.apply(connection);
+        QueryCache.Read read = startCachedRead();
+        if (read == null) return connectionFunction.apply(connection);
+        T result = getCached(read);
+        if (result != null) return result;
+        return putCached(read, connectionFunction.apply(connection));
     }
 
     public T executeQuery(long waitMillis) throws SQLException, BusyException {
         checkUsed();
-        return connectionManager.execute(connectionFunction, waitMillis, readOnly);
+        QueryCache.Read read = startCachedRead();
+        if (read == null) return connectionManager.execute(connectionFunction, waitMillis, readOnly);
+        T result = getCached(read);
+        if (result != null) return result;
+        return putCached(read, connectionManager.execute(connectionFunction, waitMillis, readOnly));
+    }
+
+    @Nullable
+    private QueryCache.Read startCachedRead() {
+        if (cacheSizer == null) return null;
+        QueryCache queryCache = connectionManager.getQueryCache();
+        if (queryCache == null) return null;
+        return queryCache.startRead(statement, args);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private T getCached(QueryCache.Read read) {
+        QueryCache queryCache = connectionManager.getQueryCache();
+        return queryCache == null ? null : (T) queryCache.get(read);
+    }
+
+    private T putCached(QueryCache.Read read, T result) {
+        QueryCache queryCache = connectionManager.getQueryCache();
+        if (queryCache != null && result != null) queryCache.put(read, result, cacheSizer.applyAsLong(result));
+        return result;
     }
 
     public int executeReturnGenerated(Connection connection) throws SQLException {
@@ -141,13 +206,9 @@ public class StatementBuilder<T> {
     private ConnectionFunction<T> adaptToConnection(String statement, ConnectionResultSetFunction<T> resultSetFunction) {
         return connection -> {
             connectionManager.debugSQLStatement((readOnly ? "[READONLY] " : "") + statement, args);
-            PreparedStatement preparedStatement;
-            if (action == Action.GENERATED) {
-                preparedStatement = connection.prepareStatement(statement, PreparedStatement.RETURN_GENERATED_KEYS);
-            } else {
-                preparedStatement = connection.prepareStatement(statement);
-            }
-            try {
+            connectionManager.getConnectionPool().getHoldTracker().statement(statement, args);
+            try (StatementCache.Lease lease = connectionManager.getConnectionPool().prepareStatement(connection, statement, action == Action.GENERATED)) {
+                PreparedStatement preparedStatement = lease.statement();
                 if (this.args != null && this.args.length > 0) {
                     connectionManager.prepare(preparedStatement, args);
                 }
@@ -157,13 +218,19 @@ public class StatementBuilder<T> {
                     try (ResultSet rs = preparedStatement.getGeneratedKeys()) {
                         if (rs.next()) result = rs.getInt(1);
                     }
+                    connectionManager.onWrite(connection, statement);
                     return null;
                 } else if (action == Action.ROWS) {
                     this.result = preparedStatement.executeUpdate();
+                    connectionManager.onWrite(connection, statement);
                     return null;
                 } else {
                     if (functionType == FunctionType.VOID) {
-                        preparedStatement.execute();
+                        if (preparedStatement.execute()) {
+                            // Close any ResultSet so the statement is reset before it goes back to the cache
+                            preparedStatement.getResultSet().close();
+                        }
+                        connectionManager.onWrite(connection, statement);
                         return resultSetFunction.apply(connection, null);
                     } else {
                         try (ResultSet rs = preparedStatement.executeQuery()) {
@@ -171,8 +238,6 @@ public class StatementBuilder<T> {
                         }
                     }
                 }
-            } finally {
-                preparedStatement.close();
             }
         };
     }
@@ -0,0 +1,163 @@
+package dev.kshl.kshlib.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A bounded LRU cache of {@link PreparedStatement}s belonging to a single physical {@link Connection}.
+ * <br>
+ * Statements are checked out with {@link #take(Key, int)} and handed back with {@link #release(Key, PreparedStatement, int, int)}.
+ * While checked out, a statement is not in the cache, so a nested use of the same SQL on the same Connection prepares its own statement.
+ */
+class StatementCache {
+    private final Connection connection;
+    private final LinkedHashMap<Key, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private int generation;
+
+    StatementCache(Connection connection, int generation) {
+        this.connection = connection;
+        this.generation = generation;
+    }
+
+    /**
+     * @return An idle cached statement for this key, or null if there is none
+     */
+    synchronized PreparedStatement take(Key key, int currentGeneration) {
+        if (generation != currentGeneration) {
+            clear();
+            generation = currentGeneration;
+        }
+        PreparedStatement preparedStatement = statements.remove(key);
+        if (preparedStatement == null) return null;
+        try {
+            if (preparedStatement.isClosed()) return null;
+        } catch (SQLException e) {
+            return null;
+        }
+        return preparedStatement;
+    }
+
+    PreparedStatement prepare(Key key) throws SQLException {
+        return prepare(connection, key);
+    }
+
+    static PreparedStatement prepare(Connection connection, Key key) throws SQLException {
+        if (key.generatedKeys()) {
+            return connection.prepareStatement(key.statement(), PreparedStatement.RETURN_GENERATED_KEYS);
+        }
+        return connection.prepareStatement(key.statement());
+    }
+
+    /**
+     * Returns a statement to the cache, evicting the least recently used statements if over capacity.
+     * The statement is closed instead if the schema has changed since it was taken, or if another statement for the same key was returned first.
+     */
+    synchronized void release(Key key, PreparedStatement preparedStatement, int currentGeneration, int capacity) {
+        if (generation != currentGeneration || capacity <= 0) {
+            close(preparedStatement);
+            return;
+        }
+        try {
+            preparedStatement.clearParameters();
+        } catch (SQLException e) {
+            close(preparedStatement);
+            return;
+        }
+        if (statements.putIfAbsent(key, preparedStatement) != null) {
+            close(preparedStatement);
+            return;
+        }
+        Iterator<PreparedStatement> it = statements.values().iterator();
+        while (statements.size() > capacity && it.hasNext()) {
+            close(it.next());
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return statements.size();
+    }
+
+    boolean isConnectionClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    synchronized void clear() {
+        List<PreparedStatement> toClose = new ArrayList<>(statements.values());
+        statements.clear();
+        toClose.forEach(StatementCache::close);
+    }
+
+    static void close(PreparedStatement preparedStatement) {
+        try {
+            preparedStatement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Whether a statement is worth keeping prepared across executions. Only plain DML/queries are cached.
+     */
+    static boolean isCacheable(String statement) {
+        return switch (firstWord(statement)) {
+            case "select", "insert", "update", "delete", "replace", "with" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Whether executing this statement may change the schema that cached statements were prepared against
+     */
+    static boolean isSchemaChange(String statement) {
+        return switch (firstWord(statement)) {
+            case "create", "alter", "drop", "pragma", "vacuum", "analyze", "reindex", "rename", "truncate" -> true;
+            default -> false;
+        };
+    }
+
+    private static String firstWord(String statement) {
+        int start = 0;
+        while (start < statement.length() && Character.isWhitespace(statement.charAt(start))) start++;
+        int end = start;
+        while (end < statement.length() && Character.isLetter(statement.charAt(end))) end++;
+        return statement.substring(start, end).toLowerCase();
+    }
+
+    record Key(String statement, boolean generatedKeys) {
+    }
+
+    /**
+     * A checked out statement. Closing the lease returns the statement to its cache, or closes it if it was not cacheable.
+     */
+    static final class Lease implements AutoCloseable {
+        private final ConnectionPool pool;
+        private final StatementCache cache;
+        private final Key key;
+        private final PreparedStatement statement;
+
+        Lease(ConnectionPool pool, StatementCache cache, Key key, PreparedStatement statement) {
+            this.pool = pool;
+            this.cache = cache;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        PreparedStatement statement() {
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            pool.release(cache, key, statement);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package dev.kshl.kshlib.sql;
+
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A committed change to a table, published by {@link ChangeFeed}.
+ *
+ * @param table  The name of the table, in lower case
+ * @param rowId  The SQLite rowid of the changed row, or null if the change may have affected any number of rows
+ * @param source The object the change was made as, see {@link ChangeFeed#changeAs(Object, dev.kshl.kshlib.function.ThrowingSupplier)},
+ *               or null if it was made by another process or without a source
+ */
+public record TableChange(String table, Type type, @Nullable Long rowId, @Nullable Object source) {
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+
+    public enum Type {
+        INSERT, UPDATE, DELETE,
+        /**
+         * Rows may have been inserted, updated, or deleted, e.g. by a REPLACE or a schema change
+         */
+        UNKNOWN
+    }
+
+    public boolean isRowKnown() {
+        return rowId != null;
+    }
+
+    /**
+     * @return The change a write statement makes to its table as a whole, or null if its table can not be determined
+     */
+    @Nullable
+    static TableChange fromStatement(String statement, @Nullable Object source) {
+        Matcher matcher = QueryCache.WRITE_TABLE.matcher(statement);
+        if (!matcher.find()) return null;
+        String verb = statement.substring(matcher.start(), matcher.start(1)).toUpperCase(Locale.ROOT).stripLeading();
+        if (verb.startsWith("CREATE")) return null; // A new table has no rows to change
+        Type type;
+        if (verb.contains("REPLACE")) type = Type.UNKNOWN; // May delete conflicting rows
+        else if (verb.startsWith("INSERT")) type = Type.INSERT;
+        else if (verb.startsWith("UPDATE")) type = Type.UPDATE;
+        else if (verb.startsWith("DELETE") || verb.startsWith("TRUNCATE")) type = Type.DELETE;
+        else type = Type.UNKNOWN;
+        return new TableChange(matcher.group(1).toLowerCase(Locale.ROOT), type, null, source);
+    }
+
+    /**
+     * @return Whether SQLite's update hook reports every row this statement changes. It does not report rows deleted by REPLACE conflicts,
+     * by a DELETE without a WHERE clause (the truncate optimization), or by schema changes.
+     */
+    static boolean isReportedByUpdateHook(String statement, TableChange change) {
+        return switch (change.type()) {
+            case INSERT, UPDATE -> true;
+            case DELETE -> WHERE.matcher(statement).find();
+            case UNKNOWN -> false;
+        };
+    }
+}
@@ -0,0 +1,253 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import lombok.Getter;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A checksum of a table, computed in chunks of consecutive key ranges so large tables can be hashed in parallel without holding one connection
+ * for the whole scan.
+ * <br>
+ * Rows are combined with a sum, so the digest does not depend on the order rows are read in. Two checksums computed with the same
+ * {@link #getBoundaries() boundaries}, such as of a primary and a replica, can be {@link #diff(TableChecksum) diffed} down to the mismatching ranges.
+ */
+public class TableChecksum {
+    private static final AtomicInteger threadId = new AtomicInteger();
+    private static final long NULL_HASH = 0x9E3779B97F4A7C15L;
+
+    @Getter
+    private final List<String> columns;
+    @Getter
+    private final List<Object> boundaries;
+    @Getter
+    private final List<Chunk> chunks;
+
+    private TableChecksum(List<String> columns, List<Object> boundaries, List<Chunk> chunks) {
+        this.columns = Collections.unmodifiableList(columns);
+        this.boundaries = Collections.unmodifiableList(boundaries);
+        this.chunks = Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @param after        The key the chunk starts after, or null if it is the first chunk
+     * @param upTo         The last key included in the chunk, or null if it is the last chunk, which also includes rows with a null key
+     * @param columnDigests The digest of each column of the chunk, in the order of {@link #getColumns()}
+     */
+    public record Chunk(@Nullable Object after, @Nullable Object upTo, long rows, long digest, long[] columnDigests) {
+        public boolean matches(Chunk other) {
+            return rows == other.rows && digest == other.digest;
+        }
+    }
+
+    public long getRows() {
+        long rows = 0;
+        for (Chunk chunk : chunks) rows += chunk.rows();
+        return rows;
+    }
+
+    /**
+     * @return A digest of the column names and every row
+     */
+    public long getDigest() {
+        long digest = 0;
+        for (String column : columns) digest = digest * 31 + column.hashCode();
+        for (Chunk chunk : chunks) digest += chunk.digest();
+        return digest;
+    }
+
+    /**
+     * @return The digest of each column across every chunk, by column name in alphabetical order
+     */
+    public Map<String, Long> getColumnDigests() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            long digest = 0;
+            for (Chunk chunk : chunks) digest += chunk.columnDigests()[i];
+            out.put(columns.get(i), digest);
+        }
+        return out;
+    }
+
+    /**
+     * @return The chunks of this checksum which do not match the other
+     * @throws IllegalArgumentException If the checksums were not computed over the same columns and boundaries
+     */
+    public List<Chunk> diff(TableChecksum other) {
+        if (!columns.equals(other.columns) || !Arrays.deepEquals(boundaries.toArray(), other.boundaries.toArray())) {
+            throw new IllegalArgumentException("Checksums must have the same columns and boundaries to be compared");
+        }
+        List<Chunk> out = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!chunks.get(i).matches(other.chunks.get(i))) out.add(chunks.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Finds the upper key of every chunk by seeking chunkRows ahead on the key column, which only reads its index.
+     * Each seek is its own read-only query, so no connection is held across the whole table.
+     */
+    static List<Object> findBoundaries(ConnectionManager sql, String table, String keyColumn, int chunkRows, long wait) throws SQLException, BusyException {
+        if (chunkRows <= 0) throw new IllegalArgumentException("chunkRows must be greater than 0");
+        List<Object> boundaries = new ArrayList<>();
+        Object last = sql.query("SELECT " + keyColumn + " FROM " + table + " WHERE " + keyColumn + " IS NOT NULL ORDER BY " + keyColumn + " LIMIT 1 OFFSET ?", TableChecksum::readKey, wait, chunkRows - 1);
+        while (last != null) {
+            boundaries.add(last);
+            last = sql.query("SELECT " + keyColumn + " FROM " + table + " WHERE " + keyColumn + ">? ORDER BY " + keyColumn + " LIMIT 1 OFFSET ?", TableChecksum::readKey, wait, last, chunkRows - 1);
+        }
+        return boundaries;
+    }
+
+    static TableChecksum compute(ConnectionManager sql, String table, String keyColumn, Predicate<String> doIncludeColumn, List<Object> boundaries, int parallelism, long wait) throws SQLException, BusyException {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be greater than 0");
+
+        Column[] columns = sql.query("SELECT * FROM " + table + " WHERE 1=0", rs -> {
+            ResultSetMetaData meta = rs.getMetaData();
+            List<Column> out = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                if (doIncludeColumn.test(meta.getColumnName(i))) out.add(new Column(meta.getColumnName(i), meta.getColumnType(i)));
+            }
+            out.sort((a, b) -> a.name().compareTo(b.name()));
+            return out.toArray(new Column[0]);
+        }, wait);
+        List<String> columnNames = new ArrayList<>();
+        for (Column column : columns) columnNames.add(column.name());
+
+        String select = "SELECT " + (columns.length == 0 ? "1" : String.join(",", columnNames)) + " FROM " + table;
+        List<Chunk> chunks = new ArrayList<>();
+        if (boundaries.isEmpty()) {
+            chunks.add(hashChunk(sql, select, columns, null, null, wait));
+            return new TableChecksum(columnNames, boundaries, chunks);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, boundaries.size() + 1), r -> {
+            Thread t = new Thread(r, "KshLib-TableChecksum-" + threadId.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Chunk>> futures = new ArrayList<>();
+            for (int i = 0; i <= boundaries.size(); i++) {
+                Object after = i == 0 ? null : boundaries.get(i - 1);
+                Object upTo = i == boundaries.size() ? null : boundaries.get(i);
+                String statement;
+                if (after == null) statement = select + " WHERE " + keyColumn + "<=?";
+                else if (upTo == null) statement = select + " WHERE " + keyColumn + ">? OR " + keyColumn + " IS NULL";
+                else statement = select + " WHERE " + keyColumn + ">? AND " + keyColumn + "<=?";
+                futures.add(executor.submit(() -> hashChunk(sql, statement, columns, after, upTo, wait)));
+            }
+            for (Future<Chunk> future : futures) {
+                try {
+                    chunks.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SQLException sqlException) throw sqlException;
+                    if (e.getCause() instanceof BusyException busyException) throw busyException;
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BusyException("Interrupted");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new TableChecksum(columnNames, boundaries, chunks);
+    }
+
+    private static Chunk hashChunk(ConnectionManager sql, String statement, Column[] columns, @Nullable Object after, @Nullable Object upTo, long wait) throws SQLException, BusyException {
+        Object[] args;
+        if (after == null && upTo == null) args = new Object[0];
+        else if (after == null) args = new Object[]{upTo};
+        else if (upTo == null) args = new Object[]{after};
+        else args = new Object[]{after, upTo};
+
+        return sql.query(statement, rs -> {
+            long rows = 0;
+            long digest = 0;
+            long[] columnDigests = new long[columns.length];
+            while (rs.next()) {
+                long rowHash = 0;
+                for (int i = 0; i < columns.length; i++) {
+                    long cellHash = mix(hashValue(rs, i + 1, columns[i].type()) + i * NULL_HASH);
+                    columnDigests[i] += cellHash;
+                    rowHash = mix(rowHash ^ cellHash);
+                }
+                digest += mix(rowHash);
+                rows++;
+            }
+            return new Chunk(after, upTo, rows, digest, columnDigests);
+        }, wait, args);
+    }
+
+    /**
+     * Hashes a value without boxing it, reading it as the most specific type the column allows
+     */
+    private static long hashValue(ResultSet rs, int index, int type) throws SQLException {
+        long hash;
+        switch (type) {
+            case Types.BIT, Types.BOOLEAN, Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> hash = rs.getLong(index);
+            case Types.FLOAT, Types.REAL, Types.DOUBLE -> hash = Double.doubleToLongBits(rs.getDouble(index));
+            case Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY, Types.BLOB -> {
+                byte[] bytes = rs.getBytes(index);
+                return bytes == null ? NULL_HASH : hashBytes(bytes);
+            }
+            default -> {
+                String string = rs.getString(index);
+                return string == null ? NULL_HASH : hashBytes(string.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return rs.wasNull() ? NULL_HASH : hash;
+    }
+
+    private static long hashBytes(byte[] bytes) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long key) {
+        // SplitMix64 finalizer
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+
+    /**
+     * Reads a key in a form {@link ConnectionManager#prepare(java.sql.PreparedStatement, int, Object)} can bind
+     */
+    @Nullable
+    private static Object readKey(ResultSet rs) throws SQLException {
+        if (!rs.next()) return null;
+        Object key = rs.getObject(1);
+        if (key == null || key instanceof String || key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte
+                || key instanceof byte[] || key instanceof Double || key instanceof Float) {
+            return key;
+        }
+        return rs.getString(1);
+    }
+
+    private record Column(String name, int type) {
+    }
+}
@@ -0,0 +1,120 @@
+package dev.kshl.kshlib.sql;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long tasks wait for and hold Connections without any locking.
+ * <br>
+ * Busy time is accumulated into a ring of fixed-length slots covering the longest reported window, and tasks still running are
+ * accounted for through a running count and sum of their start times. Wait and hold times are also counted in {@link LatencyHistogram}s.
+ */
+class UsageRecorder {
+    private static final long SLOT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int SLOTS = 2048; // ~8.5 minutes
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+    private final long origin = System.nanoTime();
+    private final AtomicLongArray slotNanos = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotEpochs = new AtomicLongArray(SLOTS);
+    private final LongAdder active = new LongAdder();
+    private final LongAdder activeStartSum = new LongAdder();
+    private final LatencyHistogram waitTimes = new LatencyHistogram(1, TimeUnit.MINUTES, 6);
+    private final LatencyHistogram holdTimes = new LatencyHistogram(1, TimeUnit.MINUTES, 6);
+
+    UsageRecorder() {
+        for (int i = 0; i < SLOTS; i++) slotEpochs.set(i, -1);
+    }
+
+    /**
+     * @return The current time in nanoseconds relative to this recorder's creation
+     */
+    long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * Marks the start of a task which has just acquired a Connection
+     *
+     * @param requested The time the Connection was requested, from {@link #now()}
+     * @return The start time, to be passed to {@link #end(long)}
+     */
+    long start(long requested) {
+        long start = now();
+        waitTimes.record(start, start - requested);
+        active.increment();
+        activeStartSum.add(start);
+        return start;
+    }
+
+    void end(long start) {
+        long end = now();
+        activeStartSum.add(-start);
+        active.decrement();
+        holdTimes.record(end, end - start);
+
+        long startEpoch = Math.max(start / SLOT_NANOS, end / SLOT_NANOS - SLOTS + 1);
+        for (long epoch = startEpoch; epoch <= end / SLOT_NANOS; epoch++) {
+            long from = Math.max(start, epoch * SLOT_NANOS);
+            long to = Math.min(end, (epoch + 1) * SLOT_NANOS);
+            add(epoch, to - from);
+        }
+    }
+
+    private void add(long epoch, long nanos) {
+        int slot = (int) (epoch % SLOTS);
+        long slotEpoch = slotEpochs.get(slot);
+        if (slotEpoch > epoch) return; // Older than the ring
+        if (slotEpoch < epoch && slotEpochs.compareAndSet(slot, slotEpoch, epoch)) {
+            slotNanos.set(slot, 0);
+        }
+        slotNanos.addAndGet(slot, nanos);
+    }
+
+    /**
+     * @return The ratio of time spent holding Connections over the window ending now. May be >1 if multiple Connections were in use.
+     */
+    double getUsageRatio(long duration, TimeUnit timeUnit) {
+        long durationNanos = Math.min(timeUnit.toNanos(duration), (SLOTS - 1) * SLOT_NANOS);
+        long now = now();
+        long windowStart = now - durationNanos;
+        long total = 0;
+        long nowEpoch = now / SLOT_NANOS;
+        for (long epoch = Math.max(0, windowStart / SLOT_NANOS); epoch <= nowEpoch; epoch++) {
+            int slot = (int) (epoch % SLOTS);
+            if (slotEpochs.get(slot) != epoch) continue;
+            long nanos = slotNanos.get(slot);
+            if (epoch * SLOT_NANOS < windowStart) {
+                // Partially within the window, assume usage was spread evenly through the slot
+                nanos = nanos * ((epoch + 1) * SLOT_NANOS - windowStart) / SLOT_NANOS;
+            }
+            total += nanos;
+        }
+        long activeCount = active.sum();
+        if (activeCount > 0) {
+            total += Math.min(activeCount * now - activeStartSum.sum(), activeCount * durationNanos);
+        }
+        return Math.max(0, total) / (double) durationNanos;
+    }
+
+    /**
+     * @return The [p50, p99, p99.9] time in milliseconds spent waiting for a Connection over the past minute
+     */
+    double[] getWaitTimePercentiles() {
+        return toMillis(waitTimes.getPercentiles(now(), PERCENTILES));
+    }
+
+    /**
+     * @return The [p50, p99, p99.9] time in milliseconds Connections were held for over the past minute
+     */
+    double[] getHoldTimePercentiles() {
+        return toMillis(holdTimes.getPercentiles(now(), PERCENTILES));
+    }
+
+    private static double[] toMillis(long[] nanos) {
+        double[] out = new double[nanos.length];
+        for (int i = 0; i < nanos.length; i++) out[i] = nanos[i] / 1e6;
+        return out;
+    }
+}
@@ -0,0 +1,135 @@
+package dev.kshl.kshlib.sql;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers session tokens which were verified against the database, so later requests with the same token skip the slow hash and the query.
+ * <br>
+ * Secrets are not kept. Each entry holds an HMAC of its secret under a random key which never leaves the process, and is compared in constant time.
+ * Entries expire with their token or after the max age, whichever is first, and the least recently used entry is evicted once the cache is full.
+ * <br>
+ * One cache may be shared by every session token manager of a database, as entries are keyed by table. Revocations through any of them then
+ * take effect in all of them at once. A revocation made by another process is not seen until the entry reaches its max age.
+ */
+public class VerifiedSessionCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60_000L;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecretKeySpec KEY = newKey();
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e); // HmacSHA256 is required of every JRE
+        }
+    });
+
+    private static SecretKeySpec newKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, ALGORITHM);
+    }
+
+    private final LinkedHashMap<Key, Entry> entries;
+    private final long maxAgeMillis;
+    /**
+     * Incremented by every invalidation, so a verification which raced one does not put the revoked token back
+     */
+    private long generation;
+
+    public VerifiedSessionCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxAgeMillis How long a verification is trusted before the token is checked against the database again
+     */
+    public VerifiedSessionCache(int maxEntries, long maxAgeMillis) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be greater than 0");
+        if (maxAgeMillis < 0) throw new IllegalArgumentException("maxAgeMillis must not be negative");
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The generation to pass to {@link #put(String, Object, int, long, String, String, long)}, read before the token is loaded
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches a verified token, unless the cache was invalidated since the generation was read
+     */
+    void put(String table, Object id, int uid, long expires, @Nullable String ip, String secret, long generation) {
+        Entry entry = new Entry(uid, Math.min(expires, System.currentTimeMillis() + maxAgeMillis), ip, mac(secret));
+        synchronized (this) {
+            if (this.generation != generation) return;
+            entries.put(new Key(table, id), entry);
+        }
+    }
+
+    /**
+     * @return The cached entry, or null if the token is not cached or has expired
+     */
+    @Nullable
+    synchronized Entry get(String table, Object id, long now) {
+        Key key = new Key(table, id);
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (now >= entry.expires()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void invalidate(String table, Object id) {
+        generation++;
+        entries.remove(new Key(table, id));
+    }
+
+    synchronized void invalidateUID(String table, int uid) {
+        generation++;
+        entries.entrySet().removeIf(entry -> entry.getKey().table().equals(table) && entry.getValue().uid() == uid);
+    }
+
+    synchronized void purgeExpired(long now) {
+        entries.values().removeIf(entry -> now >= entry.expires());
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static byte[] mac(String secret) {
+        return MAC.get().doFinal(secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private record Key(String table, Object id) {
+    }
+
+    /**
+     * @param expires When the token expires, or the entry reaches its max age if sooner
+     */
+    record Entry(int uid, long expires, @Nullable String ip, byte[] mac) {
+        boolean matches(String secret) {
+            return MessageDigest.isEqual(mac, VerifiedSessionCache.mac(secret));
+        }
+    }
+}
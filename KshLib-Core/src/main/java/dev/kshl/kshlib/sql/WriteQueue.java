@@ -0,0 +1,137 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
+import dev.kshl.kshlib.function.ConnectionFunction;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects asynchronous writes and executes them in batches, one transaction per batch, so the cost of a commit (and WAL fsync) is shared.
+ * <br>
+ * Each task runs under its own savepoint, so a task which throws is rolled back and failed on its own without affecting the rest of the batch.
+ * Futures are completed only once the batch has been committed.
+ * <br>
+ * The queue is bounded, and a write submitted while it is full fails immediately with a {@link BusyException}, so a stalled database pushes back on callers
+ * rather than buffering writes without limit.
+ */
+class WriteQueue {
+    private static final AtomicInteger threadId = new AtomicInteger(0);
+
+    private final ConnectionManager connectionManager;
+    private final BlockingQueue<Task> queue;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final long lockWaitMillis;
+    private final Thread thread;
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean closing;
+
+    WriteQueue(ConnectionManager connectionManager, int maxBatchSize, long maxDelayMillis, int maxPending, long lockWaitMillis) {
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be > 0");
+        if (maxDelayMillis < 0) throw new IllegalArgumentException("maxDelayMillis must be >= 0");
+        if (maxPending <= 0) throw new IllegalArgumentException("maxPending must be > 0");
+        this.connectionManager = connectionManager;
+        this.queue = new LinkedBlockingQueue<>(maxPending);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.lockWaitMillis = lockWaitMillis;
+        this.thread = new Thread(this::run, "KshLib-WriteQueue-" + threadId.getAndIncrement());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    synchronized CompletableFuture<Void> submit(ConnectionConsumer task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closing) {
+            future.completeExceptionally(new BusyException("Write queue closing"));
+            return future;
+        }
+        if (!queue.offer(new Task(task, future))) {
+            rejected.increment();
+            future.completeExceptionally(new BusyException("Write queue full"));
+        }
+        return future;
+    }
+
+    int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of writes which failed because the queue was full
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    private void run() {
+        List<Task> batch = new ArrayList<>(maxBatchSize);
+        while (!closing || !queue.isEmpty()) {
+            try {
+                Task first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                final long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Task next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (batch.isEmpty()) continue;
+            }
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Task> batch) {
+        List<Task> succeeded = new ArrayList<>(batch.size());
+        try {
+            connectionManager.executeTransaction((ConnectionFunction<Void>) connection -> {
+                succeeded.clear();
+                for (Task task : batch) {
+                    try {
+                        connectionManager.executeTransaction(connection, () -> task.task().accept(connection));
+                        succeeded.add(task);
+                    } catch (SQLException | RuntimeException e) {
+                        task.future().completeExceptionally(e);
+                    }
+                }
+                return null;
+            }, lockWaitMillis);
+        } catch (SQLException | BusyException | RuntimeException e) {
+            for (Task task : batch) task.future().completeExceptionally(e);
+            return;
+        }
+        for (Task task : succeeded) task.future().complete(null);
+    }
+
+    /**
+     * Stops accepting new writes and blocks until all pending writes have been flushed
+     */
+    void close() {
+        synchronized (this) {
+            closing = true;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Task(ConnectionConsumer task, CompletableFuture<Void> future) {
+    }
+}
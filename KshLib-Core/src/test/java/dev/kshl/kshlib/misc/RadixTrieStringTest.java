@@ -0,0 +1,120 @@
+package dev.kshl.kshlib.misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RadixTrieStringTest {
+    @Test
+    public void testDuplicateDifferentCase() {
+        RadixTrieString trie = new RadixTrieString();
+
+        trie.put("hi", 1);
+        trie.put("HI", 2);
+
+        assertEquals(1, trie.size());
+        assertEquals(List.of("HI"), List.copyOf(trie.getStartingWith("h")));
+        assertFalse(trie.putIfAbsent("Hi", 3));
+        assertEquals(List.of("HI"), List.copyOf(trie.getStartingWith("h")));
+    }
+
+    @Test
+    public void testPrefix() {
+        RadixTrieString trie = new RadixTrieString();
+        for (String name : List.of("romane", "Romanus", "romulus", "rubens", "ruber", "rubicon", "rubicundus", "rub")) {
+            trie.put(name, 0);
+        }
+
+        assertEquals(List.of("romane", "Romanus", "romulus", "rub", "rubens", "ruber", "rubicon", "rubicundus"), List.copyOf(trie.getStartingWith("")));
+        assertEquals(List.of("romane", "Romanus"), List.copyOf(trie.getStartingWith("ROMA")));
+        assertEquals(List.of("rubicon", "rubicundus"), List.copyOf(trie.getStartingWith("rubic")));
+        assertEquals(List.of("rubicundus"), List.copyOf(trie.getStartingWith("rubicu")));
+        assertEquals(List.of(), List.copyOf(trie.getStartingWith("rubx")));
+        assertEquals(List.of(), List.copyOf(trie.getStartingWith("rubiconx")));
+        assertTrue(trie.contains("RUB"));
+        assertFalse(trie.contains("ru"));
+    }
+
+    @Test
+    public void testRemove() {
+        RadixTrieString trie = new RadixTrieString();
+        trie.put("test", 0);
+        trie.put("tester", 0);
+        trie.put("testing", 0);
+
+        assertTrue(trie.remove("TEST"));
+        assertFalse(trie.remove("test"));
+        assertEquals(List.of("tester", "testing"), List.copyOf(trie.getStartingWith("t")));
+
+        assertTrue(trie.remove("tester"));
+        assertEquals(List.of("testing"), List.copyOf(trie.getStartingWith("testi")));
+        assertTrue(trie.remove("testing"));
+        assertEquals(0, trie.size());
+        assertEquals(List.of(), List.copyOf(trie.getStartingWith("")));
+
+        trie.put("again", 0);
+        assertEquals(List.of("again"), List.copyOf(trie.getStartingWith("a")));
+
+        // The node left with a single child is merged into it
+        RadixTrieString single = new RadixTrieString();
+        single.put("again", 0);
+        trie.put("agenda", 0);
+        assertTrue(trie.remove("agenda"));
+        assertEquals(single.estimateMemory(), trie.estimateMemory());
+        assertTrue(trie.contains("AGAIN"));
+    }
+
+    @Test
+    public void testMostRecent() {
+        RadixTrieString trie = new RadixTrieString();
+        trie.put("alpha", 1);
+        trie.put("alphabet", 5);
+        trie.put("alpine", 3);
+        trie.put("beta", 10);
+        trie.put("alps", 4);
+
+        assertEquals(List.of("alphabet", "alps", "alpine"), trie.getMostRecentStartingWith("al", 3));
+        assertEquals(List.of("beta", "alphabet"), trie.getMostRecentStartingWith("", 2));
+
+        trie.put("Alpha", 20);
+        assertEquals(List.of("Alpha", "alphabet", "alps", "alpine"), trie.getMostRecentStartingWith("alp", 10));
+        assertEquals(List.of(), trie.getMostRecentStartingWith("c", 10));
+    }
+
+    @Test
+    public void testMatchesTreeSet() {
+        Random random = new Random(0);
+        RadixTrieString trie = new RadixTrieString();
+        TreeSet<String> expected = new TreeSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String name = randomName(random);
+            trie.put(name, i);
+            expected.add(name.toLowerCase());
+        }
+        assertEquals(expected.size(), trie.size());
+
+        for (String prefix : List.of("a", "ab", "kx", "q_", "zz9")) {
+            List<String> actual = new ArrayList<>();
+            for (String name : trie.getStartingWith(prefix)) actual.add(name.toLowerCase());
+            assertEquals(List.copyOf(expected.subSet(prefix, prefix + Character.MAX_VALUE)), actual);
+        }
+
+        // Each name is stored once, as its String, with no copies in edge labels
+        assertTrue(trie.estimateMemory() < 110L * trie.size(), trie.estimateMemory() / trie.size() + " bytes per name");
+    }
+
+    private static String randomName(Random random) {
+        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_";
+        int length = 3 + random.nextInt(14);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) builder.append(chars.charAt(random.nextInt(chars.length())));
+        return builder.toString();
+    }
+}
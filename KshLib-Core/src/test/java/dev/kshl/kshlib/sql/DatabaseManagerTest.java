@@ -1,12 +1,15 @@
 package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
 import dev.kshl.kshlib.function.ConnectionFunction;
 import dev.kshl.kshlib.function.ResultSetConsumer;
 import dev.kshl.kshlib.function.ResultSetFunction;
 import dev.kshl.kshlib.function.ThrowingConsumer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,15 +17,26 @@ import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -171,6 +185,378 @@ public class DatabaseManagerTest {
         }, 3000L);
     }
 
+    @DatabaseTest
+    public void testBatchInsertMultiRow(ConnectionManager connectionManager) throws SQLException, BusyException {
+        String table = "batch_multi_row_test";
+        connectionManager.execute("DROP TABLE IF EXISTS " + table, 3000L);
+        connectionManager.execute("CREATE TABLE " + table + " (a INT PRIMARY KEY, b TEXT)", 3000L);
+
+        // Streamed from an iterator, spanning several full statements and a partial one
+        Iterator<Integer> elements = IntStream.range(0, 2500).iterator();
+        connectionManager.execute((ConnectionConsumer) connection -> connectionManager.executeBatch(connection,
+                "INSERT INTO " + table + " (a, b) VALUES (?, ?)", elements, i -> List.of(i, "b" + i)), 3000L);
+        assertEquals(2500, connectionManager.count(table, 3000L));
+        assertEquals("b1234", connectionManager.query("SELECT b FROM " + table + " WHERE a=?", rs -> rs.next() ? rs.getString(1) : null, 3000L, 1234));
+
+        connectionManager.executeBatch(connectionManager.getInsertOrIgnore() + " INTO " + table + " (a,b) VALUES (?,?);", List.of(0, 2500),
+                i -> List.of(i, "ignored"), 3000L);
+        assertEquals(2501, connectionManager.count(table, 3000L));
+        assertEquals("b0", connectionManager.query("SELECT b FROM " + table + " WHERE a=?", rs -> rs.next() ? rs.getString(1) : null, 3000L, 0));
+
+        // Not rewritten, executed in several batches
+        connectionManager.executeBatch("UPDATE " + table + " SET b=? WHERE a=?", IntStream.range(0, 2501).boxed().toList(), i -> List.of("u" + i, i), 3000L);
+        assertEquals(2501, (int) connectionManager.query("SELECT COUNT(1) FROM " + table + " WHERE b LIKE 'u%'", rs -> rs.next() ? rs.getInt(1) : -1, 3000L));
+
+        assertThrows(IllegalArgumentException.class, () -> connectionManager.executeBatch("INSERT INTO " + table + " (a, b) VALUES (?, ?)",
+                List.of(5000), i -> List.of(i), 3000L));
+        assertEquals(2501, connectionManager.count(table, 3000L), "A failed batch should be rolled back");
+    }
+
+    @DatabaseTest
+    public void testColumnarResultMap(ConnectionManager sql) throws SQLException, BusyException {
+        String table = "columnar_test";
+        sql.execute("DROP TABLE IF EXISTS " + table, 3000L);
+        StringBuilder create = new StringBuilder("CREATE TABLE " + table + " (id INT PRIMARY KEY");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + table + " (id");
+        for (int i = 0; i < 6; i++) {
+            create.append(", i").append(i).append(" INT, l").append(i).append(" BIGINT, d").append(i).append(" DOUBLE, s").append(i).append(" VARCHAR(32)");
+            insert.append(", i").append(i).append(", l").append(i).append(", d").append(i).append(", s").append(i);
+        }
+        insert.append(") VALUES (?").append(", ?".repeat(24)).append(")");
+        sql.execute(create.append(")").toString(), 3000L);
+
+        final int rows = 50_000;
+        sql.executeBatch(insert.toString(), IntStream.range(0, rows).boxed().toList(), id -> {
+            List<Object> values = new ArrayList<>();
+            values.add(id);
+            for (int i = 0; i < 6; i++) {
+                values.add(id % 7 == i ? null : id * (i + 1));
+                values.add(id * 1_000_000_000L + i);
+                values.add(id / (i + 2D));
+                values.add(id % 11 == i ? null : "status" + (id % 20));
+            }
+            return values;
+        }, 3000L);
+
+        String select = "SELECT * FROM " + table + " ORDER BY id";
+        ResultMap resultMap = sql.executeReturnMap(select, 3000L);
+        ColumnarResultMap columnar = sql.executeReturnColumnarMap(select, 3000L);
+        // No more than a primitive per value, where boxed rows take several times that
+        assertTrue(columnar.estimateMemory() < (long) rows * columnar.getLabels().size() * 8, columnar.estimateMemory() + " bytes");
+
+        assertEquals(resultMap.getLabels(), columnar.getLabels());
+        assertEquals(rows, columnar.getResults().size());
+        for (int row = 0; row < rows; row += 997) {
+            ResultMap.Result expected = resultMap.getResults().get(row);
+            ColumnarResultMap.Result actual = columnar.getResults().get(row);
+            for (int column = 0; column < columnar.getLabels().size(); column++) {
+                assertEquals(expected.getValue(column), actual.getValue(column), columnar.getLabels().get(column));
+            }
+            assertEquals(expected.getValue("s3"), actual.getValue("s3"));
+        }
+
+        ColumnarResultMap.Result row14 = columnar.getResults().get(14);
+        assertTrue(row14.isNull(1)); // i0 is null when id % 7 == 0
+        assertEquals(0, row14.getInt("i0"));
+        assertEquals(14 * 1_000_000_000L + 2, row14.getLong("l2"));
+        assertEquals("status14", row14.getValue(String.class, "s0"));
+
+        assertEquals((long) rows * (rows - 1) / 2, columnar.getColumn("id").longs().sum());
+        long nonNull = 0;
+        for (Object value : columnar.getColumn("s0")) if (value != null) nonNull++;
+        assertEquals(rows - (rows + 10) / 11, nonNull);
+
+        // Values are boxed as getObject boxes them
+        sql.execute("DROP TABLE IF EXISTS columnar_types", 3000L);
+        sql.execute("CREATE TABLE columnar_types (r REAL, f FLOAT, n DECIMAL(10,2), u INT UNSIGNED, b BIGINT)", 3000L);
+        sql.execute("INSERT INTO columnar_types (r,f,n,u,b) VALUES (1.5, 2.5, 3.25, 4, 5)", 3000L);
+        ResultMap.Result expected = sql.executeReturnMap("SELECT * FROM columnar_types", 3000L).getResults().get(0);
+        ColumnarResultMap.Result actual = sql.executeReturnColumnarMap("SELECT * FROM columnar_types", 3000L).getResults().get(0);
+        for (String column : List.of("r", "f", "n", "u", "b")) {
+            assertEquals(expected.getValue(column), actual.getValue(column), column);
+            assertEquals(expected.getValue(column).getClass(), actual.getValue(column).getClass(), column);
+        }
+    }
+
+    @DatabaseTest
+    public void testQueryCache(ConnectionManager sql) throws SQLException, BusyException {
+        sql.execute("DROP TABLE IF EXISTS query_cache_a", 3000L);
+        sql.execute("DROP TABLE IF EXISTS query_cache_b", 3000L);
+        sql.execute("CREATE TABLE query_cache_a (id INT PRIMARY KEY, name TEXT)", 3000L);
+        sql.execute("CREATE TABLE query_cache_b (id INT PRIMARY KEY, name TEXT)", 3000L);
+        sql.execute("INSERT INTO query_cache_a (id,name) VALUES (1,'one'),(2,'two')", 3000L);
+        sql.enableQueryCache(1024);
+        QueryCache cache = Objects.requireNonNull(sql.getQueryCache());
+
+        String select = "SELECT name FROM query_cache_a WHERE id=?";
+        ResultSetFunction<String> name = rs -> rs.next() ? rs.getString(1) : null;
+        assertEquals("one", sql.applyResultSet(select, name).args(1).cached().executeQuery(3000L));
+        long statements = sql.getStatementCacheHits() + sql.getStatementCacheMisses();
+        assertEquals("one", sql.applyResultSet(select, name).args(1).cached().executeQuery(3000L));
+        assertEquals(statements, sql.getStatementCacheHits() + sql.getStatementCacheMisses(), "A hit must not execute a statement");
+        assertEquals("two", sql.applyResultSet(select, name).args(2).cached().executeQuery(3000L));
+        assertEquals(new QueryCache.QueryCacheStats(1, 2), cache.getStats().get(select));
+
+        // Writes to other tables keep the entries, writes to the table read invalidate them
+        sql.execute("INSERT INTO query_cache_b (id,name) VALUES (1,'b')", 3000L);
+        assertEquals(2, cache.size());
+        sql.executeReturnRows("UPDATE query_cache_a SET name=? WHERE id=?", 3000L, "uno", 1);
+        assertEquals(0, cache.size());
+        assertEquals("uno", sql.applyResultSet(select, name).args(1).cached().executeQuery(3000L));
+
+        // Within a transaction, the writer sees its own writes and the entry is invalidated again on commit
+        sql.executeTransaction((ConnectionConsumer) connection -> {
+            sql.execute(connection, "UPDATE query_cache_a SET name=? WHERE id=?", "eins", 1);
+            assertEquals("eins", sql.applyResultSet(select, name).args(1).cached().executeQuery(connection));
+        }, 3000L);
+        assertEquals("eins", sql.applyResultSet(select, name).args(1).cached().executeQuery(3000L));
+
+        sql.executeBatch("INSERT INTO query_cache_a (id,name) VALUES (?,?)", List.of(3, 4), id -> List.of(id, "x".repeat(300)), 3000L);
+        assertEquals(0, cache.size());
+
+        // Bounded by bytes, evicting the least recently used entries
+        for (int id = 1; id <= 4; id++) sql.applyResultSet(select, name).args(id).cached().executeQuery(3000L);
+        assertTrue(cache.getBytes() <= 1024, "Cache exceeded its bound: " + cache.getBytes());
+        assertTrue(cache.size() < 4);
+        long hits = cache.getStats().get(select).hits();
+        assertEquals("x".repeat(300), sql.applyResultSet(select, name).args(4).cached().executeQuery(3000L));
+        assertEquals(hits + 1, cache.getStats().get(select).hits(), "The most recently used entry should not be evicted");
+
+        // Tables read only by a subquery are tagged too
+        String join = "SELECT a.name FROM (SELECT id FROM query_cache_b) t JOIN query_cache_a a ON a.id=t.id";
+        ResultSetFunction<Integer> count = rs -> {
+            int rows = 0;
+            while (rs.next()) rows++;
+            return rows;
+        };
+        assertEquals(1, sql.applyResultSet(join, count).cached().executeQuery(3000L));
+        sql.execute("INSERT INTO query_cache_b (id,name) VALUES (2,'b')", 3000L);
+        assertEquals(2, sql.applyResultSet(join, count).cached().executeQuery(3000L));
+    }
+
+    @Test
+    public void testQueryCacheReadTables() {
+        assertEquals(Set.of("x", "y"), QueryCache.readTables("SELECT * FROM (SELECT id FROM x) t JOIN y ON t.id=y.id"));
+        assertEquals(Set.of("a", "b", "c"), QueryCache.readTables("SELECT * FROM a, (SELECT id FROM `B` WHERE v IN (1, 2)) t, c WHERE a.id=t.id"));
+        assertEquals(Set.of("a", "b"), QueryCache.readTables("SELECT id, 'FROM c' FROM a WHERE id IN (SELECT id FROM b) ORDER BY id, name"));
+        assertEquals(Set.of("a"), QueryCache.readTables("SELECT * FROM a LEFT JOIN a AS copy ON a.id=copy.parent LIMIT 1, 2"));
+        assertEquals(Set.of(), QueryCache.readTables("SELECT 1"));
+    }
+
+    @DatabaseTest
+    public void testChangeFeed(ConnectionManager sql) throws SQLException, BusyException {
+        sql.execute("DROP TABLE IF EXISTS change_feed", 3000L);
+        sql.execute("CREATE TABLE change_feed (id INTEGER PRIMARY KEY, name TEXT)", 3000L);
+        List<TableChange> changes = new ArrayList<>();
+        sql.getChangeFeed().subscribe("Change_Feed", changes::add);
+
+        sql.execute("INSERT INTO change_feed (id,name) VALUES (7,'a')", 3000L);
+        assertEquals(1, changes.size());
+        assertEquals(TableChange.Type.INSERT, changes.get(0).type());
+        if (!sql.isMySQL()) assertEquals(7L, changes.get(0).rowId());
+
+        // Published only once committed, and never if rolled back
+        changes.clear();
+        sql.executeTransaction((ConnectionConsumer) connection -> {
+            sql.execute(connection, "UPDATE change_feed SET name='b' WHERE id=7");
+            assertTrue(changes.isEmpty());
+        }, 3000L);
+        assertEquals(List.of(TableChange.Type.UPDATE), changes.stream().map(TableChange::type).toList());
+        changes.clear();
+        assertThrows(TransactionTestException.class, () -> sql.executeTransaction((ConnectionConsumer) connection -> {
+            sql.execute(connection, "DELETE FROM change_feed WHERE id=7");
+            throw new TransactionTestException();
+        }, 3000L));
+        assertTrue(changes.isEmpty());
+
+        Object source = new Object();
+        sql.execute((ConnectionConsumer) connection -> sql.getChangeFeed().changeAs(source, () -> sql.execute(connection, "DELETE FROM change_feed")), 3000L);
+        assertEquals(1, changes.size());
+        assertEquals(TableChange.Type.DELETE, changes.get(0).type());
+        assertSame(source, changes.get(0).source());
+        assertFalse(changes.get(0).isRowKnown(), "A DELETE without a WHERE clause is not reported per row");
+
+        // Many rows changed in one transaction are published as one change to the table
+        changes.clear();
+        sql.executeTransaction((ConnectionConsumer) connection -> {
+            for (int id = 0; id < ChangeFeed.MAX_ROW_CHANGES * 2; id++) sql.execute(connection, "INSERT INTO change_feed (id,name) VALUES (?,'c')", id);
+        }, 3000L);
+        assertEquals(1, changes.size());
+        assertEquals(TableChange.Type.INSERT, changes.get(0).type());
+        assertFalse(changes.get(0).isRowKnown());
+    }
+
+    @Test
+    public void testChangeFeedSubscription() throws Exception {
+        try (TestConnectionManager sql = new TestConnectionManager(path.resolve(UUID.randomUUID() + ".db").toFile())) {
+            SettingManager.Int settings = new SettingManager.Int(sql, "subscription_setting", false, 0);
+            SQLSet.Int set = new SQLSet.Int(sql, "subscription_set", true);
+            assertFalse(sql.getChangeFeed().hasSubscribers(), "Managers should not subscribe before they are initialized");
+            sql.execute(settings::init, 3000L);
+            sql.execute(set::init, 3000L);
+            sql.execute(set::init, 3000L);
+            assertTrue(sql.getChangeFeed().hasSubscribers());
+
+            settings.close();
+            set.close();
+            assertFalse(sql.getChangeFeed().hasSubscribers(), "Closing a manager should unsubscribe it");
+        }
+    }
+
+    @Test
+    public void testRetryPolicy() throws Exception {
+        RetryPolicy classifier = new RetryPolicy();
+        assertTrue(classifier.isRetryable(new SQLException("serialization failure", "40001")));
+        assertTrue(classifier.isRetryable(new SQLException("deadlock", "HY000", 1213)));
+        assertTrue(classifier.isRetryable(new SQLiteException("busy", SQLiteErrorCode.SQLITE_BUSY_SNAPSHOT)));
+        assertFalse(classifier.isRetryable(new SQLiteException("constraint", SQLiteErrorCode.SQLITE_CONSTRAINT_UNIQUE)));
+        assertFalse(classifier.isRetryable(new SQLException("duplicate", "23000", 1062)));
+
+        try (TestConnectionManager sql = new TestConnectionManager(path.resolve(UUID.randomUUID() + ".db").toFile())) {
+            sql.execute("CREATE TABLE retry (i INT)", 3000L);
+
+            // Rolled back and retried until it succeeds
+            RetryPolicy policy = new RetryPolicy().backoff(1, 5);
+            AtomicInteger attempts = new AtomicInteger();
+            int result = sql.executeTransaction(connection -> {
+                sql.execute(connection, "INSERT INTO retry (i) VALUES (?)", attempts.get());
+                if (attempts.incrementAndGet() < 3) throw new SQLiteException("busy", SQLiteErrorCode.SQLITE_BUSY);
+                return attempts.get();
+            }, 3000L, policy);
+            assertEquals(3, result);
+            assertEquals(2, policy.getRetries());
+            assertEquals(1, sql.count("retry", 3000L));
+
+            // Limited by attempts
+            RetryPolicy limited = new RetryPolicy().maxAttempts(2).backoff(1, 5);
+            attempts.set(0);
+            assertThrows(SQLiteException.class, () -> sql.executeTransaction((ConnectionConsumer) connection -> {
+                attempts.incrementAndGet();
+                throw new SQLiteException("busy", SQLiteErrorCode.SQLITE_BUSY);
+            }, 3000L, limited));
+            assertEquals(2, attempts.get());
+            assertEquals(1, limited.getAttemptsExhausted());
+
+            // Limited by budget, with one retry allowed per window
+            RetryPolicy budgeted = new RetryPolicy().backoff(1, 5).budget(0, 1, 60_000L);
+            attempts.set(0);
+            assertThrows(SQLiteException.class, () -> sql.executeTransaction((ConnectionConsumer) connection -> {
+                attempts.incrementAndGet();
+                throw new SQLiteException("busy", SQLiteErrorCode.SQLITE_BUSY);
+            }, 3000L, budgeted));
+            assertEquals(2, attempts.get());
+            assertEquals(1, budgeted.getRetries());
+            assertEquals(1, budgeted.getBudgetExhausted());
+
+            // Not retried within a larger transaction, nor for errors other than contention
+            attempts.set(0);
+            assertThrows(SQLiteException.class, () -> sql.executeTransaction(connection -> {
+                sql.executeTransaction(connection, policy, () -> {
+                    attempts.incrementAndGet();
+                    throw new SQLiteException("busy", SQLiteErrorCode.SQLITE_BUSY);
+                });
+            }, 3000L));
+            assertThrows(SQLException.class, () -> sql.executeTransaction((ConnectionConsumer) connection -> {
+                attempts.incrementAndGet();
+                throw new SQLException("duplicate", "23000");
+            }, 3000L, policy));
+            assertEquals(2, attempts.get());
+            assertEquals(2, policy.getRetries());
+        }
+    }
+
+    @Test
+    public void testChangeLog() throws Exception {
+        File file = path.resolve(UUID.randomUUID() + ".db").toFile();
+        try (TestConnectionManager a = new TestConnectionManager(file); TestConnectionManager b = new TestConnectionManager(file)) {
+            a.enableChangeLog(20L, 60_000L);
+            b.enableChangeLog(20L, 60_000L);
+            SettingManager.Int settingA = new SettingManager.Int(a, "change_log_setting", false, 0);
+            SettingManager.Int settingB = new SettingManager.Int(b, "change_log_setting", false, 0);
+            a.execute(settingA::init, 3000L);
+            b.execute(settingB::init, 3000L);
+            List<TableChange> changes = new CopyOnWriteArrayList<>();
+            b.getChangeFeed().subscribe("change_log_setting", changes::add);
+
+            assertEquals(0, settingB.get(1));
+            settingA.set(1, 5);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (changes.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(1, changes.size());
+            assertNull(changes.get(0).source());
+            assertEquals(5, settingB.get(1), "The setting cached by the other process should be invalidated");
+
+            settingB.set(1, 6);
+            Thread.sleep(200);
+            assertEquals(2, changes.size(), "Changes should only be published once, and not polled back by their own process");
+        }
+    }
+
+    @DatabaseTest
+    public void testChecksum(ConnectionManager sql) throws SQLException, BusyException, InterruptedException {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 1; i <= 5000; i++) ids.add(i);
+        for (String table : List.of("checksum_a", "checksum_b")) {
+            sql.execute("DROP TABLE IF EXISTS " + table, 3000L);
+            sql.execute("CREATE TABLE " + table + " (id INT PRIMARY KEY, name TEXT, data BLOB, score DOUBLE)", 3000L);
+            sql.executeBatch("INSERT INTO " + table + " (id,name,data,score) VALUES (?,?,?,?)", ids,
+                    id -> List.of(id, "name" + id, new byte[]{(byte) id.intValue(), (byte) (id >> 8)}, id / 3D), 3000L);
+            Collections.reverse(ids); // Row order must not matter
+        }
+
+        assertEquals(sql.hash("checksum_a", "id", c -> true), sql.hash("checksum_b", "id", c -> true));
+
+        TableChecksum a = sql.checksum("checksum_a", "id", c -> true, 500, 4, 3000L);
+        assertEquals(5000, a.getRows());
+        assertEquals(10, a.getBoundaries().size());
+        assertEquals(11, a.getChunks().size());
+        assertEquals(List.of("data", "id", "name", "score"), a.getColumns());
+
+        sql.execute("UPDATE checksum_b SET name=? WHERE id=?", 3000L, "changed", 1234);
+        TableChecksum b = sql.checksum("checksum_b", "id", c -> true, a, 4, 3000L);
+        assertEquals(5000, b.getRows());
+
+        List<TableChecksum.Chunk> diff = a.diff(b);
+        assertEquals(1, diff.size());
+        assertTrue(((Number) diff.get(0).after()).intValue() < 1234);
+        assertTrue(((Number) diff.get(0).upTo()).intValue() >= 1234);
+
+        Map<String, Long> columnsA = a.getColumnDigests();
+        Map<String, Long> columnsB = b.getColumnDigests();
+        for (String column : a.getColumns()) {
+            assertEquals(column.equals("name"), !columnsA.get(column).equals(columnsB.get(column)), column);
+        }
+
+        assertEquals(a.getDigest(), sql.checksum("checksum_a", "id", c -> true, 5000, 1, 3000L).getDigest());
+        assertEquals(sql.hash("checksum_a", "id", c -> !c.equals("name")), sql.hash("checksum_b", "id", c -> !c.equals("name")));
+
+        // Only read connections are used, so a checksum runs alongside a long read, which a writer would have to wait for
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                sql.accept(connection -> {
+                    held.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }).readOnly().executeQuery(3000L);
+            } catch (SQLException | BusyException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        try {
+            held.await();
+            assertEquals(a.getDigest(), sql.checksum("checksum_a", "id", c -> true, 500, 4, 500L).getDigest());
+        } finally {
+            release.countDown();
+            reader.join();
+        }
+    }
+
     @DatabaseTest
     public void testTableColumnExists(ConnectionManager sql) throws SQLException, BusyException {
         String table = "table_exists";
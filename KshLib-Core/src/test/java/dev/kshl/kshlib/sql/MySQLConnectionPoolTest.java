@@ -80,5 +80,36 @@ public class MySQLConnectionPoolTest {
                 }
             }, 3000L);
         });
+
+        // Without a replica, a write nested in a read reuses the read's Connection, writable until the write ends
+        connectionManager.accept(connection -> {
+            Assertions.assertTrue(connection.isReadOnly());
+            try {
+                connectionManager.execute((ConnectionConsumer) connection2 -> {
+                    Assertions.assertEquals(connection, connection2);
+                    Assertions.assertFalse(connection2.isReadOnly());
+                }, 3000L);
+            } catch (BusyException e) {
+                throw new RuntimeException(e);
+            }
+            Assertions.assertTrue(connection.isReadOnly());
+        }).readOnly().executeQuery(3000L);
+
+        // A transaction left open by a failed task is rolled back, even though its statements were cached on the physical Connection
+        connectionManager.execute("DROP TABLE IF EXISTS pool_rollback", 3000L);
+        connectionManager.execute("CREATE TABLE pool_rollback (id INT)", 3000L);
+        Assertions.assertThrows(IllegalStateException.class, () -> connectionManager.execute((ConnectionConsumer) connection -> {
+            connection.setAutoCommit(false);
+            connectionManager.execute(connection, "INSERT INTO pool_rollback (id) VALUES (?)", 1);
+            throw new IllegalStateException();
+        }, 3000L));
+        Assertions.assertEquals(0, connectionManager.count("pool_rollback", 3000L));
+    }
+
+    @Test
+    public void testConnectionError() {
+        Assertions.assertTrue(ConnectionPoolHikari.isConnectionError(new RuntimeException(new SQLException("Communications link failure", "08S01"))));
+        Assertions.assertFalse(ConnectionPoolHikari.isConnectionError(new SQLException("Duplicate entry", "23000")));
+        Assertions.assertFalse(ConnectionPoolHikari.isConnectionError(new IllegalStateException()));
     }
 }
@@ -0,0 +1,164 @@
+package dev.kshl.kshlib.sql;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ResultSetFunction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput comparisons, excluded from the normal build. Run with <code>mvn test -Dgroups=benchmark -DexcludedGroups=none</code>.
+ */
+@Tag("benchmark")
+public class SQLBenchmarkTest {
+    @TempDir
+    Path tempPath;
+    private ConnectionManager connectionManager;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void init() throws SQLException, IOException, ClassNotFoundException {
+        connectionManager = new TestConnectionManager(tempPath.resolve(UUID.randomUUID() + ".db").toFile());
+        executor = Executors.newFixedThreadPool(64);
+    }
+
+    @AfterEach
+    public void after() {
+        ((TestConnectionManager) connectionManager).closeManager();
+        executor.shutdown();
+    }
+
+    @Test
+    public void submitWrite() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        final int threads = 8;
+        final int perThread = 250;
+
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    connectionManager.execute("INSERT INTO tbl (i) VALUES (?)", 10000L, i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        double direct = threads * perThread / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < threads * perThread; i++) {
+            final int i_ = i;
+            writes.add(connectionManager.submitWrite(connection -> connectionManager.execute(connection, "INSERT INTO tbl (i) VALUES (?)", i_)));
+        }
+        CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        double grouped = threads * perThread / ((System.nanoTime() - start) / 1e9);
+
+        System.out.printf("Inserts/sec: execute=%.0f, submitWrite=%.0f%n", direct, grouped);
+        assertEquals(2 * threads * perThread, connectionManager.count("tbl", 1000L));
+    }
+
+    @Test
+    public void queryAsync() throws Exception {
+        connectionManager.configureAsync(connectionManager.getActiveConnections(), 100_000, true);
+        connectionManager.execute("CREATE TABLE tbl (i INT PRIMARY KEY)", 1000L);
+        connectionManager.executeBatch("INSERT INTO tbl (i) VALUES (?)", IntStream.range(0, 1000).boxed().toList(), List::of, 1000L);
+        final int queries = 20_000;
+        final int callers = 64;
+        ResultSetFunction<Integer> first = rs -> rs.next() ? rs.getInt(1) : -1;
+
+        // One platform thread per caller, each blocking on its query
+        ExecutorService platform = Executors.newFixedThreadPool(callers);
+        long start = System.nanoTime();
+        List<Future<Integer>> blocking = new ArrayList<>();
+        for (int i = 0; i < queries; i++) {
+            final int i_ = i % 1000;
+            blocking.add(platform.submit(() -> connectionManager.query("SELECT i FROM tbl WHERE i=?", first, 10000L, i_)));
+        }
+        for (Future<Integer> future : blocking) future.get();
+        double direct = queries / ((System.nanoTime() - start) / 1e9);
+        platform.shutdown();
+
+        start = System.nanoTime();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < queries; i++) {
+            futures.add(connectionManager.queryAsync("SELECT i FROM tbl WHERE i=?", first, 10000L, i % 1000));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(60, TimeUnit.SECONDS);
+        double async = queries / ((System.nanoTime() - start) / 1e9);
+
+        System.out.printf("Queries/sec: %d platform callers=%.0f, queryAsync=%.0f%n", callers, direct, async);
+        for (int i = 0; i < queries; i++) assertEquals(i % 1000, futures.get(i).get());
+        assertEquals(0, connectionManager.getRejectedAsync());
+    }
+
+    @Test
+    public void idManagerPutAll() throws Exception {
+        SQLIDManager.Str idManager = new SQLIDManager.Str(connectionManager, "put_all");
+        connectionManager.execute(idManager::init, 1000L);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) values.add("value" + i);
+        long start = System.nanoTime();
+        idManager.putAll(values);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("SQLIDManager.putAll: %,d rows in %dms, %,.0f rows/sec%n", values.size(), elapsed / 1_000_000, values.size() / (elapsed / 1e9));
+        assertEquals(values.size(), connectionManager.count("put_all", 1000L));
+    }
+
+    @Test
+    public void setAddAll() throws Exception {
+        SQLSet.BigInt sqlSet = new SQLSet.BigInt(connectionManager, "add_all", false);
+        connectionManager.execute(sqlSet::init, 1000L);
+
+        List<Long> members = LongStream.range(0, 100_000).boxed().toList();
+        long start = System.nanoTime();
+        sqlSet.addAll(members);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("SQLSet.addAll: %,d rows in %dms, %,.0f rows/sec%n", members.size(), elapsed / 1_000_000, members.size() / (elapsed / 1e9));
+        assertEquals(members.size(), connectionManager.count("add_all", 1000L));
+    }
+
+    @Test
+    public void uuidLookups() throws Exception {
+        SQLIDManager.UUIDText text = new SQLIDManager.UUIDText(connectionManager, "id_uuid_text");
+        connectionManager.execute(text::init, 1000L);
+        SQLIDManager.UUIDBinary binary = new SQLIDManager.UUIDBinary(connectionManager, "id_uuid_binary");
+        connectionManager.execute(binary::init, 1000L);
+        List<UUID> values = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) values.add(UUID.randomUUID());
+        text.getOrInsertAll(values);
+        binary.getOrInsertAll(values);
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("UUID lookups/sec: text=%.0f, binary=%.0f%n", lookupRate(text, values), lookupRate(binary, values));
+        }
+    }
+
+    private static double lookupRate(SQLIDManager<UUID> idManager, List<UUID> values) throws SQLException, BusyException {
+        idManager.clearCache();
+        long start = System.nanoTime();
+        idManager.getAll(values);
+        return values.size() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -3,11 +3,23 @@ package dev.kshl.kshlib.sql;
 import dev.kshl.kshlib.exceptions.BusyException;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SQLIDManagerTest {
     @DatabaseTest
@@ -52,6 +64,28 @@ public class SQLIDManagerTest {
         assertEquals(uid2, idManagerUID.getIDOpt(val2, false).orElse(null));
     }
 
+    @DatabaseTest
+    public void testInvalidatedByOtherWrites(ConnectionManager connectionManager) throws SQLException, BusyException {
+        String table = "id_change_feed";
+        connectionManager.execute("DROP TABLE IF EXISTS " + table, 100);
+        SQLIDManager.Str idManager = new SQLIDManager.Str(connectionManager, table);
+        connectionManager.execute(idManager::init, 100);
+
+        int id = idManager.getIDOrInsert("a");
+        assertEquals("a", idManager.getValueOpt(id).orElse(null));
+        connectionManager.execute("UPDATE " + table + " SET value=? WHERE id=?", 3000L, "b", id);
+        assertEquals("b", idManager.getValueOpt(id).orElse(null));
+        assertTrue(idManager.getIDOpt("a", false).isEmpty());
+
+        assertTrue(idManager.getIDOpt("c", false).isEmpty());
+        connectionManager.execute("INSERT INTO " + table + " (value) VALUES (?)", 3000L, "c");
+        assertTrue(idManager.getIDOpt("c", false).isPresent(), "An insert should clear values cached as missing");
+
+        connectionManager.execute("DELETE FROM " + table, 3000L);
+        assertTrue(idManager.getValueOpt(id).isEmpty());
+        assertTrue(idManager.getIDOpt("c", false).isEmpty());
+    }
+
     @DatabaseTest
     public void testPutAllGetAll(ConnectionManager connectionManager) throws SQLException, BusyException {
         String table = "put_all_get_all";
@@ -68,4 +102,207 @@ public class SQLIDManagerTest {
         assertEquals(2, ids.get("b").intValue());
         assertEquals(3, ids.get("c").intValue());
     }
+
+    @DatabaseTest
+    public void testPutAllLarge(ConnectionManager connectionManager) throws SQLException, BusyException {
+        String table = "put_all_large";
+        connectionManager.execute("DROP TABLE IF EXISTS " + table, 100);
+        SQLIDManager.Str idManager = new SQLIDManager.Str(connectionManager, table);
+        connectionManager.execute(idManager::init, 100);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) values.add("value" + i);
+        idManager.putAll(values);
+
+        assertEquals(values.size(), connectionManager.count(table, 1000L));
+        idManager.putAll(values.subList(0, 10)); // Existing values are ignored
+        assertEquals(values.size(), connectionManager.count(table, 1000L));
+    }
+
+    @DatabaseTest
+    public void testGetOrInsertAllChunked(ConnectionManager connectionManager) throws SQLException, BusyException {
+        String table = "get_or_insert_all_chunked";
+        connectionManager.execute("DROP TABLE IF EXISTS " + table, 100);
+        SQLIDManager.Str idManager = new SQLIDManager.Str(connectionManager, table);
+        connectionManager.execute(idManager::init, 100);
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) values.add("value" + i);
+        Map<String, Integer> ids = idManager.getOrInsertAll(values);
+        assertEquals(1000, ids.size());
+        assertEquals(1000, new HashSet<>(ids.values()).size());
+
+        // Served entirely from the cache
+        long before = statementCount(connectionManager);
+        assertEquals(ids, idManager.getAll(values));
+        assertEquals(before, statementCount(connectionManager));
+
+        // 1001 misses are looked up in two chunks of 512, the second padded with repeats
+        idManager.clearCache();
+        List<String> withMissing = new ArrayList<>(values);
+        withMissing.add("missing");
+        before = statementCount(connectionManager);
+        Map<String, Integer> all = idManager.getAll(withMissing);
+        assertEquals(2, statementCount(connectionManager) - before);
+        assertEquals(ids.get("value999"), all.get("value999"));
+        assertTrue(all.containsKey("missing") && all.get("missing") == null);
+
+        idManager.clearCache();
+        before = statementCount(connectionManager);
+        assertEquals(2, idManager.getAll(List.of("value1", "value2", "missing")).values().stream().filter(Objects::nonNull).count());
+        assertEquals(1, statementCount(connectionManager) - before);
+    }
+
+    @DatabaseTest
+    public void testResident(ConnectionManager connectionManager) throws SQLException, BusyException {
+        String table = "id_resident";
+        connectionManager.execute("DROP TABLE IF EXISTS " + table, 100);
+        SQLIDManager.UUIDText writer = new SQLIDManager.UUIDText(connectionManager, table);
+        connectionManager.execute(writer::init, 100);
+        List<UUID> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) values.add(UUID.randomUUID());
+        Map<UUID, Integer> ids = new HashMap<>(writer.getOrInsertAll(values));
+        // A single far off ID must not size the index by it
+        UUID sparse = UUID.randomUUID();
+        connectionManager.execute("INSERT INTO " + table + " (id, value) VALUES (?, ?)", 100, 50_000_000, sparse.toString());
+        values.add(sparse);
+        ids.put(sparse, 50_000_000);
+
+        SQLIDManager.UUIDText resident = new SQLIDManager.UUIDText(connectionManager, table);
+        resident.setResident(true);
+        connectionManager.execute(resident::init, 100);
+        assertEquals(1001, resident.getCachedCount());
+
+        // Served entirely from memory
+        long before = statementCount(connectionManager);
+        for (UUID value : values) {
+            assertEquals(ids.get(value), resident.getIDOpt(value, false).orElseThrow());
+            assertEquals(value, resident.getValueOpt(ids.get(value)).orElseThrow());
+        }
+        assertEquals(before, statementCount(connectionManager));
+
+        UUID added = UUID.randomUUID();
+        int addedID = resident.getIDOrInsert(added);
+        before = statementCount(connectionManager);
+        assertEquals(addedID, resident.getIDOpt(added, false).orElseThrow());
+        assertEquals(added, resident.getValueOpt(addedID).orElseThrow());
+        assertEquals(before, statementCount(connectionManager));
+
+        assertTrue(resident.remove(addedID));
+        // Only the removed value leaves the index
+        assertEquals(1001, resident.getCachedCount());
+        assertTrue(resident.getValueOpt(addedID).isEmpty());
+        assertTrue(resident.getIDOpt(added, false).isEmpty());
+
+        long bytes = resident.getResidentMemoryBytes();
+        assertTrue(bytes > 1000 * 32);
+        assertTrue(bytes < 1000 * 100, bytes + " bytes");
+
+        // Tombstones left by removals must not fill the hash table
+        connectionManager.execute("DROP TABLE IF EXISTS id_resident_churn", 100);
+        SQLIDManager.Str churn = new SQLIDManager.Str(connectionManager, "id_resident_churn");
+        churn.setResident(true);
+        connectionManager.execute(churn::init, 100);
+        int kept = churn.getIDOrInsert("kept");
+        for (int i = 0; i < 1000; i++) {
+            int id = churn.getIDOrInsert("name" + i);
+            assertEquals(id, churn.getIDOpt("name" + i, false).orElseThrow());
+            assertTrue(churn.remove(id));
+            assertTrue(churn.getIDOpt("name" + i, false).isEmpty());
+        }
+        assertEquals(kept, churn.getIDOpt("kept", false).orElseThrow());
+        assertEquals(1, churn.getCachedCount());
+    }
+
+    @DatabaseTest
+    public void testUUIDBinaryMigration(ConnectionManager connectionManager) throws SQLException, BusyException {
+        connectionManager.execute("DROP TABLE IF EXISTS id_uuid_text", 100);
+        connectionManager.execute("DROP TABLE IF EXISTS id_uuid_binary", 100);
+        SQLIDManager.UUIDText text = new SQLIDManager.UUIDText(connectionManager, "id_uuid_text");
+        connectionManager.execute(text::init, 100);
+        List<UUID> values = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) values.add(UUID.randomUUID());
+        Map<UUID, Integer> ids = text.getOrInsertAll(values);
+
+        SQLIDManager.UUIDBinary binary = new SQLIDManager.UUIDBinary(connectionManager, "id_uuid_binary");
+        connectionManager.execute(binary::init, 100);
+        assertEquals(20000, binary.migrateFrom("id_uuid_text", 1000, 3000L));
+        // Idempotent
+        binary.migrateFrom("id_uuid_text", 1000, 3000L);
+        assertEquals(20000, connectionManager.count("id_uuid_binary", 1000L));
+
+        assertEquals(ids, binary.getAll(values));
+        UUID added = UUID.randomUUID();
+        int addedID = binary.getIDOrInsert(added);
+        assertTrue(addedID > 20000);
+        binary.clearCache();
+        assertEquals(added, binary.getValueOpt(addedID).orElseThrow());
+        assertEquals(addedID, binary.getIDOpt(added, false).orElseThrow());
+
+        if (!connectionManager.isMySQL()) {
+            assertTrue(indexSize(connectionManager, "id_uuid_binary") < indexSize(connectionManager, "id_uuid_text"));
+        }
+    }
+
+    private static long indexSize(ConnectionManager connectionManager, String table) throws SQLException, BusyException {
+        return connectionManager.query("SELECT SUM(pgsize) FROM dbstat WHERE name=?", rs -> {
+            rs.next();
+            return rs.getLong(1);
+        }, 1000L, "sqlite_autoindex_" + table + "_1");
+    }
+
+    @DatabaseTest
+    public void testGetIDOptSingleFlight(ConnectionManager connectionManager) throws Exception {
+        connectionManager.execute("DROP TABLE IF EXISTS id_single_flight", 100);
+        SQLIDManager.Str idManager = new SQLIDManager.Str(connectionManager, "id_single_flight");
+        connectionManager.execute(idManager::init, 100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(64);
+        try {
+            for (int callers : new int[]{1, 8, 64}) {
+                String value = "value" + callers;
+                long before = statementCount(connectionManager);
+                Set<Integer> ids = new HashSet<>(runConcurrently(executor, callers, () -> idManager.getIDOrInsert(value)));
+                long roundTrips = statementCount(connectionManager) - before;
+                assertEquals(1, ids.size());
+                // INSERT + SELECT, regardless of the number of callers
+                assertTrue(roundTrips <= 2, callers + " callers took " + roundTrips + " statements");
+
+                String missing = "missing" + callers;
+                before = statementCount(connectionManager);
+                for (Optional<Integer> id : runConcurrently(executor, callers, () -> idManager.getIDOpt(missing, false))) {
+                    assertTrue(id.isEmpty());
+                }
+                for (int i = 0; i < 10; i++) assertTrue(idManager.getIDOpt(missing, false).isEmpty());
+                roundTrips = statementCount(connectionManager) - before;
+                assertTrue(roundTrips <= 1, callers + " callers took " + roundTrips + " statements");
+            }
+
+            // A miss is forgotten once the value is inserted
+            assertTrue(idManager.getIDOpt("late", false).isEmpty());
+            int id = idManager.getIDOrInsert("late");
+            assertEquals(id, idManager.getIDOpt("late", false).orElse(null));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long statementCount(ConnectionManager connectionManager) {
+        return connectionManager.getStatementCacheHits() + connectionManager.getStatementCacheMisses();
+    }
+
+    private static <T> List<T> runConcurrently(ExecutorService executor, int callers, Callable<T> task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        List<T> out = new ArrayList<>();
+        for (Future<T> future : futures) out.add(future.get());
+        return out;
+    }
 }
@@ -2,6 +2,7 @@ package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.crypto.CodeGenerator;
 import dev.kshl.kshlib.crypto.HashPBKDF2;
+import dev.kshl.kshlib.crypto.HashingService;
 import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.misc.Timer;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -9,13 +10,18 @@ import org.junit.jupiter.params.provider.MethodSource;
 
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class SQLPasswordManagerTest {
@@ -77,4 +83,70 @@ public class SQLPasswordManagerTest {
         sqlPasswordManager.remove(1);
         assert !sqlPasswordManager.contains(1);
     }
+
+    @DatabaseTest
+    public void testAsyncAndRehash(ConnectionManager connectionManager) throws Exception {
+        connectionManager.execute("DROP TABLE IF EXISTS passwords_async", 100);
+        SQLPasswordManager sqlPasswordManager = new SQLPasswordManager(connectionManager, "passwords_async", SQLPasswordManager.Type.TOKEN);
+        connectionManager.execute(sqlPasswordManager::init, 100);
+
+        HashingService hashingService = new HashingService(2, 4);
+        sqlPasswordManager.setHashingService(hashingService);
+        try {
+            sqlPasswordManager.setPasswordAsync(1, "password1", true, 0).join();
+            assert sqlPasswordManager.testPasswordAsync(1, "password1").join();
+            assert !sqlPasswordManager.testPasswordAsync(1, "password2").join();
+
+            // Load shedding
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) futures.add(sqlPasswordManager.testPasswordAsync(1, "password1"));
+            int busy = 0;
+            for (CompletableFuture<Boolean> future : futures) {
+                try {
+                    assert future.join();
+                } catch (CompletionException e) {
+                    assertInstanceOf(BusyException.class, e.getCause());
+                    busy++;
+                }
+            }
+            assert busy > 0;
+            assertEquals(busy, hashingService.getRejected());
+        } finally {
+            hashingService.shutdown();
+        }
+
+        // Rehash on login once the iteration count is raised
+        int oldIterations = SQLPasswordManager.Type.TOKEN.iterationCount / 10;
+        connectionManager.execute("UPDATE passwords_async SET hash=?,iterations=? WHERE uid=?", 100, HashPBKDF2.hash("password1", oldIterations), oldIterations, 1);
+        assert !sqlPasswordManager.testPassword(1, "password2");
+        assertEquals(oldIterations, getIterations(connectionManager, 1));
+        assert sqlPasswordManager.testPassword(1, "password1");
+        assertEquals(SQLPasswordManager.Type.TOKEN.iterationCount, getIterations(connectionManager, 1));
+        assert sqlPasswordManager.testPassword(1, "password1");
+
+        sqlPasswordManager.setHashingService(HashingService.getDefault());
+        connectionManager.execute("UPDATE passwords_async SET hash=?,iterations=? WHERE uid=?", 100, HashPBKDF2.hash("password1", oldIterations), oldIterations, 1);
+        assert sqlPasswordManager.testPasswordAsync(1, "password1").join();
+        assertEquals(SQLPasswordManager.Type.TOKEN.iterationCount, getIterations(connectionManager, 1));
+
+        // A failed rehash does not fail the login
+        connectionManager.execute("UPDATE passwords_async SET hash=?,iterations=? WHERE uid=?", 100, HashPBKDF2.hash("password1", oldIterations), oldIterations, 1);
+        connectionManager.execute(connectionManager.isMySQL()
+                ? "CREATE TRIGGER passwords_async_locked BEFORE UPDATE ON passwords_async FOR EACH ROW SIGNAL SQLSTATE '45000'"
+                : "CREATE TRIGGER passwords_async_locked BEFORE UPDATE ON passwords_async BEGIN SELECT RAISE(ABORT, 'locked'); END", 100);
+        try {
+            assert sqlPasswordManager.testPassword(1, "password1");
+            assert sqlPasswordManager.testPasswordAsync(1, "password1").join();
+            assertEquals(oldIterations, getIterations(connectionManager, 1));
+        } finally {
+            connectionManager.execute("DROP TRIGGER passwords_async_locked", 100);
+        }
+    }
+
+    private static int getIterations(ConnectionManager connectionManager, int uid) throws SQLException, BusyException {
+        return connectionManager.query("SELECT iterations FROM passwords_async WHERE uid=?", rs -> {
+            rs.next();
+            return rs.getInt(1);
+        }, 100, uid);
+    }
 }
@@ -115,6 +115,59 @@ public class SQLSessionTokenUUIDManagerTest {
         assertTrue(mgr.test(t2.token_id(), t2.token()).isEmpty());
     }
 
+    @DatabaseTest
+    void verified_token_is_cached_until_revoked(ConnectionManager cm) throws Exception {
+        String table = randTable();
+        var mgr = new SQLSessionTokenUUIDManager(cm, table, Duration.ofMinutes(10).toMillis(), false);
+        cm.execute((ConnectionConsumer) mgr::init, 1L);
+
+        int uid = 55;
+        var tok = mgr.generateNew(uid);
+
+        // A second manager over the same table has to verify against the database once
+        var other = new SQLSessionTokenUUIDManager(cm, table, Duration.ofMinutes(10).toMillis(), false);
+        cm.execute((ConnectionConsumer) other::init, 1L);
+        long before = statementCount(cm);
+        assertEquals(uid, other.test(tok.token_id(), tok.token()).orElse(-1));
+        assertEquals(1, statementCount(cm) - before);
+
+        before = statementCount(cm);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(uid, other.test(tok.token_id(), tok.token()).orElse(-1));
+        }
+        assertTrue(other.test(tok.token_id(), tok.token() + "x").isEmpty());
+        assertEquals(0, statementCount(cm) - before, "Cached tokens should not query the database");
+
+        other.remove(uid);
+        assertTrue(other.test(tok.token_id(), tok.token()).isEmpty());
+    }
+
+    @DatabaseTest
+    void shared_cache_sees_revocations(ConnectionManager cm) throws Exception {
+        String table = randTable();
+        var cache = new VerifiedSessionCache(100, 50L);
+        var mgr = new SQLSessionTokenUUIDManager(cm, table, Duration.ofMinutes(10).toMillis(), false, cache);
+        var other = new SQLSessionTokenUUIDManager(cm, table, Duration.ofMinutes(10).toMillis(), false, cache);
+        cm.execute((ConnectionConsumer) mgr::init, 1L);
+        cm.execute((ConnectionConsumer) other::init, 1L);
+
+        var tok = mgr.generateNew(1);
+        assertEquals(1, other.test(tok.token_id(), tok.token()).orElse(-1));
+        mgr.remove(1);
+        assertTrue(other.test(tok.token_id(), tok.token()).isEmpty());
+
+        // A revocation the cache is not told of is seen once the entry reaches its max age
+        var tok2 = mgr.generateNew(2);
+        assertEquals(2, other.test(tok2.token_id(), tok2.token()).orElse(-1));
+        cm.execute("DELETE FROM " + table, 3000L);
+        Thread.sleep(100);
+        assertTrue(other.test(tok2.token_id(), tok2.token()).isEmpty());
+    }
+
+    private static long statementCount(ConnectionManager cm) {
+        return cm.getStatementCacheHits() + cm.getStatementCacheMisses();
+    }
+
     @DatabaseTest
     void not_initialized_guard_throws(ConnectionManager cm) {
         var mgr = new SQLSessionTokenUUIDManager(cm, randTable(), Duration.ofMinutes(10).toMillis(), false);
@@ -4,7 +4,10 @@ package dev.kshl.kshlib.sql;
 import dev.kshl.kshlib.exceptions.BusyException;
 
 import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.LongStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -22,4 +25,69 @@ public class SQLSetTest {
         assertTrue(sqlSet.remove(1));
         assertFalse(sqlSet.remove(1));
     }
+
+    @DatabaseTest
+    public void testSQLSetFilter(ConnectionManager connectionManager) throws SQLException, BusyException {
+        connectionManager.execute("DROP TABLE IF EXISTS sql_set_filter", 100);
+        SQLSet.BigInt writer = new SQLSet.BigInt(connectionManager, "sql_set_filter", false);
+        connectionManager.execute(writer::init, 100);
+        List<Long> members = LongStream.range(0, 5000).map(i -> i * 7).boxed().toList();
+        writer.addAll(members);
+
+        SQLSet.BigInt sqlSet = new SQLSet.BigInt(connectionManager, "sql_set_filter", false);
+        sqlSet.enableFilter(0.01, 1 << 20);
+        connectionManager.execute(sqlSet::init, 1000);
+        assertTrue(sqlSet.isFilterEnabled());
+
+        for (long member : members) assertTrue(sqlSet.contains(member));
+        assertEquals(0, sqlSet.getFilterSkips());
+
+        int nonMembers = 0;
+        for (long i = 1_000_000; i < 1_010_000; i++, nonMembers++) assertFalse(sqlSet.contains(i));
+        double falsePositiveRate = sqlSet.getFilterFalsePositives() / (double) nonMembers;
+        assertTrue(falsePositiveRate < 0.02, "false positive rate " + falsePositiveRate);
+
+        assertFalse(sqlSet.contains(-1L));
+        assertTrue(sqlSet.add(-1L));
+        assertTrue(sqlSet.contains(-1L));
+        assertFalse(sqlSet.add(-1L));
+        assertTrue(sqlSet.remove(-1L));
+        assertFalse(sqlSet.contains(-1L));
+        // Other members are unaffected by removals
+        for (long member : members) assertTrue(sqlSet.contains(member));
+    }
+
+    @DatabaseTest
+    public void testSQLSetIDFilter(ConnectionManager connectionManager) throws SQLException, BusyException {
+        connectionManager.execute("DROP TABLE IF EXISTS sql_set_id_values", 100);
+        connectionManager.execute("DROP TABLE IF EXISTS sql_set_id", 100);
+        SQLIDManager.Str ids = new SQLIDManager.Str(connectionManager, "sql_set_id_values");
+        connectionManager.execute(ids::init, 100);
+        SQLSet.IDText sqlSet = new SQLSet.IDText(connectionManager, ids, "sql_set_id", false);
+        sqlSet.enableFilter(0.01, 1 << 20);
+        connectionManager.execute(sqlSet::init, 100);
+        assertTrue(sqlSet.isFilterEnabled());
+
+        assertTrue(sqlSet.add("member"));
+        assertTrue(sqlSet.contains("member"));
+        ids.getIDOrInsert("non-member");
+        assertFalse(sqlSet.contains("non-member"));
+        assertTrue(sqlSet.remove("member"));
+        assertFalse(sqlSet.contains("member"));
+    }
+
+    @DatabaseTest
+    public void testAddAllLarge(ConnectionManager connectionManager) throws SQLException, BusyException {
+        connectionManager.execute("DROP TABLE IF EXISTS sql_set_large", 100);
+        SQLSet.BigInt sqlSet = new SQLSet.BigInt(connectionManager, "sql_set_large", false);
+        connectionManager.execute(sqlSet::init, 100);
+
+        List<Long> members = LongStream.range(0, 20_000).boxed().toList();
+        sqlSet.addAll(members);
+
+        assertEquals(members.size(), connectionManager.count("sql_set_large", 1000L));
+        sqlSet.addAll(members.subList(0, 10)); // Existing members are ignored
+        assertEquals(members.size(), connectionManager.count("sql_set_large", 1000L));
+        assertTrue(sqlSet.contains(19_999L));
+    }
 }
@@ -1,6 +1,9 @@
 package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
+import dev.kshl.kshlib.function.ResultSetConsumer;
+import dev.kshl.kshlib.function.ResultSetFunction;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -8,23 +11,36 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.api.function.Executable;
 import org.junit.jupiter.api.io.TempDir;
+import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteErrorCode;
 import org.sqlite.SQLiteException;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -146,6 +162,426 @@ public class SQLiteConnectionPoolTest {
         assertTrue(success.get());
     }
 
+    @Test
+    public void testStatementCache() throws SQLException, BusyException {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        for (int i = 0; i < 10; i++) {
+            connectionManager.execute("INSERT INTO tbl (i) VALUES (?)", 1000L, i);
+        }
+        long hits = connectionManager.getStatementCacheHits();
+        long misses = connectionManager.getStatementCacheMisses();
+        assertEquals(9, hits);
+        assertEquals(1, misses);
+
+        // Nested use of the same statement on the same Connection must not share the PreparedStatement
+        connectionManager.acceptResultSet("SELECT i FROM tbl ORDER BY i", (connection, rs) -> {
+            assertTrue(rs.next());
+            connectionManager.query(connection, "SELECT i FROM tbl ORDER BY i", (ResultSetConsumer) rs2 -> assertTrue(rs2.next()));
+            int count = 1;
+            while (rs.next()) count++;
+            assertEquals(10, count);
+        }).executeQuery(1000L);
+
+        // Schema changes invalidate cached statements
+        assertEquals(1, (int) connectionManager.query("SELECT * FROM tbl", (ResultSetFunction<Integer>) rs -> rs.getMetaData().getColumnCount(), 1000L));
+        connectionManager.execute("ALTER TABLE tbl ADD COLUMN j INT", 1000L);
+        assertEquals(2, (int) connectionManager.query("SELECT * FROM tbl", (ResultSetFunction<Integer>) rs -> rs.getMetaData().getColumnCount(), 1000L));
+    }
+
+    @Test
+    public void testSubmitWrite() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT PRIMARY KEY)", 1000L);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final int i_ = i;
+            futures.add(connectionManager.submitWrite(connection -> connectionManager.execute(connection, "INSERT INTO tbl (i) VALUES (?)", i_)));
+        }
+        // Duplicate key, should fail on its own without rolling back the rest of its batch
+        CompletableFuture<Void> failed = connectionManager.submitWrite(connection -> connectionManager.execute(connection, "INSERT INTO tbl (i) VALUES (?)", 5));
+
+        for (CompletableFuture<Void> future : futures) future.get(5, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertTrue(connectionManager.isConstraintViolation((Exception) e.getCause()));
+
+        assertEquals(100, connectionManager.count("tbl", 1000L));
+    }
+
+    @Test
+    @Timeout(10)
+    public void testSubmitWriteBackpressure() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        connectionManager.configureWriteQueue(1, 0, 2);
+
+        // Hold the write lock so the queue cannot drain
+        CountDownLatch held = new CountDownLatch(1);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        Future<?> holder = executor.submit(() -> {
+            connectionManager.execute((ConnectionConsumer) connection -> {
+                held.countDown();
+                try {
+                    release.get(5, TimeUnit.SECONDS);
+                } catch (Exception ignored) {
+                }
+            }, 1000L);
+            return null;
+        });
+        held.await();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int i_ = i;
+            futures.add(connectionManager.submitWrite(connection -> {
+                // Tasks calling synchronized methods of the manager must not deadlock close()
+                connectionManager.getPendingWrites();
+                connectionManager.execute(connection, "INSERT INTO tbl (i) VALUES (?)", i_);
+            }));
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, () -> futures.get(3).get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof BusyException, e.getCause().toString());
+        assertTrue(connectionManager.getRejectedWrites() >= 1);
+
+        release.complete(null);
+        holder.get();
+        ((TestConnectionManager) connectionManager).closeManager();
+        futures.get(0).get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        connectionManager.configureAsync(1, 1, false);
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+
+        assertEquals(1, connectionManager.executeTransactionAsync(connection -> connectionManager.executeReturnRows(connection, "INSERT INTO tbl (i) VALUES (?)", 1), 1000L).get());
+        assertEquals(1, connectionManager.queryAsync("SELECT COUNT(*) FROM tbl", rs -> rs.next() ? rs.getInt(1) : -1, 1000L).get());
+
+        // One task running and one queued fills the executor, so the next fails immediately
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        CountDownLatch running = new CountDownLatch(1);
+        CompletableFuture<Void> blocker = connectionManager.executeAsync((ConnectionConsumer) connection -> {
+            running.countDown();
+            try {
+                release.get(5, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+            }
+        }, 1000L);
+        running.await();
+        CompletableFuture<Void> queued = connectionManager.executeAsync("INSERT INTO tbl (i) VALUES (?)", 1000L, 2);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> connectionManager.executeAsync("INSERT INTO tbl (i) VALUES (3)", 1000L).get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof BusyException, e.getCause().toString());
+        assertEquals(1, connectionManager.getRejectedAsync());
+
+        release.complete(null);
+        blocker.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(2, connectionManager.count("tbl", 1000L));
+        assertEquals(0, connectionManager.getPendingAsync());
+    }
+
+    @Test
+    public void testAsyncClose() throws Exception {
+        connectionManager.configureAsync(1, 1, false);
+        CountDownLatch running = new CountDownLatch(1);
+        CompletableFuture<Void> blocker = connectionManager.executeAsync((ConnectionConsumer) connection -> {
+            running.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1000L);
+        running.await();
+        CompletableFuture<Integer> queued = connectionManager.queryAsync("SELECT 1", rs -> rs.next() ? rs.getInt(1) : -1, 1000L);
+
+        // The running task is interrupted and the queued one fails rather than running once the pool is closed
+        ((TestConnectionManager) connectionManager).closeManager();
+        blocker.get(1, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof BusyException, e.getCause().toString());
+        assertEquals(0, connectionManager.getPendingAsync());
+    }
+
+    @Test
+    @Timeout(10)
+    public void testCloseWithOpenStream() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        connectionManager.execute("INSERT INTO tbl (i) VALUES (1), (2)", 1000L);
+        // Never closed
+        Stream<Integer> stream = connectionManager.streamAll("SELECT i FROM tbl", rs -> rs.getInt(1), 1, 1000L);
+        assertEquals(1, connectionManager.getActiveReadConnections());
+
+        ((TestConnectionManager) connectionManager).closeManager();
+        assertThrows(RuntimeException.class, stream::count);
+    }
+
+    @Test
+    public void testStreamAll() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        connectionManager.executeBatch("INSERT INTO tbl (i) VALUES (?)", IntStream.range(0, 1000).boxed().toList(), List::of, 1000L);
+
+        int before = connectionManager.getActiveConnections();
+        try (Stream<Integer> stream = connectionManager.streamAll("SELECT i FROM tbl WHERE i>=? ORDER BY i", rs -> rs.getInt(1), 64, 1000L, 10)) {
+            // One read connection is held for the lifetime of the stream
+            assertThrows(IllegalStateException.class, () -> connectionManager.execute("INSERT INTO tbl (i) VALUES (1)", 1000L));
+            assertEquals(List.of(10, 11, 12), stream.limit(3).toList());
+        }
+
+        try (Stream<Integer> stream = connectionManager.streamAll("SELECT i FROM tbl", rs -> rs.getInt(1), 64, 1000L)) {
+            assertEquals(1000, stream.count());
+        }
+
+        // Connections are all returned
+        assertEquals(before, connectionManager.getActiveConnections());
+        connectionManager.execute("INSERT INTO tbl (i) VALUES (1)", 1000L);
+        for (int i = 0; i < before; i++) {
+            connectionManager.execute("SELECT 1").readOnly().executeQuery(10L);
+        }
+
+        // A write waits for an open stream, which may be closed by another thread
+        Stream<Integer> stream = connectionManager.streamAll("SELECT i FROM tbl", rs -> rs.getInt(1), 64, 1000L);
+        assertEquals(1, connectionManager.getActiveReadConnections());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> executor.submit(() -> {
+            connectionManager.execute("INSERT INTO tbl (i) VALUES (2)", 50L);
+            return null;
+        }).get());
+        assertTrue(e.getCause() instanceof BusyException, e.getCause().toString());
+        executor.submit(stream::close).get();
+        assertEquals(0, connectionManager.getActiveReadConnections());
+        assertEquals(0, connectionManager.getConnectionPool().getHoldTracker().getHeld());
+        connectionManager.execute("INSERT INTO tbl (i) VALUES (2)", 1000L);
+    }
+
+    @Test
+    public void testReadConnectionMetrics() throws SQLException, BusyException {
+        assertEquals(0, connectionManager.getActiveReadConnections());
+        assertEquals(connectionManager.getActiveConnections() - 1, connectionManager.getAllEstablishedReadConnections());
+
+        connectionManager.query("SELECT 1", (ResultSetConsumer) rs -> assertEquals(1, connectionManager.getActiveReadConnections()), 1000L);
+        connectionManager.execute("SELECT 1").readWrite().executeQuery(1000L);
+        connectionManager.accept(connection -> assertEquals(0, connectionManager.getActiveReadConnections())).executeQuery(1000L);
+        assertEquals(0, connectionManager.getActiveReadConnections());
+    }
+
+    @Test
+    public void testUsageMetrics() throws Exception {
+        CountDownLatch held = new CountDownLatch(1);
+        Future<?> holder = executor.submit(() -> {
+            connectionManager.accept(connection -> {
+                held.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+            }).executeQuery(1000L);
+            return null;
+        });
+        held.await();
+        // Waits for the write Connection held above
+        connectionManager.execute("SELECT 1").readWrite().executeQuery(1000L);
+        holder.get();
+
+        double[] hold = connectionManager.getHoldTimePercentiles();
+        double[] wait = connectionManager.getWaitTimePercentiles();
+        assertTrue(hold[0] <= hold[1] && hold[1] <= hold[2]);
+        assertTrue(hold[2] >= 80, "hold p99.9=" + hold[2]);
+        assertTrue(wait[2] >= 50, "wait p99.9=" + wait[2]);
+        assertTrue(connectionManager.getUsageTimeRatios()[2] >= 0.1 / 5 * 0.8);
+    }
+
+    @Test
+    public void testTuning() throws Exception {
+        connectionManager.close();
+        connectionManager = new TestConnectionManager(tempPath.resolve(UUID.randomUUID() + ".db").toFile(), new SQLiteTuning()
+                .readConnections(2)
+                .cacheSizeKiB(2048)
+                .mmapSize(1L << 20)
+                .tempStore(SQLiteConfig.TempStore.MEMORY)
+                .walAutoCheckpoint(0));
+        assertEquals(2, connectionManager.getAllEstablishedReadConnections());
+
+        ResultSetFunction<Long> first = rs -> rs.next() ? rs.getLong(1) : null;
+        assertEquals(-2048, connectionManager.query("PRAGMA cache_size", first, 1000L));
+        assertEquals(1L << 20, connectionManager.query("PRAGMA mmap_size", first, 1000L));
+        assertEquals(2, connectionManager.query("PRAGMA temp_store", first, 1000L));
+        assertEquals(0, connectionManager.applyResultSet("PRAGMA wal_autocheckpoint", first).readWrite().executeQuery(1000L));
+
+        // Without automatic checkpoints, the WAL is only copied into the database by the passive checkpoint
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        connectionManager.executeBatch("INSERT INTO tbl (i) VALUES (?)", IntStream.range(0, 1000).boxed().toList(), List::of, 1000L);
+        int[] checkpoint = ((ConnectionPoolSQLite) connectionManager.getConnectionPool()).checkpoint();
+        assertEquals(0, checkpoint[0]);
+        assertTrue(checkpoint[1] > 0);
+        assertEquals(checkpoint[1], checkpoint[2]);
+    }
+
+    @Test
+    public void testAdaptiveReadConnections() throws Exception {
+        connectionManager.close();
+        connectionManager = new TestConnectionManager(tempPath.resolve(UUID.randomUUID() + ".db").toFile(), new SQLiteTuning()
+                .adaptiveReadConnections(1, 2)
+                .adaptInterval(TimeUnit.HOURS.toMillis(1), 1));
+        ConnectionPoolSQLite pool = (ConnectionPoolSQLite) connectionManager.getConnectionPool();
+        assertEquals(1, pool.getReadConnectionTarget());
+
+        // A read which waits for the only Connection grows the pool
+        CountDownLatch held = new CountDownLatch(1);
+        Future<?> holder = executor.submit(() -> {
+            connectionManager.accept(connection -> {
+                held.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+            }).readOnly().executeQuery(1000L);
+            return null;
+        });
+        held.await();
+        connectionManager.execute("SELECT 1").readOnly().executeQuery(1000L);
+        holder.get();
+        pool.adaptReadConnections();
+        assertEquals(2, pool.getReadConnectionTarget());
+        assertEquals(2, connectionManager.getAllEstablishedReadConnections());
+
+        // An idle interval shrinks it again
+        pool.adaptReadConnections();
+        assertEquals(1, pool.getReadConnectionTarget());
+        assertEquals(1, connectionManager.getAllEstablishedReadConnections());
+        connectionManager.execute("SELECT 1").readOnly().executeQuery(1000L);
+    }
+
+    @Test
+    public void testSlowHolds() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INT)", 1000L);
+        connectionManager.setSlowHoldThresholdMillis(50);
+        connectionManager.execute("INSERT INTO tbl (i) VALUES (?)", 1000L, 1);
+        assertEquals(List.of(), connectionManager.getSlowHolds());
+
+        CountDownLatch held = new CountDownLatch(1);
+        Future<?> holder = executor.submit(() -> {
+            connectionManager.accept(connection -> {
+                connectionManager.execute(connection, "INSERT INTO tbl (i) VALUES (?)", 42);
+                held.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+            }).executeQuery(1000L);
+            return null;
+        });
+        held.await();
+
+        // The exception names the holder and what it is executing, without the arguments
+        BusyException e = assertThrows(BusyException.class, () -> connectionManager.execute("INSERT INTO tbl (i) VALUES (2)", 10L));
+        assertTrue(e.getMessage().contains("executing INSERT INTO tbl (i) VALUES (<Integer>)"), e.getMessage());
+        assertTrue(e.getMessage().contains("Thread.sleep"), e.getMessage());
+        holder.get();
+
+        List<SlowHold> slowHolds = connectionManager.getSlowHolds();
+        assertEquals(1, slowHolds.size());
+        SlowHold slowHold = slowHolds.get(0);
+        assertEquals("INSERT INTO tbl (i) VALUES (<Integer>)", slowHold.statement());
+        assertEquals(1, slowHold.statements());
+        assertTrue(slowHold.holdMillis() >= 150, "holdMillis=" + slowHold.holdMillis());
+        assertTrue(slowHold.stack().length > 0);
+
+        // A stream closed on another thread ends its hold, so it is recorded once and no longer blamed
+        Stream<Integer> stream = connectionManager.streamAll("SELECT i FROM tbl WHERE i>?", rs -> rs.getInt(1), 64, 1000L, 0);
+        Thread.sleep(100);
+        executor.submit(stream::close).get();
+        assertEquals(0, connectionManager.getConnectionPool().getHoldTracker().getHeld());
+        slowHolds = connectionManager.getSlowHolds();
+        assertEquals(2, slowHolds.size());
+        assertTrue(slowHolds.stream().anyMatch(hold -> hold.statement().equals("SELECT i FROM tbl WHERE i><Integer>")), slowHolds.toString());
+        assertEquals(2, connectionManager.getSlowHolds().size());
+
+        connectionManager.setSlowHoldLogSize(0);
+        assertEquals(List.of(), connectionManager.getSlowHolds());
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+        File directory = tempPath.resolve("shards").toFile();
+        try (var sharded = new ShardedConnectionManager<>(directory, "stats", 4, (file, shard) -> new TestConnectionManager(file))) {
+            assertEquals(4, sharded.getShardCount());
+            sharded.scatter(shard -> {
+                shard.execute("CREATE TABLE stats (uuid TEXT PRIMARY KEY, kills INT)", 1000L);
+                return null;
+            });
+
+            List<UUID> uuids = IntStream.range(0, 200).mapToObj(i -> UUID.randomUUID()).toList();
+            for (UUID uuid : uuids) {
+                assertEquals(ShardedConnectionManager.shardOf(uuid, 4), ShardedConnectionManager.shardOf(uuid, 4));
+                sharded.forKey(uuid).execute("INSERT INTO stats (uuid, kills) VALUES (?, 1)", 1000L, uuid.toString());
+            }
+            UUID uuid = uuids.get(0);
+            assertEquals(1, (int) sharded.forKey(uuid).query("SELECT kills FROM stats WHERE uuid=?", (ResultSetFunction<Integer>) rs -> rs.next() ? rs.getInt(1) : 0, 1000L, uuid.toString()));
+
+            // Every shard gets a share of the rows, and scatter-gather reads see all of them
+            List<Integer> counts = sharded.queryAll("SELECT count(*) FROM stats", rs -> rs.next() ? rs.getInt(1) : 0, 1000L);
+            assertEquals(4, counts.size());
+            counts.forEach(count -> assertTrue(count > 0, counts.toString()));
+            assertEquals(200, sharded.count("stats", 1000L));
+
+            assertThrows(SQLException.class, () -> sharded.queryAll("SELECT * FROM missing", rs -> null, 1000L));
+            assertThrows(IllegalArgumentException.class, () -> sharded.forKey(1.5));
+        }
+        assertThrows(IllegalStateException.class, () -> new ShardedConnectionManager<>(directory, "stats", 2, (file, shard) -> new TestConnectionManager(file)));
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        connectionManager.execute("CREATE TABLE tbl (i INTEGER PRIMARY KEY, data BLOB)", 1000L);
+        connectionManager.executeTransaction((ConnectionConsumer) connection -> {
+            for (int i = 0; i < 2000; i++) connectionManager.execute(connection, "INSERT INTO tbl (i, data) VALUES (?, ?)", i, new byte[1024]);
+        }, 1000L);
+
+        // Writes continue while the backup pauses between steps
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Future<Integer> writer = executor.submit(() -> {
+            int writes = 0;
+            while (writing.get()) connectionManager.execute("INSERT INTO tbl (i, data) VALUES (?, ?)", 100L, 2000 + writes++, new byte[1024]);
+            return writes;
+        });
+        List<long[]> progress = new ArrayList<>();
+        File destination = tempPath.resolve("backup.db").toFile();
+        connectionManager.backup(destination, new SQLiteBackup().pagesPerStep(64).pauseMillis(1)
+                .progress((stage, done, total) -> progress.add(new long[]{done, total})));
+        writing.set(false);
+        int writes = writer.get();
+        assertTrue(writes > 0);
+        assertTrue(progress.size() > 1, "steps=" + progress.size());
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(last[1], last[0]);
+
+        ConnectionManager restored = new TestConnectionManager(destination);
+        int count = restored.count("tbl", 1000L);
+        assertTrue(count >= 2000 && count <= 2000 + writes, count + " of " + (2000 + writes));
+        restored.close();
+
+        File compressed = tempPath.resolve("backup.db.gz").toFile();
+        List<SQLiteBackup.Stage> stages = new ArrayList<>();
+        long size = connectionManager.backup(compressed, new SQLiteBackup().compress(true).progress((stage, done, total) -> stages.add(stage)));
+        assertEquals(compressed.length(), size);
+        assertTrue(size < destination.length(), size + " >= " + destination.length());
+        assertTrue(stages.contains(SQLiteBackup.Stage.COPY) && stages.contains(SQLiteBackup.Stage.COMPRESS));
+        File decompressed = tempPath.resolve("decompressed.db").toFile();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(compressed))) {
+            Files.copy(in, decompressed.toPath());
+        }
+        restored = new TestConnectionManager(decompressed);
+        assertTrue(restored.count("tbl", 1000L) >= 2000);
+        restored.close();
+
+        // An interrupt aborts the backup rather than being swallowed by the pause
+        File interrupted = tempPath.resolve("backup_interrupted.db").toFile();
+        assertThrows(InterruptedIOException.class, () -> connectionManager.backup(interrupted, new SQLiteBackup().pagesPerStep(64).pauseMillis(1)
+                .progress((stage, done, total) -> Thread.currentThread().interrupt())));
+        assertTrue(Thread.interrupted());
+        assertFalse(interrupted.exists());
+        // Temporary files are removed
+        assertEquals(List.of("backup.db", "backup.db.gz", "decompressed.db"), Stream.of(tempPath.toFile().list()).filter(f -> !f.endsWith("-wal") && !f.endsWith("-shm") && f.matches("(backup|decompressed).*")).sorted().toList());
+    }
+
     private static void assertThrowsReadOnly(Executable executable) {
         var e = assertThrows(SQLiteException.class, executable);
         assertEquals(SQLiteErrorCode.SQLITE_READONLY, SQLiteErrorCode.getErrorCode(e.getErrorCode()));
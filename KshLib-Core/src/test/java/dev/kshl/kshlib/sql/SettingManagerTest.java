@@ -2,13 +2,16 @@
 package dev.kshl.kshlib.sql;
 
 import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.function.ConnectionConsumer;
 
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -120,4 +123,90 @@ public class SettingManagerTest {
         assertEquals(2, settingManager.get(1));
         assertEquals(4, settingManager.get(3));
     }
+
+    @DatabaseTest
+    public void testLoadAll(ConnectionManager connectionManager) throws SQLException, BusyException {
+        SettingManager.Int settingManager = new SettingManager.Int(connectionManager, "setting_manager_load_all", true, null);
+        connectionManager.execute(settingManager::init, 3000L);
+        for (int setting = 1; setting <= 10; setting++) settingManager.set(1, setting, setting * 10);
+        settingManager.set(2, 1, -1);
+        settingManager.clearCache();
+
+        long before = statementCount(connectionManager);
+        Map<Integer, Integer> all = settingManager.loadAll(1);
+        assertEquals(10, all.size());
+        for (int setting = 1; setting <= 10; setting++) {
+            assertEquals(setting * 10, settingManager.get(1, setting));
+        }
+        // Known to be at the default without querying
+        assertNull(settingManager.get(1, 11));
+        assertEquals(1, statementCount(connectionManager) - before);
+
+        settingManager.add(1, 11, 3);
+        assertEquals(3, settingManager.get(1, 11));
+    }
+
+    @DatabaseTest
+    public void testWriteBehind(ConnectionManager connectionManager) throws Exception {
+        SettingManager.Int settingManager = new SettingManager.Int(connectionManager, "setting_manager_write_behind", true, 0);
+        connectionManager.execute(settingManager::init, 3000L);
+        settingManager.setWriteBehind(TimeUnit.HOURS.toMillis(1));
+
+        long before = statementCount(connectionManager);
+        for (int i = 1; i <= 100; i++) {
+            settingManager.set(1, 1, i);
+            settingManager.set(1, 2, -i);
+        }
+        assertEquals(100, settingManager.get(1, 1));
+        assertEquals(0, statementCount(connectionManager) - before);
+        assertEquals(2, settingManager.getPendingWrites());
+
+        settingManager.flush();
+        assertEquals(0, settingManager.getPendingWrites());
+        // One upsert per (uid, setting)
+        assertEquals(2, statementCount(connectionManager) - before);
+        settingManager.clearCache();
+        assertEquals(100, settingManager.get(1, 1));
+        assertEquals(-100, settingManager.get(1, 2));
+
+        // Increments apply on top of a deferred value
+        settingManager.set(1, 1, 5);
+        settingManager.inc(1, 1);
+        assertEquals(6, settingManager.get(1, 1));
+
+        // Flushed automatically after the interval
+        settingManager.setWriteBehind(10);
+        settingManager.set(1, 3, 7);
+        for (int i = 0; i < 100 && settingManager.getPendingWrites() > 0; i++) Thread.sleep(10);
+        connectionManager.submitWrite(connection -> {
+        }).get(5, TimeUnit.SECONDS);
+        settingManager.clearCache();
+        assertEquals(7, settingManager.get(1, 3));
+
+        // A write with a Connection replaces a deferred value
+        settingManager.setWriteBehind(TimeUnit.HOURS.toMillis(1));
+        settingManager.set(1, 4, 1);
+        connectionManager.execute((ConnectionConsumer) connection -> settingManager.set(connection, 1, 4, 2), 3000L);
+        settingManager.flush();
+        settingManager.clearCache();
+        assertEquals(2, settingManager.get(1, 4));
+    }
+
+    @DatabaseTest
+    public void testWriteBehindFailure(ConnectionManager connectionManager) throws Exception {
+        SettingManager.Int settingManager = new SettingManager.Int(connectionManager, "setting_manager_write_behind_failure", true, 0);
+        connectionManager.execute(settingManager::init, 3000L);
+        connectionManager.execute("DROP TABLE setting_manager_write_behind_failure", 3000L);
+
+        settingManager.setWriteBehind(10);
+        settingManager.set(1, 1, 5);
+        for (int i = 0; i < 500 && settingManager.getPendingWrites() > 0; i++) Thread.sleep(10);
+        // Given up on rather than retried forever
+        assertEquals(0, settingManager.getPendingWrites());
+        assertNotNull(settingManager.getLastFlushError());
+    }
+
+    private static long statementCount(ConnectionManager connectionManager) {
+        return connectionManager.getStatementCacheHits() + connectionManager.getStatementCacheMisses();
+    }
 }
@@ -13,6 +13,12 @@ class TestConnectionManager extends ConnectionManager {
         init();
     }
 
+    public TestConnectionManager(File sqliteFile, SQLiteTuning tuning) throws IOException, SQLException, ClassNotFoundException {
+        super(sqliteFile, tuning);
+
+        init();
+    }
+
     public TestConnectionManager(String uri, String database, String user, String pwd, int poolSize) throws SQLException, ClassNotFoundException, IOException {
         super(uri, database, user, pwd, poolSize);
         System.out.println("TestConnectionManager: " + uri + " " + database + " " + user + " " + pwd + " " + poolSize);
@@ -52,4 +58,11 @@ class TestConnectionManager extends ConnectionManager {
     @Override
     public void close() {
     }
+
+    /**
+     * Closes the manager, which {@link #close()} leaves open for reuse between tests
+     */
+    void closeManager() {
+        super.close();
+    }
 }